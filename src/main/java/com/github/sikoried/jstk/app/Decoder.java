@@ -27,10 +27,10 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -38,6 +38,8 @@ import com.github.sikoried.jstk.arch.Configuration;
 import com.github.sikoried.jstk.arch.TokenTree;
 import com.github.sikoried.jstk.arch.Tokenization;
 import com.github.sikoried.jstk.arch.TreeNode;
+import com.github.sikoried.jstk.decoder.Lattice;
+import com.github.sikoried.jstk.decoder.Network;
 import com.github.sikoried.jstk.decoder.ViterbiBeamSearch;
 import com.github.sikoried.jstk.io.FrameInputStream;
 import com.github.sikoried.jstk.lm.Bigram;
@@ -54,20 +56,46 @@ public class Decoder {
 		"sikoried, 11/16/2010\n" +
 		"Time-synchronuous beam search for network decoding.\n\n" +
 		"usage: app.Decoder config codebook lmfile [options]\n" +
+		"  lmfile may also be a compiled network (see decoder.Network)\n" +
 		"-l list [indir]\n" +
 		"  Read files from list and optional indir.\n" +
 		"-f file\n" +
-		"  Work on given file.\n" +
+		"  Work on given file; use - to read from stdin.\n" +
 		"-bs <beamsize>\n" +
 		"  Set Viterbi beam size (default: 500)\n" +
 		"-bw <beamwidth>\n" +
-		"  Set the Viterbi beam width in terms of logprobs\n" + 
+		"  Set the Viterbi beam width in terms of logprobs\n" +
+		"-pm <sort|select|histogram>\n" +
+		"  Set the pruning strategy: full sort, linear time selection or\n" +
+		"  histogram pruning (default: sort)\n" +
+		"-pe <beamwidth>\n" +
+		"  Only propagate phone ends within this width of the best phone end\n" +
+		"  (default: off)\n" +
+		"-we <beamwidth> [<beamsize>]\n" +
+		"  Only propagate word ends within this width of the best word end, and\n" +
+		"  at most <beamsize> word ends per frame (default: off)\n" +
+		"-la <beamwidth>\n" +
+		"  LM look-ahead: only enter nodes whose best reachable word is within\n" +
+		"  this width of the best hypothesis (default: off)\n" +
+		"-p <threads>\n" +
+		"  Compute the emissions of a frame using the given number of threads;\n" +
+		"  the result does not depend on the number of threads (default: 1)\n" +
 		"-i <insertion-penalty>\n" +
 		"  Set the insertion penalty (default: 0.01)\n" +
 		"-w <lm-weight>\n" +
 		"  Set the language model weight (default: 10.)\n" +
 		"-n <num>\n" +
 		"  Set number of hypotheses to generate (default: 1).\n" +
+		"-N <num>\n" +
+		"  Generate a word lattice and output its <num> best distinct word\n" +
+		"  sequences (with score) instead of the surviving hypotheses.\n" +
+		"-L <dir>\n" +
+		"  Generate a word lattice and write it to <dir>/<basename>.lat (HTK\n" +
+		"  SLF, node times in frames).\n" +
+		"-c <frames>\n" +
+		"  Online mode: every <frames> frames, output the words shared by all\n" +
+		"  active hypotheses and release their history; supports the word and\n" +
+		"  token output modes and a single hypothesis.\n" +
 		"-s prob\n" +
 		"  Set the silence probability (default: 0.01).\n" +
 		"-m [mode]\n" +
@@ -112,6 +140,15 @@ public class Decoder {
 		int n = 1;
 		int bs = 500;
 		double bw = Double.MAX_VALUE;
+		ViterbiBeamSearch.Pruning pruning = ViterbiBeamSearch.Pruning.SORT;
+		int threads = 1;
+		double pe = Double.MAX_VALUE;
+		double we = Double.MAX_VALUE;
+		int ws = Integer.MAX_VALUE;
+		double la = Double.MAX_VALUE;
+		int online = 0;
+		int nbest = 0;
+		String latdir = null;
 		String outf = null;
 		List<String> files = new LinkedList<String>();
 		
@@ -129,8 +166,14 @@ public class Decoder {
 		// sil.put(conf.tok.getWordTokenization("pau"), silprob);
 		// sil.put(conf.tok.getWordTokenization("h#"), silprob);
 
-		// load model (1- and 2-gram supported for now)
-		LanguageModel lm = LanguageModel.loadNgramModel(new File(args[z++]), conf.tok, conf.th, sil);
+		// load model (1- and 2-gram supported for now) or compiled network
+		File lmfile = new File(args[z++]);
+		Network net = null;
+		LanguageModel lm = null;
+		if (Network.isNetworkFile(lmfile))
+			net = Network.read(lmfile, conf.th);
+		else
+			lm = LanguageModel.loadNgramModel(lmfile, conf.tok, conf.th, sil);
 
 		
 		for (; z < args.length; ++z) {
@@ -166,8 +209,26 @@ public class Decoder {
 				bs = Integer.parseInt(args[++z]);
 			else if (args[z].equals("-bw"))
 				bw = Double.parseDouble(args[++z]);
+			else if (args[z].equals("-pm"))
+				pruning = ViterbiBeamSearch.Pruning.valueOf(args[++z].toUpperCase());
+			else if (args[z].equals("-p"))
+				threads = Integer.parseInt(args[++z]);
+			else if (args[z].equals("-pe"))
+				pe = Double.parseDouble(args[++z]);
+			else if (args[z].equals("-we")) {
+				we = Double.parseDouble(args[++z]);
+				if (z + 1 < args.length && args[z + 1].matches("[0-9]+"))
+					ws = Integer.parseInt(args[++z]);
+			} else if (args[z].equals("-la"))
+				la = Double.parseDouble(args[++z]);
 			else if (args[z].equals("-n"))
 				n = Integer.parseInt(args[++z]);
+			else if (args[z].equals("-N"))
+				nbest = Integer.parseInt(args[++z]);
+			else if (args[z].equals("-L"))
+				latdir = args[++z];
+			else if (args[z].equals("-c"))
+				online = Integer.parseInt(args[++z]);
 			else if (args[z].equals("-q")) {
 				silencer = true;
 				Configurator.setLevel("com.github.sikoried.jstk", Level.FATAL);
@@ -182,44 +243,93 @@ public class Decoder {
 		
 		
 		
-		TreeNode root = lm.generateNetwork();
-		logger.info(TokenTree.traverseNetwork(root, " "));
+		if (net == null) {
+			TreeNode root = lm.generateNetwork();
+			logger.info(TokenTree.traverseNetwork(root, " "));
+			net = Network.compile(root);
+		}
 		
 		if (files.size() < 1) {
 			System.err.println("Nothing to do. Bye.");
 			System.exit(1);
 		}
 		
-		ViterbiBeamSearch dec = new ViterbiBeamSearch(root, lmwt, wip);
+		if (online > 0 && ((mode != Mode.WORD && mode != Mode.TOKEN) || n != 1))
+			throw new IOException("online mode supports word and token output of a single hypothesis");
+		
+		ViterbiBeamSearch dec = new ViterbiBeamSearch(net, lmwt, wip);
+		dec.setPruning(pruning);
+		dec.setNumThreads(threads);
+		dec.setPhoneEndBeam(pe);
+		dec.setWordEndBeam(we, ws);
+		dec.setLookAheadBeam(la);
+		dec.setLatticeGeneration(nbest > 0 || latdir != null);
 		
 		// set up the output stream
 		BufferedWriter bwr = new BufferedWriter(new OutputStreamWriter(outf == null ? System.out : new FileOutputStream(outf)));
 		
 		for (String f : files) {
 			logger.info("reading " + f);
-			FrameInputStream fr = new FrameInputStream(new File(f));
+			
+			// frames are decoded as they are read
+			FrameInputStream fr = new FrameInputStream(f.equals("-") ? null : new File(f));
 			double [] buf = new double [fr.getFrameSize()];
-			LinkedList<double []> obs = new LinkedList<double []>();
 			
-			while (fr.read(buf))
-				obs.add(buf.clone());
+			if (!fr.read(buf)) {
+				logger.info("no frames in " + f);
+				continue;
+			}
 			
 			// init the decoder
-			Iterator<double []> it = obs.iterator();
-			dec.initialize(bs, bw, it.next());
+			dec.initialize(bs, bw, buf);
 	
 			int i = 1;
-			while (it.hasNext()) {
-				double cbw = dec.step(it.next());
+			while (fr.read(buf)) {
+				double cbw = dec.step(buf);
 				i++;
 				if (!silencer)
-					System.err.print("\rprogress=" + (int)((i / (double) obs.size()) * 100) + "% bs=" + dec.getCurrentBeamSize() + " exp=" + dec.getCurrentExpandedSize() + " bw=" + cbw);
+					System.err.print("\rframe=" + i + " bs=" + dec.getCurrentBeamSize() + " exp=" + dec.getCurrentExpandedSize() + " bw=" + cbw);
+				
+				// output the words that are stable by now
+				if (online > 0 && i % online == 0) {
+					ViterbiBeamSearch.Hypothesis h = dec.commit();
+					if (h != null) {
+						write(bwr, h, mode);
+						bwr.flush();
+					}
+				}
 			}
 			
 			// conclude the decoding (and reduce to active final states)
 			dec.conclude();
 			
 			logger.info("\n processed " + i + " frames");
+			logger.info("emission cache: hit_rate=" + dec.getEmissionCacheHitRate() + " evaluations=" + dec.getEmissionEvaluations());
+			
+			if (latdir != null) {
+				String base = new File(f).getName();
+				if (base.contains("."))
+					base = base.substring(0, base.lastIndexOf('.'));
+				BufferedWriter lw = new BufferedWriter(new FileWriter(new File(latdir, base + ".lat")));
+				dec.getLattice().writeSLF(lw);
+				lw.close();
+			}
+			
+			if (nbest > 0) {
+				for (Lattice.Path p : dec.getLattice().getBestPaths(nbest, true))
+					bwr.append(p.score + " " + p.getWordSequence() + "\n");
+				bwr.flush();
+				continue;
+			}
+			
+			if (online > 0) {
+				ViterbiBeamSearch.Hypothesis h = dec.getBestHypothesis();
+				if (h != null)
+					write(bwr, h, mode);
+				bwr.append("\n");
+				bwr.flush();
+				continue;
+			}
 						
 			for (ViterbiBeamSearch.Hypothesis h : dec.getBestHypotheses(n)) {
 				switch (mode) {
@@ -251,5 +361,20 @@ public class Decoder {
 		}
 		
 		bwr.close();
+		dec.shutdown();
+	}
+	
+	/**
+	 * Write out the words or tokens of a (partial) hypothesis, separated by
+	 * spaces, without line break.
+	 */
+	private static void write(BufferedWriter bwr, ViterbiBeamSearch.Hypothesis h, Mode mode) throws IOException {
+		if (mode == Mode.TOKEN) {
+			for (ViterbiBeamSearch.Hypothesis t : h.extractTokens())
+				bwr.append(t.node.toString() + " ");
+		} else {
+			for (ViterbiBeamSearch.Hypothesis w : h.extractWords())
+				bwr.append(w.node.word.word + " ");
+		}
 	}
 }
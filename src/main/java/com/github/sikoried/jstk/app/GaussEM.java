@@ -22,17 +22,29 @@
 package com.github.sikoried.jstk.app;
 
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 
 import com.github.sikoried.jstk.io.ChunkedDataSet;
 import com.github.sikoried.jstk.io.FrameInputStream;
 import com.github.sikoried.jstk.stat.Density;
+import com.github.sikoried.jstk.stat.GaussianSelection;
 import com.github.sikoried.jstk.stat.Mixture;
+import com.github.sikoried.jstk.stat.MleDensityAccumulator;
+import com.github.sikoried.jstk.stat.MleMixtureAccumulator;
 import com.github.sikoried.jstk.stat.ParallelEM;
 import com.github.sikoried.jstk.stat.Sample;
 import com.github.sikoried.jstk.stat.Trainer;
+import com.github.sikoried.jstk.util.FastMath;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -66,6 +78,38 @@ public class GaussEM {
 		"    This might be faster than -p for small problems with less files.\n" +
 		"  --save-partial-estimates\n" +
 		"    Write out the current estimate after each iteration (to output-model.*)\n" +
+		"  -g selection-file shortlist\n" +
+		"    Compute the posteriors only for the components selected by the given\n" +
+		"    Gaussian selection (see stat.GaussianSelection), merging the shortlists\n" +
+		"    of the best <shortlist> codewords; not with -s\n" +
+		"  --sparse min-posterior top-k\n" +
+		"    Accumulate the statistics only for components with a posterior of at\n" +
+		"    least min-posterior, and of those at most the top-k largest (0: no\n" +
+		"    limit); the discarded posterior mass is reported; not with -s\n" +
+		"  --cache-frames MB\n" +
+		"    Keep up to MB megabytes of feature data in memory after the first\n" +
+		"    iteration instead of re-reading the files; not with -s\n" +
+		"  --largest-first\n" +
+		"    Process the files sorted by size, largest first, for a better load\n" +
+		"    balance of the threads; not with -s\n" +
+		"  --max-chunk-frames num\n" +
+		"    Split files with more than num frames into chunks of num frames\n" +
+		"    (float data only); not with -s\n" +
+		"  --fast-math\n" +
+		"    Use the table driven exp/log approximations (see util.FastMath)\n" +
+		"  --shard k num\n" +
+		"    Only accumulate the statistics of the initial model on the k-th of num\n" +
+		"    partitions of the list (k = 0...num-1) and write the accumulator to\n" +
+		"    output-model; combine the accumulators of all partitions using\n" +
+		"    stat.MleMixtureAccumulator mle (-n is ignored, not with -s)\n" +
+		"  --processes num\n" +
+		"    Run the accumulation of each iteration in num separate processes on\n" +
+		"    this machine (using --shard) and combine their accumulators; -p is\n" +
+		"    the number of threads per process (default: cores / num); not with -s.\n" +
+		"    Of this JVM's arguments, only the heap and memory settings (-Xmx, -Xms,\n" +
+		"    -Xss, -XX:MaxDirectMemorySize) are passed on to the processes\n" +
+		"  --jvm-args \"args\"\n" +
+		"    Additional JVM arguments for the --processes processes\n" +
 		"\n" +
 		"default: -n 10 -p 0\n";
 	
@@ -84,11 +128,30 @@ public class GaussEM {
 		
 		boolean savePartialEstimates = false;
 		
+		String gsf = null;
+		int shortlist = 0;
+		
+		long cacheFrames = 0;
+		
+		boolean largestFirst = false;
+		long maxChunkFrames = 0;
+		
+		double minPosterior = 0.;
+		int topK = 0;
+		
+		int shard = -1, shards = 0;
+		int processes = 0;
+		
+		// options passed on to the shard processes
+		List<String> forward = new LinkedList<String>();
+		List<String> jvmArgs = new LinkedList<String>();
+		
 		// number of iterations
 		int n = 10;
 		
 		// number of cores
 		int c = Runtime.getRuntime().availableProcessors();
+		boolean threadsSet = false;
 		
 		Density.Flags flags = Density.Flags.fAllParams;
 		
@@ -101,24 +164,60 @@ public class GaussEM {
 				int tc = Integer.parseInt(args[++i]);
 //				if (tc > c)
 //					throw new RuntimeException("too many cores requested!");
-				if (tc > 0)
+				if (tc > 0) {
 					c = tc;
+					threadsSet = true;
+				}
 			} else if (args[i].equals("-s"))
 				c = -1;
 			else if (args[i].equals("-n"))
 				n = Integer.parseInt(args[++i]);
 			else if (args[i].equals("-l"))
 				lif = args[++i];
-			else if (args[i].equals("-d"))
+			else if (args[i].equals("-d")) {
 				inDir = args[++i];
+				forward.add(args[i-1]); forward.add(args[i]);
+			}
 			else if (args[i].equals("--update")) {
 				String arg = args[++i].toLowerCase();
 				flags = new Density.Flags(arg.contains("w"), arg.contains("m"), arg.contains("v"));
 			} else if (args[i].equals("--save-partial-estimates")) {
 				savePartialEstimates = true;
+			} else if (args[i].equals("-g")) {
+				gsf = args[++i];
+				shortlist = Integer.parseInt(args[++i]);
+				forward.add(args[i-2]); forward.add(args[i-1]); forward.add(args[i]);
+			} else if (args[i].equals("--sparse")) {
+				minPosterior = Double.parseDouble(args[++i]);
+				topK = Integer.parseInt(args[++i]);
+				forward.add(args[i-2]); forward.add(args[i-1]); forward.add(args[i]);
+			} else if (args[i].equals("--cache-frames")) {
+				cacheFrames = Long.parseLong(args[++i]) << 20;
+			} else if (args[i].equals("--largest-first")) {
+				largestFirst = true;
+				forward.add(args[i]);
+			} else if (args[i].equals("--max-chunk-frames")) {
+				maxChunkFrames = Long.parseLong(args[++i]);
+				forward.add(args[i-1]); forward.add(args[i]);
+			} else if (args[i].equals("--fast-math")) {
+				FastMath.setEnabled(true);
+				forward.add(args[i]);
 			} else if (args[i].equals("--ufv")) {
 				ufv = Integer.parseInt(args[++i]);
-				
+				forward.add(args[i-1]); forward.add(args[i]);
+			} else if (args[i].equals("--shard")) {
+				shard = Integer.parseInt(args[++i]);
+				shards = Integer.parseInt(args[++i]);
+				if (shard < 0 || shard >= shards)
+					throw new IOException("Invalid argument \"--shard " + shard + " " + shards + "\"");
+			} else if (args[i].equals("--jvm-args")) {
+				for (String a : args[++i].trim().split("\\s+"))
+					if (a.length() > 0)
+						jvmArgs.add(a);
+			} else if (args[i].equals("--processes")) {
+				processes = Integer.parseInt(args[++i]);
+				if (processes < 1)
+					throw new IOException("Invalid argument \"--processes " + processes + "\"");
 			} else {
 				System.err.println("Unknown argument: "+ args[i]);
 				System.exit(-1);
@@ -141,10 +240,53 @@ public class GaussEM {
 			System.exit(1);
 		}
 		
+		if (c == -1 && (shard >= 0 || processes > 0)) {
+			System.err.println("-s cannot be combined with --shard or --processes");
+			System.exit(1);
+		}
+		
+		if (shard >= 0 && processes > 0) {
+			System.err.println("--shard cannot be combined with --processes");
+			System.exit(1);
+		}
+		
 		logger.info("Reading from " + inf + "...");
 		Mixture initial, estimate;
 		initial = Mixture.readFromFile(new File(inf));
 		
+		if (shard >= 0) {
+			logger.info("Accumulating partition " + shard + " of " + shards + " on " + c + " cores");
+			
+			ChunkedDataSet set = new ChunkedDataSet(new File(lif), inDir, ufv);
+			set.schedule(largestFirst, maxChunkFrames);
+			set.partition(shard, shards);
+			ParallelEM pem = new ParallelEM(initial, set, c, flags);
+			if (gsf != null) {
+				InputStream is = new FileInputStream(gsf);
+				pem.setGaussianSelection(new GaussianSelection(is), shortlist);
+				is.close();
+			}
+			pem.setSparseAccumulation(minPosterior, topK);
+			
+			// never leave an old accumulator behind if this one fails
+			new File(ouf).delete();
+			
+			try {
+				MleMixtureAccumulator acc = pem.accumulate();
+				pem.shutdown();
+				
+				logger.info(set.numberOfChunks() + " chunks, " + pem.frames + " frames; saving accumulator...");
+				OutputStream os = new BufferedOutputStream(new FileOutputStream(ouf));
+				acc.write(os);
+				os.close();
+			} catch (IOException e) {
+				logger.error("partition " + shard + " of " + shards + " failed: " + e.toString());
+				new File(ouf).delete();
+				System.exit(1);
+			}
+			return;
+		}
+		
 		if (savePartialEstimates)
 			initial.writeToFile(new File(ouf + ".0"));
 		
@@ -169,10 +311,47 @@ public class GaussEM {
 				if (savePartialEstimates)
 					estimate.writeToFile(new File(ouf + "." + (i+1)));
 			}
+		} else if (processes > 0) {
+			int cpp = threadsSet ? c : Math.max(1, c / processes);
+			logger.info("Starting " + n + " EM iterations in " + processes + " processes on " + cpp + " cores each");
+			
+			forward.add("-p");
+			forward.add(Integer.toString(cpp));
+			
+			File model = new File(ouf + ".shard-model");
+			List<File> accs = new ArrayList<File>();
+			for (int k = 0; k < processes; ++k)
+				accs.add(new File(ouf + ".shard-" + k));
+			
+			estimate = initial;
+			for (int i = 0; i < n; ++i) {
+				estimate.writeToFile(model);
+				runShards(model, lif, forward, jvmArgs, accs);
+				
+				MleMixtureAccumulator acc = MleMixtureAccumulator.sum(accs);
+				MleMixtureAccumulator.MleUpdate(estimate.clone(), MleDensityAccumulator.MleOptions.pDefaultOptions, flags, acc, estimate);
+				
+				logger.info("EM iteration " + (i+1) + " done");
+				if (savePartialEstimates)
+					estimate.writeToFile(new File(ouf + "." + (i+1)));
+			}
+			
+			model.delete();
+			for (File f : accs)
+				f.delete();
 		} else {
 			logger.info("Starting " + n + " EM iterations on " + c + " cores");
 
-			ParallelEM pem = new ParallelEM(initial, new ChunkedDataSet(new File(lif), inDir, ufv), c, flags);
+			ChunkedDataSet set = new ChunkedDataSet(new File(lif), inDir, ufv);
+			set.schedule(largestFirst, maxChunkFrames);
+			set.setFrameCache(cacheFrames);
+			ParallelEM pem = new ParallelEM(initial, set, c, flags);
+			if (gsf != null) {
+				InputStream is = new FileInputStream(gsf);
+				pem.setGaussianSelection(new GaussianSelection(is), shortlist);
+				is.close();
+			}
+			pem.setSparseAccumulation(minPosterior, topK);
 
 			for (int i = 0; i < n; ++i) {
 				pem.iterate();
@@ -180,9 +359,62 @@ public class GaussEM {
 					pem.current.writeToFile(new File(ouf + "." + (i+1)));
 			}
 			estimate = pem.current;
+			pem.shutdown();
+			
+			if (cacheFrames > 0)
+				logger.info("Frame cache: " + (set.getFrameCacheSize() >> 20) + " MB");
 		}
 		
 		logger.info("Saving new estimate...");
 		estimate.writeToFile(new File(ouf));
 	}
+	
+	/**
+	 * Run the accumulation for the given model in one process per 
+	 * accumulator file (GaussEM --shard k num) and wait for all of them.
+	 * The processes use the same JVM and class path; of the JVM arguments,
+	 * only the heap and memory settings are passed on (debugger, agent or JMX
+	 * ports would clash), followed by the given jvmArgs.
+	 */
+	private static void runShards(File model, String lif, List<String> options, List<String> jvmArgs, List<File> accs) 
+		throws IOException, InterruptedException {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		
+		List<String> memory = new LinkedList<String>();
+		for (String a : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+			if (a.startsWith("-Xmx") || a.startsWith("-Xms") || a.startsWith("-Xss") || a.startsWith("-XX:MaxDirectMemorySize="))
+				memory.add(a);
+		}
+		
+		// remove the accumulators of the last iteration
+		for (File f : accs)
+			f.delete();
+		
+		Process [] ps = new Process [accs.size()];
+		for (int k = 0; k < ps.length; ++k) {
+			List<String> cmd = new LinkedList<String>();
+			cmd.add(java);
+			cmd.addAll(memory);
+			cmd.addAll(jvmArgs);
+			cmd.add("-cp");
+			cmd.add(System.getProperty("java.class.path"));
+			cmd.add(GaussEM.class.getName());
+			cmd.addAll(options);
+			cmd.add("-i"); cmd.add(model.getPath());
+			cmd.add("-l"); cmd.add(lif);
+			cmd.add("-o"); cmd.add(accs.get(k).getPath());
+			cmd.add("--shard"); cmd.add(Integer.toString(k)); cmd.add(Integer.toString(ps.length));
+			
+			ps[k] = new ProcessBuilder(cmd).inheritIO().start();
+		}
+		
+		int failed = 0;
+		for (int k = 0; k < ps.length; ++k) {
+			if (ps[k].waitFor() != 0 || !accs.get(k).canRead())
+				failed++;
+		}
+		
+		if (failed > 0)
+			throw new IOException(failed + " of " + ps.length + " shard processes failed");
+	}
 }
@@ -22,6 +22,7 @@
 package com.github.sikoried.jstk.app;
 
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
@@ -29,20 +30,30 @@ import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
 
 import com.github.sikoried.jstk.io.FrameInputStream;
 import com.github.sikoried.jstk.io.FrameSource;
-import com.github.sikoried.jstk.stat.Density;
+import com.github.sikoried.jstk.stat.CompiledMixture;
+import com.github.sikoried.jstk.stat.GaussianSelection;
 import com.github.sikoried.jstk.stat.Mixture;
+import com.github.sikoried.jstk.stat.MixtureArchive;
 import com.github.sikoried.jstk.trans.NAP;
+import com.github.sikoried.jstk.util.Arithmetics;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
@@ -67,8 +78,19 @@ public class ParallelUbmGmm {
 		/** global (synchronized) job distributor */
 		Distributor jobDistributor;
 		
-		/** universal background model to be evaluated by every instance */
-		Mixture ubm;
+		/** universal background model, compiled and shared by all workers */
+		CompiledMixture ubm;
+		
+		/** scratch buffer for the compiled UBM */
+		double [] scratch;
+		
+		/** (shared) speaker model cache */
+		ModelCache models;
+		
+		/** optional Gaussian selection for the fast scoring */
+		GaussianSelection gs = null;
+		GaussianSelection.Scratch gss = null;
+		int shortlist;
 		
 		/** fast scoring? */
 		int fastScoring;
@@ -86,24 +108,36 @@ public class ParallelUbmGmm {
 		int [] ndx = null;
 		double [] scr = null;
 		
+		/** component log-likelihood buffers */
+		double [] lu, ls;
+		
+		/** scratch buffer for the speaker models (all have the UBM's layout) */
+		double [] sscratch = null;
+		
+		/** score each feature file once against all its models? */
+		boolean perFile = false;
+		
+		/** block buffers for the batch evaluation (no NAP) */
+		double [][] block = null;
+		double [][] lub = null, lsb = null;
+		
 		/** internal statistics */
 		long processed_frames = 0;
 		long processed_models = 0;
 		long processed_files = 0;
 		
 		/**
-		 * Generate a new Worker instance. Make sure the referenced Mixture is
-		 * only accessible by this thread/instance as for the internal caching
-		 * of scores.
-		 * @param ubm needs to be a copy for this thread exclusively!
+		 * Generate a new Worker instance. 
+		 * @param ubm compiled UBM, may be shared with other workers
 		 * @param jobDistributor
 		 * @param fastScoring number of densities for fast scoring (typically 5)
 		 * @param latch count down latch for synchronization with main thread
 		 * @param nap component-wise NAP transformation to apply before computation
 		 * @param rank rank of projection
 		 */
-		Worker(Mixture ubm, Distributor jobDistributor, int fastScoring, CountDownLatch latch, NAP [] nap, int rank) {
+		Worker(CompiledMixture ubm, Distributor jobDistributor, int fastScoring, CountDownLatch latch, NAP [] nap, int rank) {
 			this.ubm = ubm;
+			this.scratch = ubm.newScratch();
 			this.jobDistributor = jobDistributor;
 			this.fastScoring = fastScoring;
 			this.latch = latch;
@@ -114,6 +148,12 @@ public class ParallelUbmGmm {
 				ndx = new int [fastScoring];
 				scr = new double [fastScoring];
 			}
+			
+			lu = new double [ubm.nd];
+			ls = new double [ubm.nd];
+			
+			// no caching unless a shared cache is set
+			models = new ModelCache(ubm, null, 0);
 		}
 		
 		/**
@@ -127,18 +167,169 @@ public class ParallelUbmGmm {
 			}
 		}
 		
+		/**
+		 * Use the given Gaussian selection to determine the best C densities of
+		 * the UBM instead of evaluating all of them (fast scoring only).
+		 */
+		void setGaussianSelection(GaussianSelection gs, int shortlist) {
+			this.gs = gs;
+			this.gss = gs.newScratch(ubm);
+			this.shortlist = shortlist;
+		}
+		
+		/**
+		 * Process the jobs file by file: the frames of a feature file are read
+		 * and scored against the UBM only once, then against all speaker
+		 * models of that file (requires a distributor grouping the jobs by
+		 * feature file, not available with NAP).
+		 */
+		void setPerFile(boolean perFile) {
+			this.perFile = perFile;
+		}
+		
+		/**
+		 * Use the given (shared) cache to load the speaker models.
+		 */
+		void setModelCache(ModelCache models) {
+			this.models = models;
+		}
+		
+		/**
+		 * Determine the best C (fastScoring) of the given component scores;
+		 * the indices and scores are stored in ndx and scr (ascending).
+		 */
+		void select(double [] lh, int n) {
+			Arrays.fill(scr, Double.NEGATIVE_INFINITY);
+			
+			// insert sorted, ascending values
+			for (int i = 0; i < n; ++i) {
+				double s = lh[i];
+				
+				// do we need to consider this density score at all?
+				if (s < scr[0])
+					continue;
+				
+				// locate the insert position
+				int p = 0;
+				while (p < fastScoring - 1 && s > scr[p + 1])
+					p++;
+				
+				// shift the old values and indices
+				for (int j = 1; j <= p; ++j) { 
+					ndx[j-1] = ndx[j]; 
+					scr[j-1] = scr[j];
+				}
+				
+				// insert
+				ndx[p] = i;
+				scr[p] = s;
+			}
+		}
+		
+		/**
+		 * Score a group of jobs sharing the same feature file: read the frames
+		 * once, compute the UBM score and the best C densities once and score
+		 * all speaker models on the stored frames and shortlists.
+		 */
+		void scoreGroup(List<Job> group) throws IOException {
+			// read all frames
+			FrameSource source = new FrameInputStream(group.get(0).getFeatureFile());
+			int fs = source.getFrameSize();
+			List<double []> fl = new ArrayList<double []>();
+			double [] f = new double [fs];
+			while (source.read(f)) {
+				fl.add(f);
+				f = new double [fs];
+			}
+			double [][] x = fl.toArray(new double [fl.size()][]);
+			int frames = x.length;
+			
+			// UBM score and best C densities of every frame
+			double score_ubm = 0.;
+			int [][] sel = null;
+			int [] nsel = null;
+			if (fastScoring > 0) {
+				sel = new int [frames][];
+				nsel = new int [frames];
+			}
+			
+			if (gs != null) {
+				for (int t = 0; t < frames; ++t) {
+					int m = gs.top(x[t], shortlist, fastScoring, ubm, gss, ndx, scr);
+					score_ubm += Arithmetics.logsumexp(scr, m);
+					sel[t] = Arrays.copyOf(ndx, m);
+					nsel[t] = m;
+				}
+			} else {
+				for (int t = 0; t < frames; t += Mixture.BATCH_BLOCK) {
+					int n = Math.min(Mixture.BATCH_BLOCK, frames - t);
+					lub = ubm.evaluateBatch(x, t, n, lub, scratch);
+					for (int i = 0; i < n; ++i) {
+						if (fastScoring == 0)
+							score_ubm += Arithmetics.logsumexp(lub[i], ubm.nd);
+						else {
+							select(lub[i], ubm.nd);
+							score_ubm += Arithmetics.logsumexp(scr, fastScoring);
+							sel[t + i] = Arrays.copyOf(ndx, fastScoring);
+							nsel[t + i] = fastScoring;
+						}
+					}
+				}
+			}
+			
+			// score the speaker models
+			for (Job job : group) {
+				CompiledMixture speaker = models.get(job);
+				if (sscratch == null)
+					sscratch = speaker.newScratch();
+				
+				double score_spk = 0.;
+				if (fastScoring == 0) {
+					for (int t = 0; t < frames; t += Mixture.BATCH_BLOCK) {
+						int n = Math.min(Mixture.BATCH_BLOCK, frames - t);
+						lsb = speaker.evaluateBatch(x, t, n, lsb, sscratch);
+						for (int i = 0; i < n; ++i)
+							score_spk += Arithmetics.logsumexp(lsb[i], speaker.nd);
+					}
+				} else {
+					for (int t = 0; t < frames; ++t) {
+						speaker.logEvaluate(sel[t], nsel[t], x[t], ls, sscratch);
+						score_spk += Arithmetics.logsumexp(ls, nsel[t]);
+					}
+				}
+				
+				job.score = (score_spk - score_ubm) / frames;
+				processed_models++;
+			}
+			
+			processed_frames += frames;
+			processed_files++;
+		}
+		
 		/**
 		 * The actual scoring procedure. As long as the distributor has jobs, get
-		 * the next job and evaluate (fast-score) the feature file. The method
-		 * also caches the speaker models on demand.
+		 * the next job and evaluate (fast-score) the feature file; in per-file
+		 * mode, get the next group of jobs sharing a feature file. The speaker
+		 * models are obtained from the (shared) model cache.
 		 */ 
 		public void run() {
 			Job current = null;
 			try {
+				if (perFile) {
+					List<Job> group;
+					while ((group = jobDistributor.nextGroup()) != null) {
+						current = group.get(0);
+						scoreGroup(group);
+					}
+				}
+				
+				// (the distributor is exhausted after the per-file scoring)
 				// Mixture speaker = new Mixture(ubm);
 				while ((current = jobDistributor.next()) != null) {
 					
-					Mixture speaker = new Mixture(new FileInputStream(current.getModelFile()));
+					CompiledMixture speaker = models.get(current);
+					if (sscratch == null)
+						sscratch = speaker.newScratch();
 //					FrameSource spmean = new FrameInputStream(current.getModelFile());
 //					double [] sv = new double [spmean.getFrameSize()];
 //					spmean.read(sv);
@@ -151,7 +342,6 @@ public class ParallelUbmGmm {
 					double [] buf = new double [source.getFrameSize()];
 					
 					// score accumulators
-					double h1, h2;
 					double [] hb = new double [buf.length];
 					double score_ubm = 0.;
 					double score_spk = 0.;
@@ -159,87 +349,88 @@ public class ParallelUbmGmm {
 					// number of frames for later normalization
 					long frames = 0;
 					
-					if (fastScoring == 0) {
-						while (source.read(buf)) {
-							// score all densities -- time consuming!
-							if (nap != null) {
-								// UBM
-								h1 = 0.; h2 = 0.;
-								for (int i = 0; i < ubm.nd; ++i) {
-									System.arraycopy(buf, 0, hb, 0, buf.length);
-									nap[i].project(hb, rank);
-									h1 += ubm.components[i].evaluate(hb);
-									h2 += speaker.components[i].evaluate(hb);
+					if (nap == null) {
+						// evaluate blocks of frames at once
+						if (block == null || block[0].length != buf.length)
+							block = new double [Mixture.BATCH_BLOCK][buf.length];
+						
+						int n;
+						do {
+							n = 0;
+							while (n < block.length && source.read(block[n]))
+								n++;
+							
+							if (gs != null) {
+								for (int i = 0; i < n; ++i) {
+									// best C densities among the selected ones
+									int m = gs.top(block[i], shortlist, fastScoring, ubm, gss, ndx, scr);
+									score_ubm += Arithmetics.logsumexp(scr, m);
+									
+									speaker.logEvaluate(ndx, m, block[i], ls, sscratch);
+									score_spk += Arithmetics.logsumexp(ls, m);
+								}
+								
+								frames += n;
+								continue;
+							}
+							
+							lub = ubm.evaluateBatch(block, 0, n, lub, scratch);
+							if (fastScoring == 0) {
+								lsb = speaker.evaluateBatch(block, 0, n, lsb, sscratch);
+								for (int i = 0; i < n; ++i) {
+									score_ubm += Arithmetics.logsumexp(lub[i], ubm.nd);
+									score_spk += Arithmetics.logsumexp(lsb[i], speaker.nd);
 								}
-								score_ubm += Math.log(h1);
-								score_spk += Math.log(h2);
 							} else {
-								score_ubm += Math.log(ubm.evaluate(buf));
-								score_spk += Math.log(speaker.evaluate(buf));
+								for (int i = 0; i < n; ++i) {
+									// best C densities of the UBM, then the same ones of the speaker
+									select(lub[i], ubm.nd);
+									score_ubm += Arithmetics.logsumexp(scr, fastScoring);
+									
+									speaker.logEvaluate(ndx, fastScoring, block[i], ls, sscratch);
+									score_spk += Arithmetics.logsumexp(ls, fastScoring);
+								}
 							}
+							
+							frames += n;
+						} while (n == block.length);
+					} else if (fastScoring == 0) {
+						while (source.read(buf)) {
+							// score all densities -- time consuming!
+							for (int i = 0; i < ubm.nd; ++i) {
+								System.arraycopy(buf, 0, hb, 0, buf.length);
+								nap[i].project(hb, rank);
+								lu[i] = ubm.logEvaluate(i, hb, scratch);
+								ls[i] = speaker.logEvaluate(i, hb, sscratch);
+							}
+							score_ubm += Arithmetics.logsumexp(lu, ubm.nd);
+							score_spk += Arithmetics.logsumexp(ls, speaker.nd);
 							frames++;
 						}
 					} else {
 						while (source.read(buf)) {
 							// fast-scoring!
-							Arrays.fill(scr, 0.);
-							
 							// step 1: evaluate UBM
-							// ubm.evaluate(buf); obsolete, done in step 2
-							
-							// step 2: determine best C densities (insert sorted, ascending values)
-							Density[] c = ubm.components;
-							for (int i = 0; i < ubm.components.length; ++i) {
-								if (nap != null) {
-									System.arraycopy(buf, 0, hb, 0, buf.length);
-									nap[i].project(hb, rank);
-									c[i].evaluate(hb);
-								} else
-									c[i].evaluate(buf);
-								
-								double s = c[i].ascore;
-								
-								// do we need to consider this density score at all?
-								if (s < scr[0])
-									continue;
-								
-								// locate the insert position
-								int p = 0;
-								while (p < fastScoring - 1 && s > scr[p + 1])
-									p++;
-								
-								// shift the old values and indices
-								for (int j = 1; j <= p; ++j) { 
-									ndx[j-1] = ndx[j]; 
-									scr[j-1] = scr[j];
-								}
-								
-								// insert
-								ndx[p] = i;
-								scr[p] = s;
+							for (int i = 0; i < ubm.nd; ++i) {
+								System.arraycopy(buf, 0, hb, 0, buf.length);
+								nap[i].project(hb, rank);
+								lu[i] = ubm.logEvaluate(i, hb, scratch);
 							}
+							
+							// step 2: determine best C densities
+							select(lu, ubm.nd);
 						
 							// step 3: sum up those densities for actual UBM score
-							double ubm_part = 0.;
-							for (int j = 0; j < fastScoring; ++j)
-								ubm_part += scr[j];
-							score_ubm += Math.log(ubm_part);
+							score_ubm += Arithmetics.logsumexp(scr, fastScoring);
 							
 							// step 4: now evaluate the best densities for each speaker model
-							h1 = 0.;
-							c = speaker.components;
-							
-							if (nap != null) {
-								for (int j = 0; j < fastScoring; ++j) {
-									System.arraycopy(buf, 0, hb, 0, buf.length);
-									nap[ndx[j]].project(hb, rank);
-									h1 += c[ndx[j]].evaluate(hb); 
-								}									
-							} else
-								for (int j = 0; j < fastScoring; ++j)
-									h1 += c[ndx[j]].evaluate(buf);
+							for (int j = 0; j < fastScoring; ++j) {
+								System.arraycopy(buf, 0, hb, 0, buf.length);
+								nap[ndx[j]].project(hb, rank);
+								ls[j] = speaker.logEvaluate(ndx[j], hb, sscratch);
+							}
 							
-							score_spk += Math.log(h1);
+							score_spk += Arithmetics.logsumexp(ls, fastScoring);
 														
 							// increase number of frames for later normalization
 							frames++;
@@ -267,6 +458,152 @@ public class ParallelUbmGmm {
 		}
 	}
 
+	/**
+	 * The ModelCache loads and compiles the speaker models and keeps the most
+	 * recently used ones up to a given size; it is shared by all workers.
+	 * Models are loaded outside the lock; workers requesting a model that is
+	 * currently loaded wait for that load instead of loading it again.
+	 * @author sikoried
+	 */
+	static class ModelCache {
+		/** UBM to check the speaker models against */
+		CompiledMixture ubm;
+		
+		/** optional archive to load the speaker models from */
+		MixtureArchive archive;
+		
+		/** maximum size of the cached parameters in bytes */
+		long capacity;
+		
+		/** current size of the cached parameters in bytes */
+		long size = 0;
+		
+		/** 
+		 * A cached or currently loaded model
+		 */
+		static class Entry {
+			FutureTask<CompiledMixture> task;
+			
+			/** size of the model, -1 while loading */
+			long bytes = -1;
+			
+			Entry(FutureTask<CompiledMixture> task) {
+				this.task = task;
+			}
+		}
+		
+		/** cached models, in access order */
+		LinkedHashMap<String, Entry> cache = new LinkedHashMap<String, Entry>(16, .75f, true);
+		
+		/** statistics */
+		long hits = 0;
+		long misses = 0;
+		long evictions = 0;
+		
+		/**
+		 * Generate a new model cache
+		 * @param ubm UBM to check the speaker models against
+		 * @param archive archive to load the models from (null for model files)
+		 * @param capacity maximum size of the cached parameters in bytes (0 for no caching)
+		 */
+		ModelCache(CompiledMixture ubm, MixtureArchive archive, long capacity) {
+			this.ubm = ubm;
+			this.archive = archive;
+			this.capacity = capacity;
+		}
+		
+		/**
+		 * Get the compiled speaker model of the given job, load it if necessary.
+		 */
+		CompiledMixture get(final Job job) throws IOException {
+			Entry e;
+			boolean owner = false;
+			synchronized (this) {
+				e = cache.get(job.modelFile);
+				if (e != null)
+					hits++;
+				else {
+					misses++;
+					e = new Entry(new FutureTask<CompiledMixture>(new Callable<CompiledMixture>() {
+						public CompiledMixture call() throws IOException {
+							return load(job);
+						}
+					}));
+					cache.put(job.modelFile, e);
+					owner = true;
+				}
+			}
+			
+			if (owner)
+				e.task.run();
+			
+			CompiledMixture speaker;
+			try {
+				speaker = e.task.get();
+			} catch (InterruptedException ex) {
+				throw new IOException("interrupted while loading speaker model " + job.modelFile);
+			} catch (ExecutionException ex) {
+				synchronized (this) {
+					if (cache.get(job.modelFile) == e)
+						cache.remove(job.modelFile);
+				}
+				if (ex.getCause() instanceof IOException)
+					throw (IOException) ex.getCause();
+				throw new IOException(ex.getCause().toString());
+			}
+			
+			if (owner) {
+				synchronized (this) {
+					e.bytes = speaker.getParameterBytes();
+					if (e.bytes > capacity)
+						cache.remove(job.modelFile);
+					else {
+						size += e.bytes;
+						
+						// evict the least recently used (loaded) models
+						Iterator<Entry> it = cache.values().iterator();
+						while (size > capacity && it.hasNext()) {
+							Entry old = it.next();
+							if (old.bytes < 0 || old == e)
+								continue;
+							size -= old.bytes;
+							it.remove();
+							evictions++;
+						}
+					}
+				}
+			}
+			
+			return speaker;
+		}
+		
+		/**
+		 * Load the compiled speaker model of the given job
+		 */
+		CompiledMixture load(Job job) throws IOException {
+			CompiledMixture speaker;
+			if (archive != null)
+				speaker = archive.getCompiled(job.modelFile);
+			else {
+				InputStream is = new BufferedInputStream(new FileInputStream(job.getModelFile()), 65536);
+				try {
+					speaker = new CompiledMixture(new Mixture(is));
+				} finally {
+					is.close();
+				}
+			}
+			
+			if (speaker.nd != ubm.nd || speaker.fd != ubm.fd)
+				throw new IOException("speaker model " + job.modelFile + " does not match the UBM (nd = " + speaker.nd + ", fd = " + speaker.fd + ")");
+			
+			return speaker;
+		}
+		
+		public synchronized String toString() {
+			return "hits = " + hits + " misses = " + misses + " evictions = " + evictions + " cached = " + cache.size() + " (" + (size >> 10) + " KB)";
+		}
+	}
+	
 	/**
 	 * A Job consists of a feature and model file name and stores the score.
 	 * @author sikoried
@@ -306,6 +643,20 @@ public class ParallelUbmGmm {
 		public String toString() {
 			return modelFile + " " + featureFile + " " + score;
 		}
+		
+		/** group the jobs by speaker model */
+		static final Comparator<Job> BY_MODEL = new Comparator<Job>() {
+			public int compare(Job o1, Job o2) {
+				return o1.modelFile.compareTo(o2.modelFile);
+			}
+		};
+		
+		/** group the jobs by feature file */
+		static final Comparator<Job> BY_FEATURE_FILE = new Comparator<Job>() {
+			public int compare(Job o1, Job o2) {
+				return o1.featureFile.compareTo(o2.featureFile);
+			}
+		};
 	}
 	
 	/**
@@ -314,8 +665,12 @@ public class ParallelUbmGmm {
 	 * @author sikoried
 	 */
 	static class Distributor {
+		/** jobs in the order of the trial file */
 		List<Job> jobs = null;
 		
+		/** jobs in the order of processing */
+		List<Job> order = null;
+		
 		/** Job iterator, handled by next() */
 		Iterator<Job> it = null;
 		
@@ -324,12 +679,29 @@ public class ParallelUbmGmm {
 		 * @param jobs
 		 */
 		Distributor(List<Job> jobs) {
+			this(jobs, null);
+		}
+		
+		/**
+		 * Generate a new Job Distributor that hands out the jobs sorted by the
+		 * given comparator (stable, null for the original order); the job list
+		 * itself remains in the original order.
+		 * @param jobs
+		 * @param comparator
+		 */
+		Distributor(List<Job> jobs, Comparator<Job> comparator) {
 			this.jobs = jobs;
+			if (comparator == null)
+				order = jobs;
+			else {
+				order = new ArrayList<Job>(jobs);
+				Collections.sort(order, comparator);
+			}
 			rewind();
 		}
 		
 		void rewind() {
-			it = jobs.iterator();
+			it = order.iterator();
 		}
 		
 		/**
@@ -343,6 +715,38 @@ public class ParallelUbmGmm {
 			else 
 				return null;
 		}
+		
+		/** first job of the next group, see nextGroup() */
+		Job pending = null;
+		
+		/**
+		 * Get the next group of consecutive jobs with the same feature file.
+		 * This method is synchronized and is used by the executing Worker 
+		 * threads; do not mix with next().
+		 * @return next group of jobs, null if there are no more jobs
+		 */
+		synchronized List<Job> nextGroup() {
+			if (pending == null) {
+				if (!it.hasNext())
+					return null;
+				pending = it.next();
+			}
+			
+			List<Job> group = new ArrayList<Job>();
+			group.add(pending);
+			pending = null;
+			
+			while (it.hasNext()) {
+				Job j = it.next();
+				if (!j.featureFile.equals(group.get(0).featureFile)) {
+					pending = j;
+					break;
+				}
+				group.add(j);
+			}
+			
+			return group;
+		}
 	}
 	
 	/**
@@ -353,6 +757,19 @@ public class ParallelUbmGmm {
 	 * @param modelDir
 	 */
 	public static List<Job> readTrialFile(String trialFile, String featureFileDir, String modelDir) 
+		throws IOException {
+		return readTrialFile(trialFile, featureFileDir, modelDir, null);
+	}
+	
+	/**
+	 * Read in a trial file; the speaker models are looked up in the given 
+	 * archive (if not null) instead of the model directory.
+	 * @param trialFile
+	 * @param featureFileDir
+	 * @param modelDir
+	 * @param archive
+	 */
+	public static List<Job> readTrialFile(String trialFile, String featureFileDir, String modelDir, MixtureArchive archive) 
 		throws IOException {
 		logger.info("ParallelUbmGmm.readTrialFile(): reading " + trialFile);
 		
@@ -364,7 +781,10 @@ public class ParallelUbmGmm {
 			// format is "<speaker-model> <feature-file>"
 			String [] trial = line.split("\\s+");
 		
-			if (!(new File((modelDir != null ? modelDir + System.getProperty("file.separator") : "") + trial[0])).canRead())
+			if (archive != null) {
+				if (archive.indexOf(trial[0]) < 0)
+					throw new IOException("Speaker model " + trial[0] + " not in archive");
+			} else if (!(new File((modelDir != null ? modelDir + System.getProperty("file.separator") : "") + trial[0])).canRead())
 				throw new IOException("Could not read speaker model " + trial[0]);
 			if (!(new File((featureFileDir != null ? featureFileDir + System.getProperty("file.separator") : "") + trial[1])).canRead())
 				throw new IOException("Could not read feature file" + trial[1]);
@@ -393,13 +813,31 @@ public class ParallelUbmGmm {
 		"  default 0, i.e., no fast-scoring).\n" +
 		"-p <num-threads>\n" +
 		"  Use <num-threads> CPUs for faster processing. This will increase the memory\n" +
-		"  overhead as each thread needs to have it's own model cache. Per default all\n" +
-		"  available CPU are used.\n" +
+		"  overhead as each thread needs its own buffers. Per default all available\n" +
+		"  CPU are used.\n" +
+		"-g selection-file shortlist\n" +
+		"  Use a Gaussian selection (see stat.GaussianSelection) to find the best\n" +
+		"  densities for fast-scoring, merging the shortlists of the best <shortlist>\n" +
+		"  codewords; requires -f, not available with -t.\n" +
 		"-t mnap-file rank\n" +
 		"  Specify a MNAP projection and reduction rank. Note that the models need to be\n" +
 		"  MNAP transformed as well!\n" +
 		"--model-dir <dir>\n" +
 		"  Append <dir> before speaker model names in trial file\n" +
+		"--archive <file>\n" +
+		"  Load the speaker models from a mixture archive (see stat.MixtureArchive);\n" +
+		"  the speaker model names in the trial file are the names in the archive.\n" +
+		"--cache-size <MB>\n" +
+		"  Keep the most recently used speaker models up to <MB> megabytes of compiled\n" +
+		"  parameters in a cache shared by all threads (default: 256, 0 for none).\n" +
+		"--order <trial|model|file>\n" +
+		"  Process the trials in the order of the trial file (default), grouped by\n" +
+		"  speaker model (fewer model loads, best with --cache-size) or grouped by\n" +
+		"  feature file. The output is always in the order of the trial file.\n" +
+		"--per-file\n" +
+		"  Read each feature file and compute its UBM scores and best densities only\n" +
+		"  once, then score all speaker models of that file (implies --order file;\n" +
+		"  keeps all frames of a file in memory, not available with -t).\n" +
 		"--silent\n" +
 		"  Turn off DebugOutput for silent execution.\n";
 	
@@ -418,7 +856,14 @@ public class ParallelUbmGmm {
 
 		String napBase = null;
 		
+		String gsFile = null;
+		int shortlist = 0;
+		
 		String modelDir = null;
+		String archiveFile = null;
+		long cacheSize = 256;
+		String order = "trial";
+		boolean perFile = false;
 		// parsed arguments are (in order): ubm, trial-file, scored-trial-file, (optional) feature directory
 		String [] parsedArgs = { null, null, null, null };
 		int j = 0;
@@ -435,6 +880,21 @@ public class ParallelUbmGmm {
 				Configurator.setLevel("com.github.sikoried.jstk", Level.INFO);
 			else if (args[i].equals("--model-dir")) {
 			    modelDir = args[++i];
+			} else if (args[i].equals("--archive")) {
+				archiveFile = args[++i];
+			} else if (args[i].equals("--cache-size")) {
+				cacheSize = Long.parseLong(args[++i]);
+			} else if (args[i].equals("--order")) {
+				order = args[++i];
+				if (!(order.equals("trial") || order.equals("model") || order.equals("file")))
+					throw new IOException("Invalid argument \"" + order + "\"");
+			} else if (args[i].equals("--per-file")) {
+				perFile = true;
+			} else if (args[i].equals("-g")) {
+				gsFile = args[++i];
+				shortlist = Integer.parseInt(args[++i]);
+				if (shortlist < 1)
+					throw new IOException("Invalid argument \"" + args[i] + "\"");
 			} else if (args[i].equals("-t")) {
 				napBase = args[++i];
 				rank = Integer.parseInt(args[++i]);
@@ -451,12 +911,22 @@ public class ParallelUbmGmm {
 			logger.info("ParallelUbmGmm.main(): feature-dir   : " + parsedArgs[3]);
 		if (modelDir != null)
 			logger.info("ParallelUbmGmm.main(): model-dir     : " + modelDir);
+		if (archiveFile != null)
+			logger.info("ParallelUbmGmm.main(): archive       : " + archiveFile);
+		if (perFile)
+			order = "file";
+		
+		logger.info("ParallelUbmGmm.main(): model-cache   : " + cacheSize + " MB");
+		logger.info("ParallelUbmGmm.main(): order         : " + order + (perFile ? " (per-file scoring)" : ""));
 		logger.info("ParallelUbmGmm.main(): fast-scoring  : " + fastScoring); 
+		if (gsFile != null)
+			logger.info("ParallelUbmGmm.main(): selection     : " + gsFile + " (shortlist " + shortlist + ")");
 		logger.info("ParallelUbmGmm.main(): num-threads   : " + threads);
 				
 		// read in trial file
-		List<Job> jobs = readTrialFile(parsedArgs[1], parsedArgs[3], modelDir);
-		Distributor d = new Distributor(jobs);
+		MixtureArchive archive = (archiveFile == null ? null : new MixtureArchive(new File(archiveFile)));
+		List<Job> jobs = readTrialFile(parsedArgs[1], parsedArgs[3], modelDir, archive);
+		Distributor d = new Distributor(jobs, order.equals("model") ? Job.BY_MODEL : (order.equals("file") ? Job.BY_FEATURE_FILE : null));
 		
 		// start jobs
 		ExecutorService e = Executors.newFixedThreadPool(threads);
@@ -465,14 +935,34 @@ public class ParallelUbmGmm {
 		long tstart = System.currentTimeMillis();
 		logger.info("ParallelUbmGmm.main(): start time is " + tstart);
 		
+		if (gsFile != null && (fastScoring < 1 || napBase != null))
+			throw new IllegalArgumentException("Gaussian selection requires fast-scoring and no MNAP");
+		if (perFile && napBase != null)
+			throw new IllegalArgumentException("per-file scoring is not available with MNAP");
+		
+		// a single compiled UBM (and Gaussian selection) for all threads
+		CompiledMixture ubm = new CompiledMixture(Mixture.readFromFile(new File(parsedArgs[0])));
+		GaussianSelection gs = null;
+		if (gsFile != null) {
+			FileInputStream is = new FileInputStream(gsFile);
+			gs = new GaussianSelection(is);
+			is.close();
+		}
+		
+		ModelCache models = new ModelCache(ubm, archive, cacheSize << 20);
+		
 		for (int i = 0; i < threads; ++i) {
 			NAP [] nap = null;
-			Mixture ubm = Mixture.readFromFile(new File(parsedArgs[0]));
 			if (napBase != null) {
 				MNAP mnap = new MNAP(new FileInputStream(napBase));
 				nap = mnap.getTransformations();
 			}
-			e.execute(new Worker(ubm, d, fastScoring, latch, nap, rank));
+			Worker w = new Worker(ubm, d, fastScoring, latch, nap, rank);
+			if (gs != null)
+				w.setGaussianSelection(gs, shortlist);
+			w.setModelCache(models);
+			w.setPerFile(perFile);
+			e.execute(w);
 		}
 
 		// wait for all jobs to be done
@@ -481,6 +971,11 @@ public class ParallelUbmGmm {
 		// make sure the thread pool is done
 		e.shutdownNow();
 		
+		logger.info("ParallelUbmGmm.main(): model cache: " + models);
+		
+		if (archive != null)
+			archive.close();
+		
 		// print out the scored trial file
 		logger.info("ParallelUbmGmm.main(): writing scored trial file");
 		BufferedWriter fw = new BufferedWriter(new FileWriter(parsedArgs[2]));
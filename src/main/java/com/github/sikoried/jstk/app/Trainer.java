@@ -28,18 +28,22 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.Iterator;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.github.sikoried.jstk.arch.Codebook;
 import com.github.sikoried.jstk.arch.Configuration;
 import com.github.sikoried.jstk.io.FrameInputStream;
 import com.github.sikoried.jstk.stat.hmm.Alignment;
 import com.github.sikoried.jstk.stat.hmm.MetaAlignment;
 import com.github.sikoried.jstk.stat.hmm.MetaAlignment.Turn;
+import com.github.sikoried.jstk.util.FastMath;
+import com.github.sikoried.jstk.util.TreeReduction;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -87,30 +91,31 @@ public class Trainer {
 	private static final class Distributor {
 		List<Job> turns = null;
 		
-		/** Turn iterator, handled by next() */
-		Iterator<Job> it = null;
+		/** index of the next job, handled by next() */
+		AtomicInteger ind = new AtomicInteger(0);
 		
 		/**
 		 * Generate a new Job Distributor, managing the given list of jobs.
 		 * @param turns
 		 */
 		Distributor(List<Job> turns) {
-			this.turns = turns;
+			this.turns = new ArrayList<Job>(turns);
 			rewind();
 		}
 		
 		void rewind() {
-			it = turns.iterator();
+			ind.set(0);
 		}
 		
 		/**
-		 * Get the next job in line. This method is synchronized an is used
-		 * by the executing Worker threads.
+		 * Get the next job in line; used by the executing Worker threads 
+		 * without locking.
 		 * @return next job in line
 		 */
-		synchronized Job next() {
-			if (it.hasNext())
-				return it.next();
+		Job next() {
+			int i = ind.getAndIncrement();
+			if (i < turns.size())
+				return turns.get(i);
 			else 
 				return null;
 		}
@@ -118,31 +123,45 @@ public class Trainer {
 	
 	/**
 	 * The Worker class receives Jobs from the referenced Distributor. To be thread
-	 * safe, each worker needs an exclusive TokenHierarchy
+	 * safe, each worker needs an exclusive TokenHierarchy and Codebook, thus 
+	 * it loads its own Configuration and accumulates to its own replica of the
+	 * Codebook accumulators; the replicas are combined after all jobs are done.
 	 * 
 	 * @author sikoried
 	 */
 	private static final class Worker implements Runnable {
 		Distributor dist;
-		Configuration conf;
+		File fConfig, fCodebook;
+		Configuration conf = null;
 		CountDownLatch latch;
 		
 		long jobs = 0;
 		
+		/** exception or error that stopped the worker, if any */
+		Throwable error = null;
+		
 		/**
-		 * Generate a new Worker thread. Make sure that the TokenHierarchy is
-		 * used by this thread only!
+		 * Generate a new Worker thread; the Configuration and Codebook are 
+		 * loaded by the thread itself.
+		 * @param fConfig
+		 * @param fCodebook
 		 * @param d
 		 * @param latch
 		 */
-		Worker(Configuration config, Distributor d, CountDownLatch latch) {
-			this.conf = config;
+		Worker(File fConfig, File fCodebook, Distributor d, CountDownLatch latch) {
+			this.fConfig = fConfig;
+			this.fCodebook = fCodebook;
 			this.dist = d;
 			this.latch = latch;
 		}
 		
 		public void run() {
 			try {
+				// load the private model copy and set up the accumulators
+				conf = new Configuration(fConfig);
+				conf.loadCodebook(fCodebook);
+				conf.cb.init();
+				
 				// work off all jobs
 				Job job;
 				while ((job = dist.next()) != null) {
@@ -186,9 +205,11 @@ public class Trainer {
 			} catch (IOException e) {
 				e.printStackTrace();
 				System.err.println("Trainer.Worker#" + Thread.currentThread().getId() + ".run(): " + e);
-			} catch (Exception e) {
+				error = e;
+			} catch (Throwable e) {
 				e.printStackTrace();
 				System.err.println("Trainer.Worker#" + Thread.currentThread().getId() + ".run(): " + e);
+				error = e;
 			} finally {
 				// notify main thread
 				latch.countDown();
@@ -223,7 +244,9 @@ public class Trainer {
 		"--prop\n" +
 		"  Propagate the sufficient statistics prior to reestimation.\n" +
 		"--interp <rho>\n" +
-		"  Perform suff.stat. propagation and interpolation prior to reestimation\n";
+		"  Perform suff.stat. propagation and interpolation prior to reestimation\n" +
+		"--fast-math\n" +
+		"  Use the table driven exp/log approximations (see util.FastMath)\n";
 	
 	public static void main(String[] args) throws Exception {
 		if (args.length < 5) {
@@ -302,7 +325,9 @@ public class Trainer {
 				rho = 0.;
 			else if (args[i].equals("--interp")) {
 				rho = Double.parseDouble(args[++i]);
-			} else
+			} else if (args[i].equals("--fast-math"))
+				FastMath.setEnabled(true);
+			else
 				logger.info("Trainer.main(): warning -- ignoring unknown argument \"" + args[i] + "\"");
 		}
 		
@@ -319,16 +344,10 @@ public class Trainer {
 		CountDownLatch latch = new CountDownLatch(p);
 		Distributor dist = new Distributor(jobList);
 		
-		// generate the workers
+		// generate the workers; each loads its own models in its thread
 		Worker [] threads = new Worker [p];
-		for (int j = 0; j < p; ++j) {
-			logger.info("Trainer.main(): preparing thread #" + j);
-			Configuration conf = new Configuration(new File(fConfig));
-			conf.loadCodebook(new File(fCodebook));
-			conf.cb.init();
-			
-			threads[j] = new Worker(conf, dist, latch);
-		}
+		for (int j = 0; j < p; ++j)
+			threads[j] = new Worker(new File(fConfig), new File(fCodebook), dist, latch);
 		
 		// start the execution
 		logger.info("Trainer.main(): begin training using " + p + " threads");
@@ -337,18 +356,25 @@ public class Trainer {
 		for (int j = 0; j < p; ++j)
 			e.execute(threads[j]);
 		
-		// wait for all jobs to be done
-		latch.await();
-		
-		// make sure the thread pool is done
-		e.shutdownNow();
+		Configuration conf;
+		try {
+			// wait for all jobs to be done
+			latch.await();
+			
+			for (Worker w : threads) {
+				if (w.error != null)
+					throw new Exception("Trainer.main(): worker failed, statistics incomplete", w.error);
+			}
+			
+			// combine the accumulators and re-estimate
+			logger.info("Trainer.main(): combining accumulators...");
+			conf = reduce(threads, e);
+		} finally {
+			// make sure the thread pool is done, also on errors
+			e.shutdownNow();
+		}
 		
-		// combine the accumulators and re-estimate
 		logger.info("Trainer.main(): re-estimating...");
-		Configuration conf = threads[0].conf;
-		for (int j = 1; j < p; ++j)
-			conf.cb.consume(threads[j].conf.cb);
-		
 		if (rho >= 0.) {
 			logger.info("propagating statistics...");
 			conf.th.propagate();
@@ -365,4 +391,25 @@ public class Trainer {
 		logger.info("Trainer.main(): writing out " + fCodebookOut);
 		conf.cb.write(new File(fCodebookOut));
 	}
+	
+	/**
+	 * Combine the Codebook accumulators of the workers as a tree, see 
+	 * TreeReduction; the order of the additions only depends on the number
+	 * of workers.
+	 * @return Configuration of the first worker, holding the sum of all
+	 */
+	private static Configuration reduce(Worker [] threads, ExecutorService e) 
+		throws InterruptedException {
+		Codebook [] cbs = new Codebook [threads.length];
+		for (int i = 0; i < threads.length; ++i)
+			cbs[i] = threads[i].conf.cb;
+		
+		TreeReduction.reduce(cbs, new TreeReduction.Merge<Codebook>() {
+			public void merge(Codebook target, Codebook source) {
+				target.consume(source);
+			}
+		}, e);
+		
+		return threads[0].conf;
+	}
 }
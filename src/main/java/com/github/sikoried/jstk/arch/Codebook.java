@@ -102,6 +102,15 @@ public class Codebook {
 		return shared.values();
 	}
 	
+	/**
+	 * Obtain the HMM with the given ID
+	 * @param id
+	 * @return null if there is no such model
+	 */
+	public Hmm getModel(int id) {
+		return models.get(id);
+	}
+	
 	/**
 	 * Replace the shared Mixture whose ID matches an already existing one.
 	 * @param m Mixture to insert (make sure ID is right)
@@ -236,19 +245,16 @@ public class Codebook {
 	}
 	
 	/**
-	 * Consume Accumulators of the referenced source Codebook
+	 * Consume Accumulators of the referenced source Codebook, typically the
+	 * replica of another training thread (see init()). Only this and the 
+	 * source are accessed, thus disjoint pairs may be combined in parallel.
 	 * @param source
 	 */
 	public void consume(Codebook source) {
 		for (Entry<Integer, Mixture> e : shared.entrySet()) {
-			if (!source.shared.containsKey(e.getKey())) {
-				logger.fatal("source Accumulator for shared mixture " + e.getKey() + " not found -- exitting.");
-				throw new RuntimeException();
-			}
-			
-			if (!source.sharedAccs.containsKey(e.getKey())) {
-				logger.fatal("source Accumulator for shared mixture " + e.getKey() + " not found -- exitting.");
-				throw new RuntimeException();
+			if (!source.shared.containsKey(e.getKey()) || !source.sharedAccs.containsKey(e.getKey())) {
+				logger.fatal("source Accumulator for shared mixture " + e.getKey() + " not found");
+				throw new RuntimeException("Codebook.consume(): source Accumulator for shared mixture " + e.getKey() + " not found");
 			}
 			
 			sharedAccs.get(e.getKey()).propagate(source.sharedAccs.get(e.getKey()));
@@ -256,8 +262,8 @@ public class Codebook {
 		
 		for (Entry<Integer, Hmm> e : models.entrySet()) {
 			if (!source.models.containsKey(e.getKey())) {
-				logger.fatal("source Accumulator for model " + e.getKey() + " not found -- exitting.");
-				System.exit(1);
+				logger.fatal("source Accumulator for model " + e.getKey() + " not found");
+				throw new RuntimeException("Codebook.consume(): source Accumulator for model " + e.getKey() + " not found");
 			}
 			e.getValue().propagate(source.models.get(e.getKey()));
 		}
@@ -0,0 +1,642 @@
+/*
+	Copyright (c) 2009-2011
+		Speech Group at Informatik 5, Univ. Erlangen-Nuremberg, GERMANY
+		Korbinian Riedhammer
+		Tobias Bocklet
+
+	This file is part of the Java Speech Toolkit (JSTK).
+
+	The JSTK is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	The JSTK is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with the JSTK. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.github.sikoried.jstk.decoder;
+
+import com.github.sikoried.jstk.arch.Token;
+import com.github.sikoried.jstk.arch.TokenHierarchy;
+import com.github.sikoried.jstk.arch.TokenTree;
+import com.github.sikoried.jstk.arch.Tokenization;
+import com.github.sikoried.jstk.arch.TreeNode;
+import com.github.sikoried.jstk.stat.Density;
+import com.github.sikoried.jstk.stat.Mixture;
+import com.github.sikoried.jstk.stat.hmm.CState;
+import com.github.sikoried.jstk.stat.hmm.Hmm;
+import com.github.sikoried.jstk.stat.hmm.SCState;
+import com.github.sikoried.jstk.stat.hmm.State;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Benchmarks for the ViterbiBeamSearch on synthetic data: randomly generated
+ * bi-gram LST networks with random 3-state HMMs, and random observations.
+ *
+ * @author sikoried
+ */
+public final class DecoderBenchmark {
+	private DecoderBenchmark() {
+
+	}
+
+	/**
+	 * Generate a synthetic bi-gram LST network: numWords random words of 2 to 5
+	 * tokens, each token a 3-state left-to-right HMM with 2 diagonal Gaussians
+	 * per state; the LM probabilities are random.
+	 */
+	public static TreeNode synthesizeNetwork(int numTokens, int numWords, int fd, Random rnd) {
+		return synthesizeNetwork(numTokens, numWords, fd, 2, false, rnd);
+	}
+
+	/**
+	 * Generate a synthetic bi-gram LST network with nd diagonal Gaussians per
+	 * state; if semiContinuous is set, all states share a codebook of nd
+	 * Gaussians.
+	 */
+	public static TreeNode synthesizeNetwork(int numTokens, int numWords, int fd, int nd, boolean semiContinuous, Random rnd) {
+		Mixture shared = semiContinuous ? randomMixture(fd, nd, rnd) : null;
+		Token [] tokens = new Token [numTokens];
+		for (int i = 0; i < numTokens; ++i) {
+			tokens[i] = new Token("t" + i);
+			Hmm hmm = new Hmm(i, (short) 3, randomState(fd, nd, shared, rnd));
+			for (int j = 0; j < 3; ++j)
+				hmm.s[j] = randomState(fd, nd, shared, rnd);
+			hmm.a[0][0] = hmm.a[1][1] = .6f;
+			hmm.a[0][1] = hmm.a[1][2] = .4f;
+			hmm.a[2][2] = 1.f;
+			tokens[i].setHMM(hmm);
+		}
+
+		Tokenization [] words = new Tokenization [numWords];
+		Token [][] seqs = new Token [numWords][];
+		for (int i = 0; i < numWords; ++i) {
+			int len = 2 + rnd.nextInt(4);
+			String [] trans = new String [len];
+			seqs[i] = new Token [len];
+			for (int j = 0; j < len; ++j) {
+				seqs[i][j] = tokens[rnd.nextInt(numTokens)];
+				trans[j] = seqs[i][j].token;
+			}
+			words[i] = new Tokenization("w" + i, trans);
+		}
+
+		// uni-gram tree as entry, one bi-gram tree per predecessor word
+		int id = 0;
+		TokenTree unigram = new TokenTree(id++);
+		TreeNode [] entries = new TreeNode [numWords];
+		for (int i = 0; i < numWords; ++i)
+			entries[i] = unigram.addToTree(words[i], seqs[i], rnd.nextFloat() + 1e-3f);
+		unigram.factor();
+
+		TokenTree [] lsts = new TokenTree [numWords];
+		TreeNode [][] leaves = new TreeNode [numWords][numWords];
+		for (int i = 0; i < numWords; ++i) {
+			lsts[i] = new TokenTree(id++);
+			for (int j = 0; j < numWords; ++j)
+				leaves[i][j] = lsts[i].addToTree(words[j], seqs[j], rnd.nextFloat() + 1e-3f);
+			lsts[i].factor();
+		}
+
+		for (int i = 0; i < numWords; ++i) {
+			entries[i].setLst(lsts[i].root);
+			for (int j = 0; j < numWords; ++j)
+				leaves[i][j].setLst(lsts[j].root);
+		}
+
+		return unigram.root;
+	}
+
+	private static State randomState(int fd, int nd, Mixture shared, Random rnd) {
+		if (shared == null)
+			return new CState(randomMixture(fd, nd, rnd));
+
+		SCState s = new SCState(shared);
+		double [] c = new double [nd];
+		double sum = 0.;
+		for (int i = 0; i < nd; ++i)
+			sum += (c[i] = rnd.nextDouble());
+		for (int i = 0; i < nd; ++i)
+			c[i] /= sum;
+		s.setWeights(c);
+		return s;
+	}
+
+	private static Mixture randomMixture(int fd, int nd, Random rnd) {
+		Mixture m = new Mixture(fd, nd, true);
+		for (Density d : m.components) {
+			double [] mue = new double [fd];
+			double [] cov = new double [fd];
+			for (int i = 0; i < fd; ++i) {
+				mue[i] = rnd.nextGaussian();
+				cov[i] = .5 + rnd.nextDouble();
+			}
+			d.fill(1. / nd, mue, cov);
+		}
+		return m;
+	}
+
+	/**
+	 * Generate a sequence of standard normal observations
+	 */
+	public static List<double []> synthesizeObservations(int numFrames, int fd, Random rnd) {
+		List<double []> obs = new ArrayList<double []>(numFrames);
+		for (int i = 0; i < numFrames; ++i) {
+			double [] x = new double [fd];
+			for (int j = 0; j < fd; ++j)
+				x[j] = rnd.nextGaussian();
+			obs.add(x);
+		}
+		return obs;
+	}
+
+	/**
+	 * Time the recombination of the SlotList (hashed) against a linear scan
+	 * for the given number of distinct hypotheses (3 candidates per hypothesis).
+	 */
+	private static void recombination(int [] sizes, int frames, boolean linear, Random rnd) {
+		System.out.println("beam_size candidates hashed_ms/frame linear_ms/frame speedup");
+		for (int bs : sizes) {
+			int nc = 3 * bs;
+			int [] node = new int [nc];
+			short [] state = new short [nc];
+			double [] score = new double [nc];
+			for (int i = 0; i < nc; ++i) {
+				int key = rnd.nextInt(bs);
+				node[i] = key / 3;
+				state[i] = (short) (key % 3);
+				score[i] = rnd.nextDouble();
+			}
+
+			ViterbiBeamSearch.SlotList list = new ViterbiBeamSearch.SlotList(1024);
+
+			// warm-up
+			for (int i = 0; i < nc; ++i)
+				list.vadd(node[i], state[i], score[i], score[i], i);
+
+			long t0 = System.nanoTime();
+			for (int f = 0; f < frames; ++f) {
+				list.clear();
+				for (int i = 0; i < nc; ++i)
+					list.vadd(node[i], state[i], score[i], score[i], i);
+			}
+			double hashed = (System.nanoTime() - t0) / 1e6 / frames;
+
+			if (!linear) {
+				System.out.println(bs + " " + nc + " " + hashed + " - -");
+				continue;
+			}
+
+			ViterbiBeamSearch.SlotList ref = new ViterbiBeamSearch.SlotList(1024);
+			t0 = System.nanoTime();
+			for (int f = 0; f < frames; ++f) {
+				ref.clear();
+				for (int i = 0; i < nc; ++i)
+					linearVadd(ref, node[i], state[i], score[i], score[i], i);
+			}
+			double scan = (System.nanoTime() - t0) / 1e6 / frames;
+
+			if (ref.size != list.size)
+				throw new RuntimeException("recombination mismatch: " + ref.size + " != " + list.size);
+
+			System.out.println(bs + " " + nc + " " + hashed + " " + scan + " " + (scan / hashed));
+		}
+	}
+
+	/**
+	 * Reference recombination by linear search
+	 */
+	private static void linearVadd(ViterbiBeamSearch.SlotList l, int n, short s, double v, double a, int b) {
+		for (int i = 0; i < l.size; ++i) {
+			if (l.node[i] == n && l.state[i] == s) {
+				if (l.vs[i] < v)
+					l.set(i, n, s, v, a, b);
+				return;
+			}
+		}
+		l.add(n, s, v, a, b);
+	}
+
+	/**
+	 * Decode a synthetic utterance with the given beam sizes
+	 */
+	private static void decode(int [] sizes, int numTokens, int numWords, int numFrames, int nd, boolean sc, ViterbiBeamSearch.Pruning pruning, Random rnd) {
+		int fd = 13;
+		TreeNode root = synthesizeNetwork(numTokens, numWords, fd, nd, sc, rnd);
+		List<double []> obs = synthesizeObservations(numFrames, fd, rnd);
+
+		System.out.println("beam_size ms/frame avg_expanded avg_active cache_hit_rate score");
+		for (int bs : sizes) {
+			ViterbiBeamSearch dec = new ViterbiBeamSearch(root, 2., .5);
+			dec.setPruning(pruning);
+
+			long expanded = 0, act = 0;
+			long t0 = System.nanoTime();
+			dec.initialize(bs, Double.MAX_VALUE, obs.get(0));
+			for (int i = 1; i < obs.size(); ++i) {
+				dec.step(obs.get(i));
+				expanded += dec.getCurrentExpandedSize();
+				act += dec.getCurrentBeamSize();
+			}
+			dec.conclude();
+			double ms = (System.nanoTime() - t0) / 1e6 / numFrames;
+
+			System.out.println(bs + " " + ms + " " + (expanded / (numFrames - 1)) + " " + (act / (numFrames - 1)) + " " + dec.getEmissionCacheHitRate() + " " + dec.getBestHypothesis().vs);
+		}
+	}
+
+	/**
+	 * Decode a synthetic utterance with the given numbers of scoring threads
+	 * and compare the results to the serial decoder.
+	 */
+	private static void threads(int [] sizes, int [] threads, int numTokens, int numWords, int numFrames, int nd, boolean sc, ViterbiBeamSearch.Pruning pruning, Random rnd) {
+		int fd = 13;
+		TreeNode root = synthesizeNetwork(numTokens, numWords, fd, nd, sc, rnd);
+		List<double []> obs = synthesizeObservations(numFrames, fd, rnd);
+
+		System.out.println("beam_size threads ms/frame speedup evaluations/frame identical");
+		for (int bs : sizes) {
+			ViterbiBeamSearch dec = new ViterbiBeamSearch(root, 2., .5);
+			dec.setPruning(pruning);
+
+			String reference = null;
+			double serial = 0.;
+			for (int nt : threads) {
+				dec.setNumThreads(nt);
+
+				// warm-up
+				decode(dec, bs, obs.subList(0, Math.min(obs.size(), 20)));
+
+				long t0 = System.nanoTime();
+				String result = decode(dec, bs, obs);
+				double ms = (System.nanoTime() - t0) / 1e6 / numFrames;
+
+				if (reference == null) {
+					reference = result;
+					serial = ms;
+				}
+
+				System.out.println(bs + " " + nt + " " + ms + " " + (serial / ms) + " " + (dec.getEmissionEvaluations() / numFrames) + " " + reference.equals(result));
+			}
+
+			dec.shutdown();
+		}
+	}
+
+	/**
+	 * Decode a synthetic utterance offline and online (committing the stable
+	 * prefix every interval frames); compare the word sequences and the peak
+	 * size of the search trace.
+	 */
+	private static void online(int [] sizes, int interval, int numTokens, int numWords, int numFrames, ViterbiBeamSearch.Pruning pruning, Random rnd) {
+		int fd = 13;
+		TreeNode root = synthesizeNetwork(numTokens, numWords, fd, rnd);
+		List<double []> obs = synthesizeObservations(numFrames, fd, rnd);
+
+		System.out.println("beam_size offline_peak_trace online_peak_trace committed_words total_words identical");
+		for (int bs : sizes) {
+			ViterbiBeamSearch dec = new ViterbiBeamSearch(root, 2., .5);
+			dec.setPruning(pruning);
+
+			List<String> reference = new ArrayList<String>();
+			int offlinePeak = 0;
+			dec.initialize(bs, Double.MAX_VALUE, obs.get(0));
+			for (int i = 1; i < obs.size(); ++i) {
+				dec.step(obs.get(i));
+				offlinePeak = Math.max(offlinePeak, dec.getTraceSize());
+			}
+			dec.conclude();
+			for (ViterbiBeamSearch.Hypothesis w : dec.getBestHypothesis().extractWords())
+				reference.add(w.node.word.word);
+
+			// fresh decoder, as the trace does not shrink
+			dec = new ViterbiBeamSearch(root, 2., .5);
+			dec.setPruning(pruning);
+
+			List<String> result = new ArrayList<String>();
+			int onlinePeak = 0;
+			dec.initialize(bs, Double.MAX_VALUE, obs.get(0));
+			for (int i = 1; i < obs.size(); ++i) {
+				dec.step(obs.get(i));
+				onlinePeak = Math.max(onlinePeak, dec.getTraceSize());
+				if ((i + 1) % interval == 0) {
+					ViterbiBeamSearch.Hypothesis h = dec.commit();
+					if (h != null) {
+						for (ViterbiBeamSearch.Hypothesis w : h.extractWords())
+							result.add(w.node.word.word);
+					}
+				}
+			}
+			int committed = result.size();
+			dec.conclude();
+			for (ViterbiBeamSearch.Hypothesis w : dec.getBestHypothesis().extractWords())
+				result.add(w.node.word.word);
+
+			System.out.println(bs + " " + offlinePeak + " " + onlinePeak + " " + committed + " " + result.size() + " " + reference.equals(result));
+		}
+	}
+
+	/**
+	 * Compile a synthetic network, write it to a file and load it again;
+	 * compare the timing and the decoding results.
+	 */
+	private static void network(int [] sizes, int numTokens, int numWords, int numFrames, Random rnd) throws IOException {
+		int fd = 13;
+		long t0 = System.nanoTime();
+		TreeNode root = synthesizeNetwork(numTokens, numWords, fd, rnd);
+		double generate = (System.nanoTime() - t0) / 1e6;
+
+		t0 = System.nanoTime();
+		Network net = Network.compile(root);
+		double compile = (System.nanoTime() - t0) / 1e6;
+
+		File file = File.createTempFile("jstk", ".net");
+		file.deleteOnExit();
+		net.write(file);
+
+		TokenHierarchy th = new TokenHierarchy();
+		for (Token t : net.tokens)
+			th.addToken(t);
+
+		t0 = System.nanoTime();
+		Network loaded = Network.read(file, th);
+		double load = (System.nanoTime() - t0) / 1e6;
+
+		System.out.println("nodes=" + net.getNumberOfNodes() + " states=" + net.getNumberOfStates() + " file_bytes=" + file.length());
+		System.out.println("generate_ms=" + generate + " compile_ms=" + compile + " load_ms=" + load);
+
+		List<double []> obs = synthesizeObservations(numFrames, fd, rnd);
+		System.out.println("beam_size compiled loaded identical");
+		for (int bs : sizes) {
+			String a = decode(new ViterbiBeamSearch(net, 2., .5), bs, obs);
+			String b = decode(new ViterbiBeamSearch(loaded, 2., .5), bs, obs);
+			System.out.println(bs + " " + a.substring(0, a.indexOf(' ')) + " " + b.substring(0, b.indexOf(' ')) + " " + a.equals(b));
+		}
+	}
+
+	/**
+	 * Decode a synthetic utterance with lattice generation; report the lattice
+	 * size, the N-best extraction time and compare the best lattice path to
+	 * the best hypothesis.
+	 */
+	private static void lattice(int [] sizes, int nbest, int numTokens, int numWords, int numFrames, ViterbiBeamSearch.Pruning pruning, Random rnd) {
+		int fd = 13;
+		TreeNode root = synthesizeNetwork(numTokens, numWords, fd, rnd);
+		List<double []> obs = synthesizeObservations(numFrames, fd, rnd);
+
+		System.out.println("beam_size ms/frame lattice_ms/frame word_ends nodes bytes nbest_ms distinct identical_best");
+		for (int bs : sizes) {
+			ViterbiBeamSearch dec = new ViterbiBeamSearch(root, 2., .5);
+			dec.setPruning(pruning);
+
+			// warm-up
+			decode(dec, bs, obs);
+
+			long t0 = System.nanoTime();
+			decode(dec, bs, obs);
+			double plain = (System.nanoTime() - t0) / 1e6 / numFrames;
+
+			dec.setLatticeGeneration(true);
+			t0 = System.nanoTime();
+			decode(dec, bs, obs);
+			double ms = (System.nanoTime() - t0) / 1e6 / numFrames;
+
+			StringBuffer sb = new StringBuffer();
+			for (ViterbiBeamSearch.Hypothesis w : dec.getBestHypothesis().extractWords())
+				sb.append((sb.length() > 0 ? " " : "") + w.node.word.word);
+
+			Lattice lat = dec.getLattice();
+			t0 = System.nanoTime();
+			List<Lattice.Path> paths = lat.getBestPaths(nbest, true);
+			double nb = (System.nanoTime() - t0) / 1e6;
+
+			System.out.println(bs + " " + plain + " " + ms + " " + lat.size() + " " + lat.getNumberOfNodes() + " " + lat.getMemoryUsage() + " " + nb + " " + paths.size() + " " + paths.get(0).getWordSequence().equals(sb.toString()));
+		}
+	}
+
+	/**
+	 * Decode a synthetic utterance without the phone end, word end and
+	 * look-ahead beams, then with each of the given widths applied to all
+	 * three; report the speed, the number of emission evaluations and the
+	 * loss in score and words relative to the unpruned reference.
+	 */
+	private static void ends(int [] sizes, double [] widths, int wordEndSize, int numTokens, int numWords, int numFrames, ViterbiBeamSearch.Pruning pruning, Random rnd) {
+		int fd = 13;
+		TreeNode root = synthesizeNetwork(numTokens, numWords, fd, rnd);
+		List<double []> obs = synthesizeObservations(numFrames, fd, rnd);
+
+		System.out.println("beam_size width ms/frame speedup evaluations/frame avg_expanded avg_end_pruned score score_loss identical_words");
+		for (int bs : sizes) {
+			String reference = null;
+			double refScore = 0., refMs = 0.;
+			for (int j = -1; j < widths.length; ++j) {
+				ViterbiBeamSearch dec = new ViterbiBeamSearch(root, 2., .5);
+				dec.setPruning(pruning);
+				if (j >= 0) {
+					dec.setPhoneEndBeam(widths[j]);
+					dec.setWordEndBeam(widths[j], wordEndSize);
+					dec.setLookAheadBeam(widths[j]);
+				}
+
+				long expanded = 0, pruned = 0;
+				long t0 = System.nanoTime();
+				dec.initialize(bs, Double.MAX_VALUE, obs.get(0));
+				for (int i = 1; i < obs.size(); ++i) {
+					dec.step(obs.get(i));
+					expanded += dec.getCurrentExpandedSize();
+					pruned += dec.getCurrentEndPrunedSize();
+				}
+				dec.conclude();
+				double ms = (System.nanoTime() - t0) / 1e6 / numFrames;
+
+				ViterbiBeamSearch.Hypothesis best = dec.getBestHypothesis();
+				StringBuffer sb = new StringBuffer();
+				for (ViterbiBeamSearch.Hypothesis w : best.extractWords())
+					sb.append((sb.length() > 0 ? " " : "") + w.node.word.word);
+				if (reference == null) {
+					reference = sb.toString();
+					refScore = best.vs;
+					refMs = ms;
+				}
+
+				System.out.println(bs + " " + (j < 0 ? "off" : Double.toString(widths[j])) + " " + ms + " " + (refMs / ms) + " " + (dec.getEmissionEvaluations() / numFrames) + " " + (expanded / (numFrames - 1)) + " " + (pruned / (numFrames - 1)) + " " + best.vs + " " + (refScore - best.vs) + " " + reference.equals(sb.toString()));
+			}
+		}
+	}
+
+	/**
+	 * Decode the observations, return the score and compact string of the
+	 * best hypothesis.
+	 */
+	private static String decode(ViterbiBeamSearch dec, int bs, List<double []> obs) {
+		dec.initialize(bs, Double.MAX_VALUE, obs.get(0));
+		for (int i = 1; i < obs.size(); ++i)
+			dec.step(obs.get(i));
+		dec.conclude();
+
+		ViterbiBeamSearch.Hypothesis h = dec.getBestHypothesis();
+		return h.vs + " " + h.toCompactString();
+	}
+
+	private static int [] parseSizes(String arg) {
+		String [] sp = arg.split(",");
+		int [] sizes = new int [sp.length];
+		for (int i = 0; i < sp.length; ++i)
+			sizes[i] = Integer.parseInt(sp[i]);
+		return sizes;
+	}
+
+	private static double [] parseWidths(String arg) {
+		String [] sp = arg.split(",");
+		double [] widths = new double [sp.length];
+		for (int i = 0; i < sp.length; ++i)
+			widths[i] = Double.parseDouble(sp[i]);
+		return widths;
+	}
+
+	public static final String SYNOPSIS =
+		"Benchmarks for the Viterbi beam search on synthetic data.\n\n" +
+		"usage: decoder.DecoderBenchmark mode [options]\n" +
+		"mode:\n" +
+		"  recombination\n" +
+		"    Time the hashed recombination of the SlotList against a linear\n" +
+		"    scan; 3 candidates per distinct hypothesis.\n" +
+		"  decode\n" +
+		"    Decode a synthetic utterance with a random bi-gram network.\n" +
+		"  threads\n" +
+		"    Decode a synthetic utterance with parallel emission scoring; reports\n" +
+		"    the speed-up and whether the result matches the first thread count.\n" +
+		"  online\n" +
+		"    Decode a synthetic utterance offline and online, committing the\n" +
+		"    stable prefix periodically; compares the words and trace sizes.\n" +
+		"  network\n" +
+		"    Compile a synthetic network, write and load it again; compares the\n" +
+		"    timing and the decoding results.\n" +
+		"  lattice\n" +
+		"    Decode a synthetic utterance with lattice generation; report the\n" +
+		"    lattice size and the time to extract the distinct N-best list.\n" +
+		"  ends\n" +
+		"    Decode a synthetic utterance without the phone end, word end and LM\n" +
+		"    look-ahead beams, then with each width of -e applied to all three;\n" +
+		"    reports speed, emissions and the loss in score and words.\n" +
+		"options:\n" +
+		"  -b size1,size2,...\n" +
+		"    Beam sizes (default: 1000,10000,100000)\n" +
+		"  -n num\n" +
+		"    Number of frames (default: recombination 3, decode 200)\n" +
+		"  -t num\n" +
+		"    decode: Number of tokens (default: 40, ends 400)\n" +
+		"  -w num\n" +
+		"    decode: Number of words (default: 100)\n" +
+		"  -g num\n" +
+		"    decode: Number of Gaussians per state (default: decode 2, threads 16)\n" +
+		"  --sc\n" +
+		"    decode: Use semi-continuous states sharing a single codebook\n" +
+		"  -c frames\n" +
+		"    online: Commit interval (default: 50)\n" +
+		"  -N num\n" +
+		"    lattice: Number of distinct paths to extract (default: 100)\n" +
+		"  -e width1,width2,...\n" +
+		"    ends: Phone end, word end and LM look-ahead beam widths; the decoder\n" +
+		"    leaves these beams disabled unless set (default: 30,20,15,10)\n" +
+		"  -ws size\n" +
+		"    ends: Maximum number of word ends per frame (default: 500)\n" +
+		"  -p n1,n2,...\n" +
+		"    threads: Numbers of threads (default: 1,2,4,8,16)\n" +
+		"  -pm <sort|select|histogram>\n" +
+		"    decode: Pruning strategy (default: sort)\n" +
+		"  --no-linear\n" +
+		"    recombination: Skip the linear scan reference.\n" +
+		"  --seed num\n" +
+		"    Seed for the random number generator (default: 42)\n";
+
+	public static void main(String [] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println(SYNOPSIS);
+			System.exit(1);
+		}
+
+		String mode = args[0];
+		int [] sizes = { 1000, 10000, 100000 };
+		int frames = -1;
+		int numTokens = -1;
+		int numWords = 100;
+		int nd = -1;
+		boolean sc = false;
+		int [] threads = { 1, 2, 4, 8, 16 };
+		int interval = 50;
+		int nbest = 100;
+		double [] widths = { 30., 20., 15., 10. };
+		int wordEndSize = 500;
+		boolean linear = true;
+		long seed = 42;
+		ViterbiBeamSearch.Pruning pruning = ViterbiBeamSearch.Pruning.SORT;
+
+		for (int i = 1; i < args.length; ++i) {
+			if (args[i].equals("-b"))
+				sizes = parseSizes(args[++i]);
+			else if (args[i].equals("-n"))
+				frames = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-t"))
+				numTokens = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-w"))
+				numWords = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-g"))
+				nd = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--sc"))
+				sc = true;
+			else if (args[i].equals("-c"))
+				interval = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-N"))
+				nbest = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-e"))
+				widths = parseWidths(args[++i]);
+			else if (args[i].equals("-ws"))
+				wordEndSize = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-p"))
+				threads = parseSizes(args[++i]);
+			else if (args[i].equals("-pm"))
+				pruning = ViterbiBeamSearch.Pruning.valueOf(args[++i].toUpperCase());
+			else if (args[i].equals("--no-linear"))
+				linear = false;
+			else if (args[i].equals("--seed"))
+				seed = Long.parseLong(args[++i]);
+			else
+				throw new IOException("Invalid argument \"" + args[i] + "\"");
+		}
+
+		// the ends mode needs more states than active hypotheses, otherwise
+		// the end beams cannot save any emission evaluations
+		if (numTokens < 1)
+			numTokens = mode.equals("ends") ? 400 : 40;
+
+		Random rnd = new Random(seed);
+
+		if (mode.equals("recombination"))
+			recombination(sizes, frames < 1 ? 3 : frames, linear, rnd);
+		else if (mode.equals("decode"))
+			decode(sizes, numTokens, numWords, frames < 2 ? 200 : frames, nd < 1 ? 2 : nd, sc, pruning, rnd);
+		else if (mode.equals("online"))
+			online(sizes, interval, numTokens, numWords, frames < 2 ? 2000 : frames, pruning, rnd);
+		else if (mode.equals("lattice"))
+			lattice(sizes, nbest, numTokens, numWords, frames < 2 ? 200 : frames, pruning, rnd);
+		else if (mode.equals("ends"))
+			ends(sizes, widths, wordEndSize, numTokens, numWords, frames < 2 ? 200 : frames, pruning, rnd);
+		else if (mode.equals("network"))
+			network(sizes, numTokens, numWords, frames < 2 ? 200 : frames, rnd);
+		else if (mode.equals("threads"))
+			threads(sizes, threads, numTokens, numWords, frames < 2 ? 200 : frames, nd < 1 ? 16 : nd, sc, pruning, rnd);
+		else
+			throw new IOException("Invalid mode \"" + mode + "\"");
+	}
+}
@@ -0,0 +1,497 @@
+/*
+	Copyright (c) 2009-2011
+		Speech Group at Informatik 5, Univ. Erlangen-Nuremberg, GERMANY
+		Korbinian Riedhammer
+		Tobias Bocklet
+
+	This file is part of the Java Speech Toolkit (JSTK).
+
+	The JSTK is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	The JSTK is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with the JSTK. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.github.sikoried.jstk.decoder;
+
+import com.github.sikoried.jstk.arch.Tokenization;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Word lattice generated by the ViterbiBeamSearch. During the search, each
+ * word end that is continued by a surviving hypothesis is appended to an
+ * arena of primitive arrays: the word node, the end frame, the preceding word
+ * end, and the acoustic and LM scores of the word. Word ends of the same word
+ * and LM state (lexical successor tree) at the same frame form a lattice node;
+ * each word end is an arc into its node.
+ * <p>
+ * The lattice supports exact N-best extraction (A* search with the exact
+ * forward scores as heuristic) and rescoring with new LM weight, insertion
+ * penalty or LM scores.
+ *
+ * @author sikoried
+ */
+public final class Lattice {
+	/** initial capacity of the arena */
+	private static final int INITIAL_CAPACITY = 4096;
+
+	/** network the word nodes refer to */
+	private Network net;
+
+	/** number of word ends */
+	private int size = 0;
+
+	/** word node, end frame and preceding word end (-1 for the start) */
+	private int [] node;
+	private int [] end;
+	private int [] pred;
+
+	/** Viterbi score at the word end */
+	private double [] vs;
+
+	/** acoustic and (unweighted) LM log-likelihood of the word */
+	private double [] ac;
+	private double [] lm;
+
+	/** word ends the search concluded with */
+	private int [] finals = new int [0];
+
+	/** score of the final hypotheses beyond their last word end (unfinished words) */
+	private double [] finalScores = new double [0];
+
+	/** LM weight and (logarithmic) insertion penalty of the search */
+	private final double searchLmwt;
+	private final double searchWip;
+
+	/** LM weight and (logarithmic) insertion penalty to combine the scores */
+	private double lmwt;
+	private double wip;
+
+	/** lattice nodes (0: start) of the word ends; valid if built */
+	private int [] target;
+
+	/** word end representing each lattice node (-1 for the start) */
+	private int [] representative;
+
+	/** incoming arcs (word ends) of node v: inArcs[inStart[v]...inStart[v+1]-1] */
+	private int [] inStart;
+	private int [] inArcs;
+
+	/** best score from the start to each node */
+	private double [] forward;
+
+	/** is the graph structure up to date? */
+	private boolean built = false;
+
+	/**
+	 * Create an empty lattice for the given network and the weights of the
+	 * search.
+	 * @param lmWeight (linear)
+	 * @param logInsertionPenalty word insertion penalty (logarithmic)
+	 */
+	Lattice(Network net, double lmWeight, double logInsertionPenalty) {
+		this.net = net;
+		this.lmwt = searchLmwt = lmWeight;
+		this.wip = searchWip = logInsertionPenalty;
+
+		node = new int [INITIAL_CAPACITY];
+		end = new int [INITIAL_CAPACITY];
+		pred = new int [INITIAL_CAPACITY];
+		vs = new double [INITIAL_CAPACITY];
+		ac = new double [INITIAL_CAPACITY];
+		lm = new double [INITIAL_CAPACITY];
+	}
+
+	/**
+	 * Remove all word ends and restore the weights of the search
+	 */
+	public void clear() {
+		size = 0;
+		finals = new int [0];
+		finalScores = new double [0];
+		lmwt = searchLmwt;
+		wip = searchWip;
+		built = false;
+	}
+
+	/**
+	 * Add a word end; the acoustic score of the word is the difference of the
+	 * Viterbi scores minus the weighted LM score and insertion penalty.
+	 * @param n word node
+	 * @param frame last frame of the word
+	 * @param p preceding word end, -1 if none
+	 * @param v Viterbi score at the word end
+	 * @return index of the word end
+	 */
+	int add(int n, int frame, int p, double v) {
+		if (size == node.length) {
+			int c = size * 2;
+			node = Arrays.copyOf(node, c);
+			end = Arrays.copyOf(end, c);
+			pred = Arrays.copyOf(pred, c);
+			vs = Arrays.copyOf(vs, c);
+			ac = Arrays.copyOf(ac, c);
+			lm = Arrays.copyOf(lm, c);
+		}
+
+		double l = net.lm[n];
+
+		node[size] = n;
+		end[size] = frame;
+		pred[size] = p;
+		vs[size] = v;
+		ac[size] = v - (p < 0 ? 0. : vs[p]) - searchLmwt * l - searchWip;
+		lm[size] = l;
+
+		built = false;
+
+		return size++;
+	}
+
+	/**
+	 * Set the word ends the search concluded with
+	 * @param finals word ends
+	 * @param scores final Viterbi scores of the respective hypotheses
+	 */
+	void setFinals(int [] finals, double [] scores) {
+		this.finals = finals;
+		this.finalScores = new double [finals.length];
+		for (int i = 0; i < finals.length; ++i)
+			finalScores[i] = scores[i] - vs[finals[i]];
+		built = false;
+	}
+
+	/**
+	 * Determine the final score of each lattice node, -infinity if it is not
+	 * final.
+	 */
+	private double [] finalScores() {
+		double [] fs = new double [representative.length];
+		Arrays.fill(fs, Double.NEGATIVE_INFINITY);
+		for (int i = 0; i < finals.length; ++i)
+			fs[target[finals[i]]] = Math.max(fs[target[finals[i]]], finalScores[i]);
+		return fs;
+	}
+
+	/**
+	 * Get the number of word ends (arcs)
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Get the number of lattice nodes, including the start node
+	 */
+	public int getNumberOfNodes() {
+		build();
+		return representative.length;
+	}
+
+	/**
+	 * Get the approximate memory used by the arena in bytes
+	 */
+	public long getMemoryUsage() {
+		return (long) node.length * (3 * 4 + 3 * 8);
+	}
+
+	/**
+	 * Rescore the lattice with the given LM weight and insertion penalty
+	 * @param lmWeight (linear)
+	 * @param insertionPenalty word insertion penalty (0...1)
+	 */
+	public void rescore(double lmWeight, double insertionPenalty) {
+		lmwt = lmWeight;
+		wip = Math.log(insertionPenalty);
+		built = false;
+	}
+
+	/**
+	 * Provides new LM log-probabilities for rescoring
+	 */
+	public static interface Rescorer {
+		/**
+		 * Get the LM log-probability of the word given its predecessor
+		 * @param predecessor null at the start of the utterance
+		 * @param word
+		 */
+		double score(Tokenization predecessor, Tokenization word);
+	}
+
+	/**
+	 * Replace the LM scores of all words using the given Rescorer. As the
+	 * lattice nodes are distinguished by word, this is exact for bi-gram
+	 * models.
+	 */
+	public void rescore(Rescorer r) {
+		for (int i = 0; i < size; ++i)
+			lm[i] = r.score(pred[i] < 0 ? null : net.getWord(node[pred[i]]), net.getWord(node[i]));
+		built = false;
+	}
+
+	/**
+	 * Score of word end (arc) i
+	 */
+	private double score(int i) {
+		return ac[i] + lmwt * lm[i] + wip;
+	}
+
+	/**
+	 * Merge the word ends into lattice nodes, index the incoming arcs and
+	 * compute the forward scores.
+	 */
+	private void build() {
+		if (built)
+			return;
+
+		// lattice node = (word, successor tree, end frame)
+		HashMap<Long, Integer> states = new HashMap<Long, Integer>();
+		HashMap<Long, Integer> ids = new HashMap<Long, Integer>();
+		ArrayList<Integer> reps = new ArrayList<Integer>();
+		reps.add(-1);
+
+		target = new int [size];
+		for (int i = 0; i < size; ++i) {
+			int n = node[i];
+			long sk = ((long) net.word[n] << 32) | (net.childStart[n] < net.childStart[n + 1] ? net.children[net.childStart[n]] : 0x7fffffff);
+			Integer s = states.get(sk);
+			if (s == null)
+				states.put(sk, s = states.size());
+
+			long key = ((long) s << 32) | end[i];
+			Integer v = ids.get(key);
+			if (v == null) {
+				ids.put(key, v = reps.size());
+				reps.add(i);
+			}
+			target[i] = v;
+		}
+
+		int nv = reps.size();
+		representative = new int [nv];
+		for (int i = 0; i < nv; ++i)
+			representative[i] = reps.get(i);
+
+		inStart = new int [nv + 1];
+		for (int i = 0; i < size; ++i)
+			inStart[target[i] + 1]++;
+		for (int v = 0; v < nv; ++v)
+			inStart[v + 1] += inStart[v];
+		inArcs = new int [size];
+		int [] fill = Arrays.copyOf(inStart, nv);
+		for (int i = 0; i < size; ++i)
+			inArcs[fill[target[i]]++] = i;
+
+		// word ends are appended in order of their end frame, predecessors first
+		forward = new double [nv];
+		Arrays.fill(forward, Double.NEGATIVE_INFINITY);
+		forward[0] = 0.;
+		for (int i = 0; i < size; ++i) {
+			double v = forward[source(i)] + score(i);
+			if (v > forward[target[i]])
+				forward[target[i]] = v;
+		}
+
+		built = true;
+	}
+
+	/**
+	 * Lattice node the word end i leaves from
+	 */
+	private int source(int i) {
+		return pred[i] < 0 ? 0 : target[pred[i]];
+	}
+
+	/**
+	 * A path through the lattice
+	 */
+	public static final class Path {
+		/** words, first and last frame of each word */
+		public final Tokenization [] words;
+		public final int [] start;
+		public final int [] end;
+
+		/** acoustic and LM log-likelihood of each word */
+		public final double [] ac;
+		public final double [] lm;
+
+		/** total score */
+		public final double score;
+
+		private Path(int len, double score) {
+			words = new Tokenization [len];
+			start = new int [len];
+			end = new int [len];
+			ac = new double [len];
+			lm = new double [len];
+			this.score = score;
+		}
+
+		/**
+		 * Get the word sequence separated by blanks
+		 */
+		public String getWordSequence() {
+			StringBuffer sb = new StringBuffer();
+			for (int i = 0; i < words.length; ++i) {
+				if (i > 0)
+					sb.append(" ");
+				sb.append(words[i].word);
+			}
+			return sb.toString();
+		}
+
+		public String toString() {
+			StringBuffer sb = new StringBuffer();
+			sb.append(score);
+			for (int i = 0; i < words.length; ++i)
+				sb.append(" (" + words[i].word + ", " + start[i] + ", " + end[i] + ", " + ac[i] + ", " + lm[i] + ")");
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * Partial path from a lattice node to the end, for the A* search
+	 */
+	private static final class Partial implements Comparable<Partial> {
+		final int v;
+		final int arc;
+		final int length;
+		final double g;
+		final double f;
+		final Partial next;
+
+		Partial(int v, int arc, double g, double f, Partial next) {
+			this.v = v;
+			this.arc = arc;
+			this.g = g;
+			this.f = f;
+			this.next = next;
+			this.length = next == null ? 0 : next.length + 1;
+		}
+
+		public int compareTo(Partial o) {
+			return Double.compare(o.f, f);
+		}
+	}
+
+	/**
+	 * Get the best path through the lattice
+	 * @return null if the lattice is empty
+	 */
+	public Path getBestPath() {
+		List<Path> l = getBestPaths(1, false);
+		return l.size() > 0 ? l.get(0) : null;
+	}
+
+	/**
+	 * Extract the n best paths in order of their scores. The A* search starts
+	 * at the final nodes and works its way back to the start; as the forward
+	 * scores are exact, the paths are found in order.
+	 * @param n number of paths
+	 * @param distinct if true, skip paths with an already extracted word sequence
+	 */
+	public List<Path> getBestPaths(int n, boolean distinct) {
+		build();
+
+		List<Path> paths = new ArrayList<Path>(n);
+		HashSet<String> seen = new HashSet<String>();
+		PriorityQueue<Partial> agenda = new PriorityQueue<Partial>();
+
+		double [] fs = finalScores();
+		for (int v = 1; v < fs.length; ++v)
+			if (fs[v] > Double.NEGATIVE_INFINITY && forward[v] > Double.NEGATIVE_INFINITY)
+				agenda.add(new Partial(v, -1, fs[v], forward[v] + fs[v], null));
+
+		while (paths.size() < n && agenda.size() > 0) {
+			Partial p = agenda.poll();
+
+			if (p.v == 0) {
+				Path path = toPath(p);
+				if (!distinct || seen.add(path.getWordSequence()))
+					paths.add(path);
+				continue;
+			}
+
+			for (int j = inStart[p.v]; j < inStart[p.v + 1]; ++j) {
+				int i = inArcs[j];
+				int u = source(i);
+				if (forward[u] == Double.NEGATIVE_INFINITY)
+					continue;
+				double g = p.g + score(i);
+				agenda.add(new Partial(u, i, g, forward[u] + g, p));
+			}
+		}
+
+		return paths;
+	}
+
+	/**
+	 * Convert a complete partial path (starting at the start node)
+	 */
+	private Path toPath(Partial p) {
+		Path path = new Path(p.length, p.g);
+		int k = 0;
+		for (Partial it = p; it.next != null; it = it.next, ++k) {
+			int i = it.arc;
+			path.words[k] = net.getWord(node[i]);
+			path.start[k] = pred[i] < 0 ? 0 : end[pred[i]] + 1;
+			path.end[k] = end[i];
+			path.ac[k] = ac[i];
+			path.lm[k] = lm[i];
+		}
+		return path;
+	}
+
+	/**
+	 * Write the lattice in HTK standard lattice format (SLF); the node times
+	 * are frame indices, the word is attached to the arcs. A final null node
+	 * joins the final nodes; the score of unfinished words is attached to
+	 * these arcs.
+	 */
+	public void writeSLF(Writer w) throws IOException {
+		build();
+
+		int nv = representative.length;
+		double [] fs = finalScores();
+		boolean [] isFinal = new boolean [nv];
+		int numFinals = 0;
+		for (int v = 1; v < nv; ++v)
+			if (isFinal[v] = fs[v] > Double.NEGATIVE_INFINITY)
+				numFinals++;
+
+		w.append("VERSION=1.0\n");
+		w.append("lmscale=" + lmwt + " wdpenalty=" + wip + "\n");
+		w.append("N=" + (nv + 1) + " L=" + (size + numFinals) + "\n");
+
+		w.append("I=0 t=0\n");
+		for (int v = 1; v < nv; ++v)
+			w.append("I=" + v + " t=" + (end[representative[v]] + 1) + "\n");
+		int last = 0;
+		for (int v = 1; v < nv; ++v)
+			if (isFinal[v])
+				last = Math.max(last, end[representative[v]] + 1);
+		w.append("I=" + nv + " t=" + last + "\n");
+
+		int j = 0;
+		for (int i = 0; i < size; ++i)
+			w.append("J=" + (j++) + " S=" + source(i) + " E=" + target[i] + " W=" + net.getWord(node[i]).word + " a=" + ac[i] + " l=" + lm[i] + "\n");
+		for (int v = 0; v < nv; ++v)
+			if (isFinal[v])
+				w.append("J=" + (j++) + " S=" + v + " E=" + nv + " W=!NULL a=" + fs[v] + " l=0.0\n");
+	}
+}
@@ -0,0 +1,616 @@
+/*
+	Copyright (c) 2009-2011
+		Speech Group at Informatik 5, Univ. Erlangen-Nuremberg, GERMANY
+		Korbinian Riedhammer
+		Tobias Bocklet
+
+	This file is part of the Java Speech Toolkit (JSTK).
+
+	The JSTK is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	The JSTK is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with the JSTK. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.github.sikoried.jstk.decoder;
+
+import com.github.sikoried.jstk.arch.Configuration;
+import com.github.sikoried.jstk.arch.Token;
+import com.github.sikoried.jstk.arch.TokenHierarchy;
+import com.github.sikoried.jstk.arch.Tokenization;
+import com.github.sikoried.jstk.arch.TreeNode;
+import com.github.sikoried.jstk.io.IOUtil;
+import com.github.sikoried.jstk.lm.LanguageModel;
+import com.github.sikoried.jstk.stat.hmm.Hmm;
+import com.github.sikoried.jstk.stat.hmm.State;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * A decoding network compiled to flat arrays: the nodes of the LST network are
+ * enumerated breadth first (root: 0), successors, HMM states and transition
+ * log-probabilities are stored contiguously per node. The network can be
+ * written to a compact binary file and loaded by bulk-reading the arrays; only
+ * the light-weight TreeNode objects to report the hypotheses are rebuilt, the
+ * tokens (and thus the HMMs) are resolved using the TokenHierarchy.
+ *
+ * @author sikoried
+ */
+public final class Network {
+	private static Logger logger = LogManager.getLogger(Network.class);
+
+	/** file format identifier ("JNET") */
+	public static final int MAGIC = 0x4a4e4554;
+
+	/** file format version */
+	public static final int VERSION = 1;
+
+	/** tree nodes, for the hypotheses; the root is at 0 */
+	TreeNode [] nodes;
+
+	/** successors of node i: children[childStart[i]] ... children[childStart[i+1]-1] */
+	int [] childStart;
+	int [] children;
+
+	/** states of node i: stateIds[stateStart[i]] ... stateIds[stateStart[i+1]-1] */
+	int [] stateStart;
+	int [] stateIds;
+
+	/** distinct HMM states */
+	State [] states;
+
+	/** token (index) and position within its HMM of each distinct state */
+	int [] stateToken;
+	int [] stateIndex;
+
+	/** offset of the ns x ns transition log-probabilities of node i, -1 if none */
+	int [] transStart;
+	double [] logA;
+
+	/** factored (logarithmic) LM weight of each node */
+	float [] f;
+
+	/** sum of the factored LM weights from the tree root to each node */
+	double [] lm;
+
+	/** LM look-ahead: best LM score of the words reachable from each node minus lm */
+	double [] la;
+
+	/** token index of each node, -1 if none */
+	int [] token;
+
+	/** word index of each node, -1 if none */
+	int [] word;
+
+	/** tree id and parent index (-1 if none) of each node */
+	int [] treeId;
+	int [] parent;
+
+	/** distinct tokens and words */
+	Token [] tokens;
+	Tokenization [] words;
+
+	private Network() {
+
+	}
+
+	/**
+	 * Compile the network starting at the given root node.
+	 */
+	public static Network compile(TreeNode root) {
+		Network net = new Network();
+
+		IdentityHashMap<TreeNode, Integer> ids = new IdentityHashMap<TreeNode, Integer>();
+		ArrayList<TreeNode> list = new ArrayList<TreeNode>();
+
+		ids.put(root, 0);
+		list.add(root);
+
+		int numChildren = 0;
+		for (int i = 0; i < list.size(); ++i) {
+			for (TreeNode c : list.get(i).children) {
+				if (c == null)
+					throw new RuntimeException("Network.compile(): null child of node " + list.get(i));
+				if (!ids.containsKey(c)) {
+					ids.put(c, list.size());
+					list.add(c);
+				}
+			}
+			numChildren += list.get(i).children.length;
+		}
+
+		TreeNode [] nodes = net.nodes = list.toArray(new TreeNode [list.size()]);
+		int n = nodes.length;
+
+		net.childStart = new int [n + 1];
+		net.children = new int [numChildren];
+		for (int i = 0, j = 0; i < n; ++i) {
+			net.childStart[i] = j;
+			for (TreeNode c : nodes[i].children)
+				net.children[j++] = ids.get(c);
+			net.childStart[i + 1] = j;
+		}
+
+		// make sure the initial nodes are actual models
+		for (int j = net.childStart[0]; j < net.childStart[1]; ++j) {
+			TreeNode c = nodes[net.children[j]];
+			if (c.token == null || c.token.hmm == null || c.token.hmm.s == null)
+				throw new RuntimeException("Network.compile(): initial node " + c + " has no HMM attached");
+		}
+
+		// enumerate tokens, words and distinct states; nodes of the same token
+		// share them
+		IdentityHashMap<Token, Integer> tids = new IdentityHashMap<Token, Integer>();
+		IdentityHashMap<Tokenization, Integer> wids = new IdentityHashMap<Tokenization, Integer>();
+		IdentityHashMap<State, Integer> sids = new IdentityHashMap<State, Integer>();
+		IdentityHashMap<Hmm, Integer> hids = new IdentityHashMap<Hmm, Integer>();
+		ArrayList<Token> tlist = new ArrayList<Token>();
+		ArrayList<Tokenization> wlist = new ArrayList<Tokenization>();
+		ArrayList<State> slist = new ArrayList<State>();
+		ArrayList<Integer> st = new ArrayList<Integer>();
+		ArrayList<Integer> si = new ArrayList<Integer>();
+		ArrayList<Integer> idlist = new ArrayList<Integer>();
+		ArrayList<Double> alist = new ArrayList<Double>();
+
+		net.stateStart = new int [n + 1];
+		net.transStart = new int [n];
+		net.f = new float [n];
+		net.token = new int [n];
+		net.word = new int [n];
+		net.treeId = new int [n];
+		net.parent = new int [n];
+
+		for (int i = 0; i < n; ++i) {
+			TreeNode t = nodes[i];
+			net.f[i] = t.f;
+			net.treeId[i] = t.treeId;
+			net.parent[i] = t.parent != null && ids.containsKey(t.parent) ? ids.get(t.parent) : -1;
+			net.token[i] = net.word[i] = net.transStart[i] = -1;
+			net.stateStart[i] = idlist.size();
+
+			if (t.word != null) {
+				Integer w = wids.get(t.word);
+				if (w == null) {
+					wids.put(t.word, w = wlist.size());
+					wlist.add(t.word);
+				}
+				net.word[i] = w;
+			}
+
+			if (t.token == null)
+				continue;
+
+			Integer tid = tids.get(t.token);
+			if (tid == null) {
+				tids.put(t.token, tid = tlist.size());
+				tlist.add(t.token);
+			}
+			net.token[i] = tid;
+
+			Hmm hmm = t.token.hmm;
+			if (hmm == null)
+				continue;
+
+			for (int j = 0; j < hmm.s.length; ++j) {
+				Integer id = sids.get(hmm.s[j]);
+				if (id == null) {
+					sids.put(hmm.s[j], id = slist.size());
+					slist.add(hmm.s[j]);
+					st.add(tid);
+					si.add(j);
+				}
+				idlist.add(id);
+			}
+
+			Integer off = hids.get(hmm);
+			if (off == null) {
+				hids.put(hmm, off = alist.size());
+				for (int j = 0; j < hmm.s.length; ++j)
+					for (int k = 0; k < hmm.s.length; ++k)
+						alist.add(Math.log(hmm.a[j][k]));
+			}
+			net.transStart[i] = off;
+		}
+		net.stateStart[n] = idlist.size();
+
+		net.tokens = tlist.toArray(new Token [tlist.size()]);
+		net.words = wlist.toArray(new Tokenization [wlist.size()]);
+		net.states = slist.toArray(new State [slist.size()]);
+		net.stateIds = toArray(idlist);
+		net.stateToken = toArray(st);
+		net.stateIndex = toArray(si);
+		net.logA = new double [alist.size()];
+		for (int i = 0; i < net.logA.length; ++i)
+			net.logA[i] = alist.get(i);
+
+		net.accumulateLm();
+
+		return net;
+	}
+
+	/**
+	 * Sum up the factored LM weights along the trees, i.e. lm[i] of a word
+	 * node is the LM log-probability of that word.
+	 */
+	private void accumulateLm() {
+		int n = f.length;
+		lm = new double [n];
+		boolean [] done = new boolean [n];
+		done[0] = true;
+		for (int i = 0; i < n; ++i) {
+			boolean root = token[i] < 0 && word[i] < 0;
+			for (int j = childStart[i]; j < childStart[i + 1]; ++j) {
+				int c = children[j];
+				if (done[c])
+					continue;
+				done[c] = true;
+				if (token[c] >= 0 || word[c] >= 0)
+					lm[c] = (root ? 0. : lm[i]) + f[c];
+			}
+		}
+
+		// look-ahead: as the tree nodes are numbered breadth first, the
+		// successors within a tree have higher indices
+		double [] best = new double [n];
+		la = new double [n];
+		for (int i = n - 1; i >= 0; --i) {
+			if (word[i] >= 0) {
+				best[i] = lm[i];
+				continue;
+			}
+
+			best[i] = Double.NEGATIVE_INFINITY;
+			if (token[i] < 0)
+				continue;
+
+			for (int j = childStart[i]; j < childStart[i + 1]; ++j) {
+				int c = children[j];
+				if (c > i && (token[c] >= 0 || word[c] >= 0) && best[c] > best[i])
+					best[i] = best[c];
+			}
+			la[i] = best[i] - lm[i];
+		}
+	}
+
+	/**
+	 * Get the LM look-ahead of node i, i.e. the best LM log-probability of the
+	 * words reachable from i minus the LM score accumulated up to i.
+	 */
+	public double getLookAhead(int i) {
+		return la[i];
+	}
+
+	/**
+	 * Get the LM log-probability accumulated from the tree root to node i; for
+	 * word nodes, this is the LM log-probability of the word.
+	 */
+	public double getLmScore(int i) {
+		return lm[i];
+	}
+
+	/**
+	 * Get the word of node i, null if it is no word node
+	 */
+	public Tokenization getWord(int i) {
+		return word[i] < 0 ? null : words[word[i]];
+	}
+
+	/**
+	 * Get the tree node with index i
+	 */
+	public TreeNode getNode(int i) {
+		return nodes[i];
+	}
+
+	private static int [] toArray(ArrayList<Integer> list) {
+		int [] a = new int [list.size()];
+		for (int i = 0; i < a.length; ++i)
+			a[i] = list.get(i);
+		return a;
+	}
+
+	/**
+	 * Get the root node of the network
+	 */
+	public TreeNode getRoot() {
+		return nodes[0];
+	}
+
+	/**
+	 * Get the number of nodes in the network
+	 */
+	public int getNumberOfNodes() {
+		return nodes.length;
+	}
+
+	/**
+	 * Get the number of distinct HMM states in the network
+	 */
+	public int getNumberOfStates() {
+		return states.length;
+	}
+
+	/**
+	 * Get the number of HMM states of node i
+	 */
+	public int getNumberOfStates(int i) {
+		return stateStart[i + 1] - stateStart[i];
+	}
+
+	/**
+	 * Check if node i is a word node
+	 */
+	public boolean isWordNode(int i) {
+		return word[i] >= 0;
+	}
+
+	/**
+	 * Write the network to the given file
+	 */
+	public void write(File file) throws IOException {
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(file), 1048576);
+		write(os);
+		os.close();
+	}
+
+	/**
+	 * Write the network to the given OutputStream; all numbers are little
+	 * endian, strings are UTF-8 with a preceding length.
+	 */
+	public void write(OutputStream os) throws IOException {
+		ByteOrder bo = ByteOrder.LITTLE_ENDIAN;
+
+		IOUtil.writeInt(os, MAGIC, bo);
+		IOUtil.writeInt(os, VERSION, bo);
+
+		IOUtil.writeInt(os, nodes.length, bo);
+		IOUtil.writeInt(os, children.length, bo);
+		IOUtil.writeInt(os, stateIds.length, bo);
+		IOUtil.writeInt(os, states.length, bo);
+		IOUtil.writeInt(os, logA.length, bo);
+		IOUtil.writeInt(os, tokens.length, bo);
+		IOUtil.writeInt(os, words.length, bo);
+
+		IOUtil.writeInt(os, childStart, bo);
+		IOUtil.writeInt(os, children, bo);
+		IOUtil.writeInt(os, stateStart, bo);
+		IOUtil.writeInt(os, stateIds, bo);
+		IOUtil.writeInt(os, stateToken, bo);
+		IOUtil.writeInt(os, stateIndex, bo);
+		IOUtil.writeInt(os, transStart, bo);
+		IOUtil.writeDouble(os, logA, bo);
+		IOUtil.writeFloat(os, f, bo);
+		IOUtil.writeInt(os, token, bo);
+		IOUtil.writeInt(os, word, bo);
+		IOUtil.writeInt(os, treeId, bo);
+		IOUtil.writeInt(os, parent, bo);
+
+		for (Token t : tokens)
+			writeString(os, t.uniqueIdentifier());
+
+		for (Tokenization w : words) {
+			writeString(os, w.word);
+			IOUtil.writeInt(os, w.sequence.length, bo);
+			for (String s : w.sequence)
+				writeString(os, s);
+		}
+	}
+
+	private static void writeString(OutputStream os, String s) throws IOException {
+		byte [] b = s.getBytes("UTF-8");
+		IOUtil.writeInt(os, b.length, ByteOrder.LITTLE_ENDIAN);
+		IOUtil.writeByte(os, b);
+	}
+
+	private static String readString(ByteBuffer bb) throws IOException {
+		byte [] b = new byte [bb.getInt()];
+		bb.get(b);
+		return new String(b, "UTF-8");
+	}
+
+	/**
+	 * Check if the given file starts with the network file identifier
+	 */
+	public static boolean isNetworkFile(File file) throws IOException {
+		if (file.length() < 8)
+			return false;
+
+		InputStream is = new FileInputStream(file);
+		try {
+			return IOUtil.readInt(is, ByteOrder.LITTLE_ENDIAN) == MAGIC;
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Load a network from the given file; the tokens are resolved by their 
+	 * unique identifiers using the given TokenHierarchy. The states and the
+	 * transition probabilities are taken from the HMMs of the resolved tokens,
+	 * the LM weights from the file. The file is read at once and the arrays
+	 * are copied to the heap.
+	 */
+	public static Network read(File file, TokenHierarchy th) throws IOException {
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			FileChannel fc = fis.getChannel();
+			if (fc.size() > Integer.MAX_VALUE)
+				throw new IOException("Network.read(): " + file + " too large");
+
+			ByteBuffer bb = ByteBuffer.allocate((int) fc.size());
+			while (bb.hasRemaining()) {
+				if (fc.read(bb) < 0)
+					throw new IOException("Network.read(): unexpected end of " + file);
+			}
+			bb.flip();
+
+			return read(bb, th);
+		} finally {
+			fis.close();
+		}
+	}
+
+	/**
+	 * Load a network from the given buffer, see read(File, TokenHierarchy)
+	 */
+	public static Network read(ByteBuffer bb, TokenHierarchy th) throws IOException {
+		bb.order(ByteOrder.LITTLE_ENDIAN);
+
+		if (bb.getInt() != MAGIC)
+			throw new IOException("Network.read(): not a network file");
+		int v = bb.getInt();
+		if (v != VERSION)
+			throw new IOException("Network.read(): unsupported version " + v);
+
+		int n = bb.getInt();
+		int numChildren = bb.getInt();
+		int numStateIds = bb.getInt();
+		int numStates = bb.getInt();
+		int numTrans = bb.getInt();
+		int numTokens = bb.getInt();
+		int numWords = bb.getInt();
+
+		Network net = new Network();
+		net.childStart = readInt(bb, n + 1);
+		net.children = readInt(bb, numChildren);
+		net.stateStart = readInt(bb, n + 1);
+		net.stateIds = readInt(bb, numStateIds);
+		net.stateToken = readInt(bb, numStates);
+		net.stateIndex = readInt(bb, numStates);
+		net.transStart = readInt(bb, n);
+		net.logA = new double [numTrans];
+		bb.asDoubleBuffer().get(net.logA);
+		bb.position(bb.position() + numTrans * 8);
+		net.f = new float [n];
+		bb.asFloatBuffer().get(net.f);
+		bb.position(bb.position() + n * 4);
+		net.token = readInt(bb, n);
+		net.word = readInt(bb, n);
+		net.treeId = readInt(bb, n);
+		net.parent = readInt(bb, n);
+
+		// resolve the tokens, rebuild the words
+		net.tokens = new Token [numTokens];
+		for (int i = 0; i < numTokens; ++i) {
+			String uid = readString(bb);
+			net.tokens[i] = th.getPolyphone(uid);
+			if (net.tokens[i] == null)
+				throw new IOException("Network.read(): unknown token " + uid);
+		}
+
+		net.words = new Tokenization [numWords];
+		for (int i = 0; i < numWords; ++i) {
+			String w = readString(bb);
+			String [] seq = new String [bb.getInt()];
+			for (int j = 0; j < seq.length; ++j)
+				seq[j] = readString(bb);
+			net.words[i] = new Tokenization(w, seq);
+		}
+
+		net.states = new State [numStates];
+		for (int i = 0; i < numStates; ++i) {
+			Hmm hmm = net.tokens[net.stateToken[i]].hmm;
+			if (hmm == null || hmm.s.length <= net.stateIndex[i])
+				throw new IOException("Network.read(): token " + net.tokens[net.stateToken[i]] + " lacks state " + net.stateIndex[i]);
+			net.states[i] = hmm.s[net.stateIndex[i]];
+		}
+
+		// verify that the states of each node match the HMM of the token, and
+		// take the transitions from the HMM: the stored ones are stale if the
+		// codebook was re-estimated after compiling the network
+		for (int i = 0; i < n; ++i) {
+			if (net.token[i] < 0 || net.stateStart[i] == net.stateStart[i + 1])
+				continue;
+			Hmm hmm = net.tokens[net.token[i]].hmm;
+			int ns = net.stateStart[i + 1] - net.stateStart[i];
+			if (hmm == null || hmm.s.length != ns)
+				throw new IOException("Network.read(): HMM mismatch for token " + net.tokens[net.token[i]]);
+
+			int off = net.transStart[i];
+			if (off < 0 || off + ns * ns > numTrans)
+				throw new IOException("Network.read(): invalid transitions for token " + net.tokens[net.token[i]]);
+			for (int j = 0; j < ns; ++j)
+				for (int k = 0; k < ns; ++k)
+					net.logA[off + j * ns + k] = Math.log(hmm.a[j][k]);
+		}
+
+		// rebuild the tree nodes
+		net.nodes = new TreeNode [n];
+		for (int i = 0; i < n; ++i) {
+			if (net.word[i] >= 0)
+				net.nodes[i] = new TreeNode(null, net.words[net.word[i]], net.f[i]);
+			else if (net.token[i] >= 0) {
+				net.nodes[i] = new TreeNode(net.tokens[net.token[i]], null);
+				net.nodes[i].f = net.f[i];
+			} else {
+				net.nodes[i] = new TreeNode(net.treeId[i]);
+				net.nodes[i].f = net.f[i];
+			}
+			net.nodes[i].treeId = net.treeId[i];
+		}
+
+		for (int i = 0; i < n; ++i) {
+			TreeNode t = net.nodes[i];
+			t.parent = net.parent[i] < 0 ? null : net.nodes[net.parent[i]];
+			t.children = new TreeNode [net.childStart[i + 1] - net.childStart[i]];
+			for (int j = net.childStart[i]; j < net.childStart[i + 1]; ++j)
+				t.children[j - net.childStart[i]] = net.nodes[net.children[j]];
+		}
+
+		net.accumulateLm();
+
+		logger.info("Network.read(): " + n + " nodes, " + numStates + " states, " + numWords + " words");
+
+		return net;
+	}
+
+	private static int [] readInt(ByteBuffer bb, int n) {
+		int [] a = new int [n];
+		bb.asIntBuffer().get(a);
+		bb.position(bb.position() + n * 4);
+		return a;
+	}
+
+	public static final String SYNOPSIS =
+		"Compile the decoding network of a language model and write it to a file\n" +
+		"that can be loaded by the decoder (see app.Decoder).\n\n" +
+		"usage: decoder.Network config codebook lmfile network-out\n";
+
+	public static void main(String [] args) throws Exception {
+		if (args.length != 4) {
+			System.err.println(SYNOPSIS);
+			System.exit(1);
+		}
+
+		Configuration conf = new Configuration(new File(args[0]));
+		conf.loadCodebook(new File(args[1]));
+
+		LanguageModel lm = LanguageModel.loadNgramModel(new File(args[2]), conf.tok, conf.th, new HashMap<Tokenization, Float>());
+
+		Network net = compile(lm.generateNetwork());
+		net.write(new File(args[3]));
+
+		logger.info("wrote " + net.getNumberOfNodes() + " nodes, " + net.getNumberOfStates() + " states to " + args[3]);
+	}
+}
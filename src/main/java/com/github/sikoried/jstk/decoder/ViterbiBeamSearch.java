@@ -25,49 +25,221 @@ package com.github.sikoried.jstk.decoder;
 import com.github.sikoried.jstk.arch.TokenHierarchy;
 import com.github.sikoried.jstk.arch.TreeNode;
 import com.github.sikoried.jstk.exceptions.AlignmentException;
+import com.github.sikoried.jstk.stat.Mixture;
 import com.github.sikoried.jstk.stat.hmm.Alignment;
 import com.github.sikoried.jstk.stat.hmm.MetaAlignment;
+import com.github.sikoried.jstk.stat.hmm.SCState;
 import com.github.sikoried.jstk.stat.hmm.State;
 
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Stack;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * The ViterbiBeamSearch is a classic implementation with either a fixed maximum
- * beam size or an adaptive size depending on acoustic similarity
- * 
+ * beam size or an adaptive size depending on acoustic similarity.
+ * <p>
+ * The search works on preallocated, primitive hypothesis slots (node index,
+ * state, scores, backpointer) which are recycled from frame to frame. The
+ * back pointers refer to an append-only trace which is compacted whenever it
+ * fills up, so that a steady-state step does not allocate any objects.
+ * Hypothesis objects are only generated when the results are queried.
+ * <p>
+ * With setNumThreads(), the emissions of the states required in a frame are
+ * computed in parallel before the (serial) expansion; the results are
+ * bit-identical to the serial decoder.
+ *
  * @author sikoried
  */
 public class ViterbiBeamSearch {
+	/** initial capacity of the hypothesis lists */
+	private static final int INITIAL_BEAM_CAPACITY = 1024;
+
+	/** initial capacity of the trace */
+	private static final int INITIAL_TRACE_CAPACITY = 65536;
+
+	/** number of score bins for histogram pruning */
+	private static final int NUM_BINS = 256;
+
+	/** lattice index of a word end that is not recorded yet */
+	private static final int PENDING = -2;
+
+	/** minimum number of emissions per thread to justify parallel scoring */
+	private static final int MIN_EMISSIONS_PER_THREAD = 8;
+
 	/**
-	 * Root node of the LST network
+	 * Strategies to reduce the expanded hypotheses to the beam: SORT sorts all
+	 * expanded hypotheses, SELECT determines the best bs hypotheses by
+	 * (exact) linear time selection, HISTOGRAM chooses the score threshold from
+	 * a histogram of the scores, which may retain slightly less than bs
+	 * hypotheses but allows to reject hypotheses already during the expansion.
 	 */
-	private TreeNode root;
-	
+	public static enum Pruning {
+		SORT,
+		SELECT,
+		HISTOGRAM
+	}
+
+	/** compiled LST network */
+	private Network net;
+
+	/** all network nodes, indexed by their id; the root has id 0 */
+	private TreeNode [] nodes;
+
+	/** successors of node i are children[childStart[i]...childStart[i+1]-1] */
+	private int [] childStart;
+
+	/** successor node ids */
+	private int [] children;
+
+	/** all distinct HMM states of the network, indexed by their id */
+	private State [] states;
+
+	/** state ids of node i are stateIds[stateStart[i]...stateStart[i]+ns-1] */
+	private int [] stateStart;
+
+	/** state ids */
+	private int [] stateIds;
+
+	/** transition log-probabilities of node i start at logA[transStart[i]] */
+	private int [] transStart;
+
+	/** transition log-probabilities */
+	private double [] logA;
+
+	/** factored LM weight of each node */
+	private float [] f;
+
+	/** word index of each node, -1 for non-word nodes */
+	private int [] word;
+
+	/** LM look-ahead of each node */
+	private double [] la;
+
+	/** emission cache: log-likelihoods of the states for the current frame */
+	private double [] cache;
+
+	/** emission cache: frame the cached value belongs to */
+	private int [] cacheFrame;
+
+	/** current frame index */
+	private int frame = 0;
+
+	/** number of emission requests since initialize() */
+	private long cacheRequests = 0;
+
+	/** number of emission requests that had to be computed */
+	private long cacheMisses = 0;
+
+	/** codebook index of each state if it uses a shared codebook, -1 else */
+	private int [] stateCodebook;
+
+	/** distinct shared codebooks (semi-continuous states) */
+	private Mixture [] codebooks;
+
+	/** parallel scoring: frame the codebook was last scheduled for */
+	private int [] codebookFrame;
+
+	/** parallel scoring: states to evaluate for the current frame */
+	private int [] pending;
+	private int numPending = 0;
+
+	/** parallel scoring: shared codebooks to evaluate for the current frame */
+	private int [] pendingCodebooks;
+	private int numPendingCodebooks = 0;
+
+	/** number of threads to compute the emissions */
+	private int numThreads = 1;
+
+	/** worker threads (numThreads-1, the calling thread scores as well) */
+	private ExecutorService pool = null;
+
+	/** one scorer per thread */
+	private Scorer [] scorers = null;
+
 	/** word insertion penalty (logarithmic) */
 	private double wip;
-	
+
 	/** language model weight */
 	private double lmwt;
-	
+
 	/** beam size */
 	private int bs;
-	
+
 	/** beam width for implicit beam size */
 	private double bw = 0.;
-	
+
 	/** list of active hypotheses */
-	private ViterbiList active = new ViterbiList();
-	
+	private SlotList active = new SlotList(INITIAL_BEAM_CAPACITY);
+
 	/** list of expanded hypotheses */
-	private ViterbiList expanded = new ViterbiList();
-	
+	private SlotList expanded = new SlotList(INITIAL_BEAM_CAPACITY);
+
+	/** back pointer trace of the active hypotheses */
+	private Trace trace = new Trace(INITIAL_TRACE_CAPACITY);
+
+	/** sort buffer for the expanded hypotheses */
+	private int [] order = new int [INITIAL_BEAM_CAPACITY];
+
 	/** remember size of expanbded beam of last step */
 	private int lastExpanded = 0;
-	
+
+	/** pruning strategy */
+	private Pruning pruning = Pruning.SORT;
+
+	/** is the active list ordered by score? */
+	private boolean sorted = true;
+
+	/** best score of the current expansion */
+	private double expansionBest;
+
+	/** width used to reject hypotheses while expanding */
+	private double expansionWidth;
+
+	/** histogram pruning: beam width that retained bs hypotheses in the last step */
+	private double lastWidth = Double.MAX_VALUE;
+
+	/** number of hypotheses rejected while expanding in the last step */
+	private int lastRejected = 0;
+
+	/** beam width for phone ends (inter-node transitions) */
+	private double phoneEndBeam = Double.MAX_VALUE;
+
+	/** beam width for word ends */
+	private double wordEndBeam = Double.MAX_VALUE;
+
+	/** maximum number of word ends to expand per frame */
+	private int wordEndBeamSize = Integer.MAX_VALUE;
+
+	/** beam width for the LM look-ahead of newly entered nodes */
+	private double lookAheadBeam = Double.MAX_VALUE;
+
+	/** thresholds of the current frame, derived from the above beams */
+	private double phoneEndThreshold = Double.NEGATIVE_INFINITY;
+	private double wordEndThreshold = Double.NEGATIVE_INFINITY;
+	private double lookAheadThreshold = Double.NEGATIVE_INFINITY;
+
+	/** word end scores of the current frame (word end beam size) */
+	private double [] wordEnds = new double [INITIAL_BEAM_CAPACITY];
+	private int [] wordEndOrder = new int [INITIAL_BEAM_CAPACITY];
+
+	/** number of phone ends, word ends and node entries pruned in the last step */
+	private int lastEndPruned = 0;
+
+	/** score histogram */
+	private int [] bins = new int [NUM_BINS];
+
+	/** word lattice, if enabled */
+	private Lattice lattice = null;
+
 	/**
 	 * Create a new Decoder instance with the given LST network
 	 * @param root
@@ -75,7 +247,7 @@ public class ViterbiBeamSearch {
 	public ViterbiBeamSearch(TreeNode root) {
 		this(root, 1., 1.);
 	}
-	
+
 	/**
 	 * Create a new Decoder instance with the given LST nework, language
 	 * model weight and word insertion penalty.
@@ -84,11 +256,473 @@ public class ViterbiBeamSearch {
 	 * @param insertionPenalty word insertion penalty (0...1)
 	 */
 	public ViterbiBeamSearch(TreeNode root, double lmWeight, double insertionPenalty) {
-		this.root = root;
+		this(Network.compile(root), lmWeight, insertionPenalty);
+	}
+
+	/**
+	 * Create a new Decoder instance with the given compiled network, language
+	 * model weight and word insertion penalty.
+	 * @param network compiled LST network
+	 * @param lmWeight (linear)
+	 * @param insertionPenalty word insertion penalty (0...1)
+	 */
+	public ViterbiBeamSearch(Network network, double lmWeight, double insertionPenalty) {
+		this.net = network;
 		this.lmwt = lmWeight;
 		this.wip = Math.log(insertionPenalty);
+
+		initializeScoring();
+	}
+
+	/**
+	 * Enable or disable the generation of a word lattice
+	 */
+	public void setLatticeGeneration(boolean enable) {
+		lattice = enable ? new Lattice(net, lmwt, wip) : null;
+	}
+
+	/**
+	 * Get the word lattice of the current utterance, null if disabled
+	 */
+	public Lattice getLattice() {
+		return lattice;
+	}
+
+	/**
+	 * Record the word end of the given trace entry (word null-hypothesis) in
+	 * the lattice.
+	 */
+	private void record(int t, int frame) {
+		trace.lat[t] = lattice.add(trace.node[t], frame, trace.lat[trace.prev[t]], trace.vs[t]);
+	}
+
+	/**
+	 * Get the network this decoder works on
+	 */
+	public Network getNetwork() {
+		return net;
+	}
+
+	/**
+	 * Reference the network arrays and set up the emission cache and the
+	 * parallel scoring.
+	 */
+	private void initializeScoring() {
+		nodes = net.nodes;
+		childStart = net.childStart;
+		children = net.children;
+		states = net.states;
+		stateStart = net.stateStart;
+		stateIds = net.stateIds;
+		transStart = net.transStart;
+		logA = net.logA;
+		f = net.f;
+		word = net.word;
+		la = net.la;
+
+		cache = new double [states.length];
+		cacheFrame = new int [states.length];
+		pending = new int [states.length];
+
+		// semi-continuous states share their codebook, which must be evaluated
+		// before the states can be scored in parallel
+		IdentityHashMap<Mixture, Integer> cids = new IdentityHashMap<Mixture, Integer>();
+		ArrayList<Mixture> clist = new ArrayList<Mixture>();
+		stateCodebook = new int [states.length];
+		for (int i = 0; i < states.length; ++i) {
+			stateCodebook[i] = -1;
+			if (!(states[i] instanceof SCState))
+				continue;
+
+			Mixture cb = ((SCState) states[i]).cb;
+			Integer id = cids.get(cb);
+			if (id == null) {
+				cids.put(cb, id = clist.size());
+				clist.add(cb);
+			}
+			stateCodebook[i] = id;
+		}
+
+		codebooks = clist.toArray(new Mixture [clist.size()]);
+		codebookFrame = new int [codebooks.length];
+		pendingCodebooks = new int [codebooks.length];
+	}
+
+	/**
+	 * Set the number of threads to compute the emissions. The expansion and
+	 * pruning remain serial, thus the results do not depend on the number of
+	 * threads.
+	 * @param numThreads number of threads, 1 for serial decoding
+	 */
+	public void setNumThreads(int numThreads) {
+		if (numThreads < 1)
+			throw new IllegalArgumentException("ViterbiBeamSearch.setNumThreads(): numThreads = " + numThreads + " < 1");
+
+		shutdown();
+
+		this.numThreads = numThreads;
+		if (numThreads == 1)
+			return;
+
+		pool = Executors.newFixedThreadPool(numThreads - 1, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ViterbiBeamSearch-scorer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		scorers = new Scorer [numThreads];
+		for (int i = 0; i < numThreads; ++i)
+			scorers[i] = new Scorer(i);
+	}
+
+	/**
+	 * Get the number of threads used to compute the emissions
+	 */
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	/**
+	 * Stop the scoring threads, if any; the decoder continues serially.
+	 */
+	public void shutdown() {
+		if (pool != null)
+			pool.shutdownNow();
+
+		pool = null;
+		scorers = null;
+		numThreads = 1;
+	}
+
+	/**
+	 * Schedule the emission of the given state for parallel scoring
+	 */
+	private void require(int sid) {
+		// the cache entry becomes valid once score() is done
+		if (cacheFrame[sid] == frame)
+			return;
+
+		cacheFrame[sid] = frame;
+		pending[numPending++] = sid;
+	}
+
+	/**
+	 * Schedule the emissions required to step the active hypotheses; this
+	 * mirrors the emission requests of step().
+	 */
+	private void requireActive() {
+		for (int k = 0; k < active.size; ++k) {
+			int n = active.node[k];
+			int cs = active.state[k];
+			int sb = stateStart[n];
+			int ns = stateStart[n + 1] - sb;
+			int ab = transStart[n] + cs * ns;
+
+			for (int i = 0; i < ns; ++i)
+				if (logA[ab + i] > Double.NEGATIVE_INFINITY)
+					require(stateIds[sb + i]);
+
+			double vs = active.vs[k];
+			if (cs != ns - 1 || vs < phoneEndThreshold)
+				continue;
+
+			for (int j = childStart[n]; j < childStart[n + 1]; ++j) {
+				int succ = children[j];
+				if (word[succ] >= 0) {
+					double wvs = vs + lmwt * f[succ];
+					if (wvs < wordEndThreshold)
+						continue;
+
+					for (int l = childStart[succ]; l < childStart[succ + 1]; ++l) {
+						int lst = children[l];
+						for (int m = childStart[lst]; m < childStart[lst + 1]; ++m) {
+							int t = children[m];
+							if (!outsideLookAhead(t, wvs + lmwt * f[t] + wip))
+								require(stateIds[stateStart[t]]);
+						}
+					}
+				} else if (!outsideLookAhead(succ, vs + lmwt * f[succ]))
+					require(stateIds[stateStart[succ]]);
+			}
+		}
+	}
+
+	/**
+	 * Compute the scheduled emissions in parallel: first the shared codebooks,
+	 * then the states. Each Mixture is evaluated by exactly one thread, the
+	 * semi-continuous states only read their (evaluated) codebook.
+	 */
+	private void score(double [] x) {
+		cacheMisses += numPending;
+
+		numPendingCodebooks = 0;
+		for (int i = 0; i < numPending; ++i) {
+			int c = stateCodebook[pending[i]];
+			if (c >= 0 && codebookFrame[c] != frame) {
+				codebookFrame[c] = frame;
+				pendingCodebooks[numPendingCodebooks++] = c;
+			}
+		}
+
+		if (numPendingCodebooks > 0)
+			score(true, numPendingCodebooks, x);
+
+		score(false, numPending, x);
+
+		numPending = 0;
+	}
+
+	/**
+	 * Distribute the scheduled codebooks or states over the scorers (round
+	 * robin) and wait for them to finish.
+	 */
+	private void score(boolean shared, int count, double [] x) {
+		int nt = Math.min(numThreads, count / MIN_EMISSIONS_PER_THREAD);
+		if (nt < 2) {
+			scorers[0].run(shared, 1, count, x);
+			return;
+		}
+
+		CountDownLatch latch = new CountDownLatch(nt - 1);
+		for (int i = 1; i < nt; ++i) {
+			scorers[i].prepare(shared, nt, count, x, latch);
+			pool.execute(scorers[i]);
+		}
+
+		// the calling thread takes the first share
+		scorers[0].run(shared, nt, count, x);
+
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("ViterbiBeamSearch.score(): interrupted");
+		}
+
+		for (int i = 1; i < nt; ++i) {
+			if (scorers[i].error != null)
+				throw new RuntimeException("ViterbiBeamSearch.score(): scorer " + i + " failed", scorers[i].error);
+		}
+	}
+
+	/**
+	 * Computes every stride-th scheduled emission (or codebook), starting at
+	 * its offset.
+	 */
+	private final class Scorer implements Runnable {
+		final int offset;
+
+		boolean shared;
+		int stride;
+		int count;
+		double [] x;
+		CountDownLatch latch;
+		Throwable error;
+
+		Scorer(int offset) {
+			this.offset = offset;
+		}
+
+		void prepare(boolean shared, int stride, int count, double [] x, CountDownLatch latch) {
+			this.shared = shared;
+			this.stride = stride;
+			this.count = count;
+			this.x = x;
+			this.latch = latch;
+			this.error = null;
+		}
+
+		void run(boolean shared, int stride, int count, double [] x) {
+			if (shared) {
+				for (int i = offset; i < count; i += stride)
+					codebooks[pendingCodebooks[i]].logEvaluate2(x);
+			} else {
+				for (int i = offset; i < count; i += stride) {
+					int sid = pending[i];
+					cache[sid] = states[sid].logEmits(x);
+				}
+			}
+		}
+
+		public void run() {
+			try {
+				run(shared, stride, count, x);
+			} catch (Throwable e) {
+				error = e;
+			} finally {
+				x = null;
+				latch.countDown();
+			}
+		}
+	}
+
+	/**
+	 * Get the log-likelihood of the given state for the current frame; each
+	 * state is evaluated at most once per frame.
+	 * @param sid state id
+	 * @param x current observation
+	 */
+	private double emission(int sid, double [] x) {
+		cacheRequests++;
+		if (cacheFrame[sid] == frame)
+			return cache[sid];
+
+		cacheMisses++;
+		cacheFrame[sid] = frame;
+		return cache[sid] = states[sid].logEmits(x);
+	}
+
+	/**
+	 * Get the ratio of emission requests answered by the emission cache since
+	 * the last call to initialize().
+	 */
+	public double getEmissionCacheHitRate() {
+		return cacheRequests == 0 ? 0. : 1. - (double) cacheMisses / cacheRequests;
+	}
+
+	/**
+	 * Get the number of emission evaluations (cache misses) since the last
+	 * call to initialize()
+	 */
+	public long getEmissionEvaluations() {
+		return cacheMisses;
+	}
+
+	/**
+	 * Set the strategy to reduce the expanded hypotheses to the beam
+	 */
+	public void setPruning(Pruning pruning) {
+		this.pruning = pruning;
+	}
+
+	/**
+	 * Get the current pruning strategy
+	 */
+	public Pruning getPruning() {
+		return pruning;
+	}
+
+	/**
+	 * Set the phone end beam: hypotheses in a final state are only propagated
+	 * to the successor nodes if they are within this width of the best final
+	 * state hypothesis.
+	 * @param width Double.MAX_VALUE to disable
+	 */
+	public void setPhoneEndBeam(double width) {
+		phoneEndBeam = width;
+	}
+
+	public double getPhoneEndBeam() {
+		return phoneEndBeam;
+	}
+
+	/**
+	 * Set the word end beam: word ends are only propagated to the successor
+	 * trees if their score (including the LM) is within this width of the
+	 * best word end, and among the best size word ends of the frame.
+	 * @param width Double.MAX_VALUE to disable
+	 * @param size Integer.MAX_VALUE to disable
+	 */
+	public void setWordEndBeam(double width, int size) {
+		wordEndBeam = width;
+		wordEndBeamSize = size;
+	}
+
+	public double getWordEndBeam() {
+		return wordEndBeam;
+	}
+
+	public int getWordEndBeamSize() {
+		return wordEndBeamSize;
+	}
+
+	/**
+	 * Set the LM look-ahead beam: a node is only entered if its score before
+	 * the emission, plus the best LM score reachable from it, is within this
+	 * width of the best active hypothesis. Rejected nodes are never scored.
+	 * @param width Double.MAX_VALUE to disable
+	 */
+	public void setLookAheadBeam(double width) {
+		lookAheadBeam = width;
+	}
+
+	public double getLookAheadBeam() {
+		return lookAheadBeam;
+	}
+
+	/**
+	 * Compute the phone end, word end and look-ahead thresholds for the
+	 * current frame from the active hypotheses.
+	 */
+	private void prepareEndBeams() {
+		phoneEndThreshold = wordEndThreshold = lookAheadThreshold = Double.NEGATIVE_INFINITY;
+		lastEndPruned = 0;
+
+		boolean collect = wordEndBeamSize < Integer.MAX_VALUE;
+		if (phoneEndBeam == Double.MAX_VALUE && wordEndBeam == Double.MAX_VALUE && !collect && lookAheadBeam == Double.MAX_VALUE)
+			return;
+
+		double best = Double.NEGATIVE_INFINITY;
+		double bestPhoneEnd = Double.NEGATIVE_INFINITY;
+		double bestWordEnd = Double.NEGATIVE_INFINITY;
+		int nwe = 0;
+
+		for (int k = 0; k < active.size; ++k) {
+			int n = active.node[k];
+			double vs = active.vs[k];
+			if (vs > best)
+				best = vs;
+
+			if (active.state[k] != stateStart[n + 1] - stateStart[n] - 1)
+				continue;
+
+			if (vs > bestPhoneEnd)
+				bestPhoneEnd = vs;
+
+			for (int j = childStart[n]; j < childStart[n + 1]; ++j) {
+				int succ = children[j];
+				if (word[succ] < 0)
+					continue;
+
+				double wvs = vs + lmwt * f[succ];
+				if (wvs > bestWordEnd)
+					bestWordEnd = wvs;
+
+				if (collect) {
+					if (nwe == wordEnds.length)
+						wordEnds = Arrays.copyOf(wordEnds, 2 * nwe);
+					wordEnds[nwe++] = wvs;
+				}
+			}
+		}
+
+		if (lookAheadBeam < Double.MAX_VALUE)
+			lookAheadThreshold = best - lookAheadBeam;
+		if (phoneEndBeam < Double.MAX_VALUE)
+			phoneEndThreshold = bestPhoneEnd - phoneEndBeam;
+		if (wordEndBeam < Double.MAX_VALUE)
+			wordEndThreshold = bestWordEnd - wordEndBeam;
+
+		if (nwe > wordEndBeamSize) {
+			if (wordEndOrder.length < nwe)
+				wordEndOrder = new int [wordEnds.length];
+			for (int i = 0; i < nwe; ++i)
+				wordEndOrder[i] = i;
+			select(wordEndOrder, wordEnds, 0, nwe - 1, wordEndBeamSize - 1);
+			wordEndThreshold = Math.max(wordEndThreshold, wordEnds[wordEndOrder[wordEndBeamSize - 1]]);
+		}
+	}
+
+	/**
+	 * Check if a newly entered node is outside the look-ahead beam; v is the
+	 * score before the emission.
+	 */
+	private boolean outsideLookAhead(int t, double v) {
+		return lookAheadThreshold > Double.NEGATIVE_INFINITY && v + lmwt * la[t] < lookAheadThreshold;
 	}
-	
+
 	/**
 	 * Initialize the beam with the first observation
 	 * @param beamsize maximum size of the beam
@@ -98,148 +732,361 @@ public class ViterbiBeamSearch {
 	public double initialize(int beamsize, double beamwidth, double [] x) {
 		this.bs = beamsize;
 		this.bw = beamwidth;
-		
+
 		// make sure the lists are clear
 		active.clear();
 		expanded.clear();
-		
+		trace.clear();
+		lastWidth = Double.MAX_VALUE;
+		beginExpansion();
+
+		if (lattice != null)
+			lattice.clear();
+
+		// reset the emission cache
+		Arrays.fill(cacheFrame, -1);
+		Arrays.fill(codebookFrame, -1);
+		frame = 0;
+		cacheRequests = cacheMisses = 0;
+
+		if (pool != null) {
+			for (int j = childStart[0]; j < childStart[1]; ++j)
+				require(stateIds[stateStart[children[j]]]);
+			score(x);
+		}
+
 		// generate the initial active hypotheses
-		Hypothesis h0 = new Hypothesis(root);
-		for (TreeNode n : root.children) {
-			if (n == null)
-				System.err.println("fail1");
-			if (n.token == null)
-				System.err.println("fail2");
-			if (n.token.hmm == null)
-				System.err.println("fail3");
-			if (n.token.hmm.s == null)
-				System.err.println("fail4");
-			if (n.token.hmm.s[0] == null)
-				System.err.println("fail5");
-			expanded.add(new Hypothesis(h0, n, Math.log(n.token.hmm.s[0].emits(x)), lmwt, wip));
+		int h0 = trace.add(0, (short) 0, -1, 0., 0., true);
+		for (int j = childStart[0]; j < childStart[1]; ++j) {
+			int n = children[j];
+			double as = emission(stateIds[stateStart[n]], x);
+			expand(n, (short) 0, as + lmwt * f[n] + wip, as, h0);
 		}
-		
-		// sort and prune if necessary
-		Collections.sort(expanded);
-		
-		double best = expanded.get(0).vs;
-		double width = 0;
-		while (expanded.size() > 0 && active.size() < bs) {
-			Hypothesis h = expanded.remove(0);
-			if ((width = best - h.vs) > bw)
+
+		return prune();
+	}
+
+	/**
+	 * Feed the next observation to the Viterbi beam search
+	 * @param x
+	 * @return current beam width (best-worst score)
+	 */
+	public double step(double [] x) {
+		beginExpansion();
+		frame++;
+		prepareEndBeams();
+
+		if (pool != null) {
+			requireActive();
+			score(x);
+		}
+
+		for (int k = 0; k < active.size; ++k) {
+			int n = active.node[k];
+			int cs = active.state[k];
+			double vs = active.vs[k];
+			double as = active.as[k];
+			int bp = active.bp[k];
+
+			int sb = stateStart[n];
+			int ns = stateStart[n + 1] - sb;
+			int ab = transStart[n] + cs * ns;
+
+			// step 1: intra-node transitions
+			for (short i = 0; i < ns; ++i) {
+				if (logA[ab + i] > Double.NEGATIVE_INFINITY) {
+					double p = logA[ab + i] + emission(stateIds[sb + i], x);
+					expand(n, i, vs + p, as + p, bp);
+				}
+			}
+
+			// step 2: final state: inter-node transitions
+			if (cs != ns - 1)
+				continue;
+
+			if (vs < phoneEndThreshold) {
+				lastEndPruned++;
+				continue;
+			}
+
+			// generate the null-hypothesis with the current node (no lmwt!)
+			// this is not an active hypothesis!!
+			// h.p -> h -> token [null] ---> expansion
+			int token = trace.add(n, (short) 0, bp, vs, as, true);
+
+			for (int j = childStart[n]; j < childStart[n + 1]; ++j) {
+				int succ = children[j];
+
+				if (word[succ] >= 0) {
+					// generate the null-hypothesis with the word
+					// h.p -> h -> token [null] -> word [null] ---> expansion
+					double wvs = vs + lmwt * f[succ];
+					if (wvs < wordEndThreshold) {
+						lastEndPruned++;
+						continue;
+					}
+
+					int wnull = trace.add(succ, (short) 0, token, wvs, as, true);
+					if (lattice != null)
+						trace.lat[wnull] = PENDING;
+
+					// iterate over the lexical successor trees linked with this word leaf
+					for (int l = childStart[succ]; l < childStart[succ + 1]; ++l) {
+						int lst = children[l];
+						for (int m = childStart[lst]; m < childStart[lst + 1]; ++m) {
+							int t = children[m];
+							if (outsideLookAhead(t, wvs + lmwt * f[t] + wip)) {
+								lastEndPruned++;
+								continue;
+							}
+
+							double ea = emission(stateIds[stateStart[t]], x);
+							expand(t, (short) 0, wvs + ea + lmwt * f[t] + wip, ea, wnull);
+						}
+					}
+				} else {
+					// no word insertion penalty!
+					if (outsideLookAhead(succ, vs + lmwt * f[succ])) {
+						lastEndPruned++;
+						continue;
+					}
+
+					double ea = emission(stateIds[stateStart[succ]], x);
+					expand(succ, (short) 0, vs + ea + lmwt * f[succ], ea, token);
+				}
+			}
+		}
+
+		return prune();
+	}
+
+	/**
+	 * Reset the running best score and the rejection threshold for the next
+	 * expansion.
+	 */
+	private void beginExpansion() {
+		expansionBest = Double.NEGATIVE_INFINITY;
+		expansionWidth = pruning == Pruning.HISTOGRAM ? Math.min(bw, lastWidth) : bw;
+		lastRejected = 0;
+	}
+
+	/**
+	 * Add an expanded hypothesis, unless it is already outside the beam width
+	 * with respect to the best hypothesis so far.
+	 */
+	private void expand(int n, short s, double v, double a, int b) {
+		if (expansionBest - v > expansionWidth) {
+			lastRejected++;
+			return;
+		}
+
+		if (v > expansionBest)
+			expansionBest = v;
+
+		expanded.vadd(n, s, v, a, b);
+	}
+
+	/**
+	 * Move the best expanded hypotheses (in terms of beam size and width) to
+	 * the active list. The survivors are added to the trace, the expanded list
+	 * is cleared.
+	 *
+	 * @return current beam width
+	 */
+	private double prune() {
+		lastExpanded = expanded.size;
+		active.clear();
+
+		double width = 0.;
+		if (expanded.size > 0) {
+			switch (pruning) {
+			case SORT:
+				width = pruneSort();
 				break;
-			
-			active.add(h);
+			case SELECT:
+				width = pruneSelect();
+				break;
+			case HISTOGRAM:
+				width = pruneHistogram();
+				break;
+			}
 		}
-		
-		// ready to go, clear expanded list
+
 		expanded.clear();
-		
+
+		// free trace memory if necessary
+		if (trace.size > trace.capacity() / 4 * 3)
+			trace.compact(active);
+
+		return width;
+	}
+
+	/**
+	 * Move the expanded hypothesis k to the active list and the trace
+	 */
+	private void activate(int k) {
+		// the word end is recorded once a successor survives
+		if (lattice != null && trace.lat[expanded.bp[k]] == PENDING)
+			record(expanded.bp[k], frame - 1);
+
+		int t = trace.add(expanded.node[k], expanded.state[k], expanded.bp[k], expanded.vs[k], expanded.as[k], false);
+		active.add(expanded.node[k], expanded.state[k], expanded.vs[k], expanded.as[k], t);
+	}
+
+	/**
+	 * Sort all expanded hypotheses and retain the best ones.
+	 */
+	private double pruneSort() {
+		int [] ord = sortExpanded();
+
+		double best = expanded.vs[ord[0]];
+		double width = 0.;
+		for (int i = 0; i < expanded.size && active.size < bs; ++i) {
+			int k = ord[i];
+			if ((width = best - expanded.vs[k]) > bw)
+				break;
+
+			activate(k);
+		}
+
+		sorted = true;
+
+		return width;
+	}
+
+	/**
+	 * Select the best bs expanded hypotheses in linear time and retain the
+	 * ones within the beam width. This retains the same hypotheses as
+	 * pruneSort(), but the active list is not ordered.
+	 */
+	private double pruneSelect() {
+		int n = expanded.size;
+		int k = Math.min(bs, n);
+		if (k < 1)
+			return 0.;
+
+		int [] ord = orderBuffer();
+		select(ord, expanded.vs, 0, n - 1, k - 1);
+
+		double best = expansionBest;
+		double width = 0.;
+		for (int i = 0; i < k; ++i) {
+			double w = best - expanded.vs[ord[i]];
+			if (w > bw)
+				continue;
+
+			activate(ord[i]);
+			if (w > width)
+				width = w;
+		}
+
+		sorted = false;
+
 		return width;
 	}
-	
+
 	/**
-	 * Feed the next observation to the Viterbi beam search
-	 * @param x
-	 * @return current beam width (best-worst score)
+	 * Determine the score threshold from a histogram of the score distances to
+	 * the best hypothesis so that at most bs hypotheses are retained. The
+	 * threshold is remembered to reject hypotheses during the next expansion.
 	 */
-	public double step(double [] x) {
-		List<Hypothesis> nodeExpansions = new LinkedList<Hypothesis>();
-		
-		while (active.size() > 0) {
-			Hypothesis h = active.remove(0);
-			
-			int cs = h.s;
-			State[] s = h.node.token.hmm.s;
-			float [] a = h.node.token.hmm.a[cs];
-			
-			// step 1: intra-node transitions
-			for (short i = 0; i < s.length; ++i) {
-				if (a[i] > 0.f)
-					expanded.vadd(new Hypothesis(h, i, Math.log(a[i]) + Math.log(s[i].emits(x))));
-			}
-			
-			// step 2: final state: mark for inter-node transitions
-			if (cs == s.length - 1)
-				nodeExpansions.add(h);
+	private double pruneHistogram() {
+		int n = expanded.size;
+		double best = expansionBest;
+
+		double worst = best;
+		for (int k = 0; k < n; ++k) {
+			if (expanded.vs[k] < worst)
+				worst = expanded.vs[k];
 		}
-		
-		// node expansions
-		while (nodeExpansions.size() > 0) {
-			Hypothesis h = nodeExpansions.remove(0);
-			
-			for (TreeNode succ : h.node.children) {
-				if (succ.isWordNode()) {
-					// generate the null-hypothesis with the word
-					// this is not an active hypothesis!!
-					// h.p -> h -> token [null] -> word [null] ---> expansion
-					Hypothesis token = new Hypothesis(h, h.node, 0.);
-					Hypothesis word = new Hypothesis(token, succ, lmwt);
-					
-					
-					// iterate over the lexical successor trees linked with this word leaf
-					for (TreeNode lst : succ.children) {
-						for (TreeNode t : lst.children)
-							expanded.vadd(new Hypothesis(word, t, Math.log(t.token.hmm.s[0].emits(x)), lmwt, wip));
-					}
-				} else {
-					// generate the null-hypothesis with the current node (no lmwt!)
-					// this is not an active hypothesis!!
-					// h.p -> h -> token[null] ---> expansion
-					Hypothesis token = new Hypothesis(h, h.node, 0.);
-		
-					// no word insertion penalty!
-					expanded.vadd(new Hypothesis(token, succ, Math.log(succ.token.hmm.s[0].emits(x)), lmwt, 0.));
-				}
-			}
+
+		double range = Math.min(bw, best - worst);
+
+		// everything fits, or no reasonable histogram
+		if (n <= bs || !(range > 0.)) {
+			lastWidth = Double.MAX_VALUE;
+			return pruneSelect();
 		}
-		
-		// sort active hypotheses
-		Collections.sort(expanded);
-		
-		// prune down to beam size
-		Iterator<Hypothesis> it = expanded.iterator();
-		double best = expanded.get(0).vs;
+
+		double binw = range / NUM_BINS;
+		Arrays.fill(bins, 0);
+		for (int k = 0; k < n; ++k) {
+			double d = best - expanded.vs[k];
+			if (d <= range)
+				bins[Math.min((int) (d / binw), NUM_BINS - 1)]++;
+		}
+
+		// find the last bin that fits into the beam
+		int last = -1;
+		for (int b = 0, cnt = 0; b < NUM_BINS && cnt + bins[b] <= bs; ++b) {
+			cnt += bins[b];
+			last = b;
+		}
+
+		// the best bin is already too crowded
+		if (last < 0) {
+			lastWidth = Double.MAX_VALUE;
+			return pruneSelect();
+		}
+
 		double width = 0.;
-		for (int i = 0; i < bs && it.hasNext(); ++i) {
-			Hypothesis h = it.next();
-			if ((width = best - h.vs) > bw)
-				break;
-			
-			active.add(h);
+		for (int k = 0; k < n; ++k) {
+			double d = best - expanded.vs[k];
+			if (d <= range && Math.min((int) (d / binw), NUM_BINS - 1) <= last) {
+				activate(k);
+				if (d > width)
+					width = d;
+			}
 		}
-				
-		// clear expanded hypotheses
-		lastExpanded = expanded.size();
-		expanded.clear();
-		
+
+		lastWidth = last < NUM_BINS - 1 ? (last + 1) * binw : Double.MAX_VALUE;
+		sorted = false;
+
 		return width;
 	}
-	
+
+	/**
+	 * Compute the order of the expanded hypotheses, best first.
+	 * @return index buffer containing the order in its first expanded.size cells
+	 */
+	private int [] sortExpanded() {
+		int [] ord = orderBuffer();
+		sort(ord, expanded.vs, 0, expanded.size - 1);
+		return ord;
+	}
+
+	/**
+	 * Get the (identity) index buffer for the expanded hypotheses
+	 */
+	private int [] orderBuffer() {
+		if (order.length < expanded.size)
+			order = new int [expanded.capacity()];
+		for (int i = 0; i < expanded.size; ++i)
+			order[i] = i;
+		return order;
+	}
+
 	/**
 	 * Prune all hypotheses which are NOT in final state
 	 */
 	public void pruneActiveHypotheses() {
-		expanded.clear();
-		while (active.size() > 0) {
-			Hypothesis h = active.remove(0);
-			
-			if (h.finalStateActive())
-				expanded.add(h);
+		int j = 0;
+		for (int k = 0; k < active.size; ++k) {
+			int n = active.node[k];
+			if (active.state[k] == stateStart[n + 1] - stateStart[n] - 1)
+				active.set(j++, active.node[k], active.state[k], active.vs[k], active.as[k], active.bp[k]);
 		}
-		
-		active.addAll(expanded);
-		expanded.clear();
+		active.size = j;
 	}
-	
+
 	/**
 	 * Get the current active beam size
 	 * @return
 	 */
 	public int getCurrentBeamSize() {
-		return active.size();
+		return active.size;
 	}
-	
+
 	/**
 	 * Get the current Expansion size
 	 * @return
@@ -247,49 +1094,132 @@ public class ViterbiBeamSearch {
 	public int getCurrentExpandedSize() {
 		return lastExpanded;
 	}
-	
+
+	/**
+	 * Get the number of hypotheses rejected during the last expansion as they
+	 * were outside the beam width.
+	 */
+	public int getCurrentRejectedSize() {
+		return lastRejected;
+	}
+
+	/**
+	 * Get the number of phone ends, word ends and node entries pruned by the
+	 * phone end, word end and look-ahead beams in the last step.
+	 */
+	public int getCurrentEndPrunedSize() {
+		return lastEndPruned;
+	}
+
 	/**
 	 * Conclude the decoding by reducing to active hypotheses which are in the
 	 * final state (and adding respective null-hypotheses)
 	 */
 	public void conclude() {
-		while (active.size() > 0) {
-			Hypothesis h = active.remove(0);
-			
+		expanded.clear();
+
+		for (int k = 0; k < active.size; ++k) {
+			int n = active.node[k];
+			double vs = active.vs[k];
+			double as = active.as[k];
+			int bp = active.bp[k];
+
 			// if h is in final state, add potential children
-			if (h.finalStateActive()) {
-				for (TreeNode succ : h.node.children) {
-					if (succ.isWordNode()) {
-						Hypothesis help = new Hypothesis(h, h.node, 0.);
-						expanded.vadd(new Hypothesis(help, succ, lmwt));
+			if (active.state[k] == stateStart[n + 1] - stateStart[n] - 1) {
+				int token = -1;
+				for (int j = childStart[n]; j < childStart[n + 1]; ++j) {
+					int succ = children[j];
+					if (token < 0)
+						token = trace.add(n, (short) 0, bp, vs, as, true);
+
+					if (word[succ] >= 0) {
+						double wvs = vs + lmwt * f[succ];
+						int wnull = trace.add(succ, (short) 0, token, wvs, as, true);
+						if (lattice != null)
+							trace.lat[wnull] = PENDING;
+						expanded.vadd(succ, (short) 0, wvs, as, wnull);
 					} else
-						expanded.vadd(new Hypothesis(h, h.node, 0.));
+						expanded.vadd(n, (short) 0, vs, as, token);
 				}
 			} else {
-				// track back to the last proper hypothesis, but maintain the 
+				// track back to the last proper hypothesis, but maintain the
 				// viterbi score!
-				Hypothesis it = h;
-				while (it.p != null && !(it.nullhyp && it.node.isWordNode()))
-					it = it.p;
-				if (it.p != null) {
-					it.vs = h.vs;
-					expanded.vadd(it);
+				int it = bp;
+				while (trace.prev[it] >= 0 && !(trace.nullhyp[it] && word[trace.node[it]] >= 0))
+					it = trace.prev[it];
+				if (trace.prev[it] >= 0) {
+					int copy = trace.add(trace.node[it], (short) 0, trace.prev[it], vs, trace.as[it], true);
+					trace.lat[copy] = trace.lat[it];
+					expanded.vadd(trace.node[it], (short) 0, vs, trace.as[it], copy);
+				} else if (trace.node[it] != 0) {
+					// reached the last commit point: no word since then
+					expanded.vadd(trace.node[it], trace.state[it], vs, trace.as[it],
+							trace.add(trace.node[it], trace.state[it], it, vs, trace.as[it], false));
 				}
 			}
 		}
-		
-		// sort active hypotheses
-		Collections.sort(expanded);
-		
-		// prune down to beam size
-		Iterator<Hypothesis> it = expanded.iterator();
-		for (int i = 0; i < bs && it.hasNext(); ++i)
-			active.add(it.next());
-		
+
+		// prune down to beam size; the back pointers already refer to the
+		// concluding null-hypotheses
+		active.clear();
+		if (expanded.size > 0) {
+			int [] ord = sortExpanded();
+			for (int i = 0; i < expanded.size && active.size < bs; ++i) {
+				int k = ord[i];
+				active.add(expanded.node[k], expanded.state[k], expanded.vs[k], expanded.as[k], expanded.bp[k]);
+			}
+		}
+		sorted = true;
+
 		// clear expanded hypotheses
 		expanded.clear();
+
+		// record the final word ends
+		if (lattice != null) {
+			int [] finals = new int [active.size];
+			double [] scores = new double [active.size];
+			int nf = 0;
+			for (int k = 0; k < active.size; ++k) {
+				int b = active.bp[k];
+				if (trace.lat[b] == PENDING)
+					record(b, frame);
+				if (trace.lat[b] >= 0) {
+					scores[nf] = active.vs[k];
+					finals[nf++] = trace.lat[b];
+				}
+			}
+			lattice.setFinals(Arrays.copyOf(finals, nf), Arrays.copyOf(scores, nf));
+		}
+	}
+
+	/**
+	 * Commit the history shared by all active hypotheses, which cannot change
+	 * anymore: the returned Hypothesis chain covers the frames from the last
+	 * commit (its root) to the common ancestor. The committed history is
+	 * released from the trace, i.e. later results start at the commit point.
+	 * Use extractWords() on the result to obtain the newly stable words.
+	 * @return committed partial hypothesis, null if there is nothing new
+	 */
+	public Hypothesis commit() {
+		int ca = trace.commonAncestor(active);
+		if (ca < 0 || trace.prev[ca] < 0)
+			return null;
+
+		Hypothesis h = backtrack(ca);
+
+		// cut the history; compacting the trace will release it
+		trace.prev[ca] = -1;
+
+		return h;
+	}
+
+	/**
+	 * Get the number of entries currently held in the search trace
+	 */
+	public int getTraceSize() {
+		return trace.size;
 	}
-	
+
 	/**
 	 * Feed a list of observations to the Viterbi beam search
 	 * @param list
@@ -298,36 +1228,186 @@ public class ViterbiBeamSearch {
 		for (double [] x : list)
 			step(x);
 	}
-	
+
 	/**
 	 * Get the best n active hypotheses
 	 * @param n if n == 0 or n > active.size then n = active.size
 	 * @return
 	 */
 	public List<Hypothesis> getBestHypotheses(int n) {
-		if (n == 0)
-			n = active.size();
-		return active.subList(0, n > active.size()? active.size() : n);
+		if (n == 0 || n > active.size)
+			n = active.size;
+
+		sortActive();
+
+		List<Hypothesis> list = new ArrayList<Hypothesis>(n);
+		for (int k = 0; k < n; ++k)
+			list.add(backtrack(active.bp[k]));
+
+		return list;
+	}
+
+	/**
+	 * Make sure the active hypotheses are ordered by score
+	 */
+	private void sortActive() {
+		if (sorted)
+			return;
+
+		int [] ord = new int [active.size];
+		for (int i = 0; i < ord.length; ++i)
+			ord[i] = i;
+		sort(ord, active.vs, 0, ord.length - 1);
+
+		SlotList help = new SlotList(Math.max(1, ord.length));
+		for (int k : ord)
+			help.add(active.node[k], active.state[k], active.vs[k], active.as[k], active.bp[k]);
+		for (int k = 0; k < ord.length; ++k)
+			active.set(k, help.node[k], help.state[k], help.vs[k], help.as[k], help.bp[k]);
+
+		sorted = true;
 	}
-	
+
 	/**
 	 * Return the best hypothesis surviving the beam.
 	 * @return null if the beam is empty
 	 */
 	public Hypothesis getBestHypothesis() {
-		if (active.size() > 0)
-			return active.peek();
-		else 
-			return null;
+		if (active.size > 0) {
+			sortActive();
+			return backtrack(active.bp[0]);
+		}
+		return null;
+	}
+
+	/**
+	 * Generate the Hypothesis chain for the given trace entry.
+	 */
+	private Hypothesis backtrack(int t) {
+		int len = 0;
+		for (int it = t; it >= 0; it = trace.prev[it])
+			len++;
+
+		int [] path = new int [len];
+		for (int it = t; it >= 0; it = trace.prev[it])
+			path[--len] = it;
+
+		Hypothesis h = new Hypothesis(nodes[trace.node[path[0]]]);
+		for (int i = 1; i < path.length; ++i) {
+			int it = path[i];
+			h = new Hypothesis(h, nodes[trace.node[it]], trace.state[it], trace.vs[it], trace.as[it], trace.nullhyp[it]);
+		}
+
+		return h;
+	}
+
+	/**
+	 * Sort the given index array (range lo...hi, inclusive) by descending
+	 * score; ties are broken by the index to make the order deterministic.
+	 */
+	private static void sort(int [] idx, double [] score, int lo, int hi) {
+		while (hi - lo > 16) {
+			// median of three
+			int mid = (lo + hi) >>> 1;
+			if (before(idx[mid], idx[lo], score))
+				swap(idx, lo, mid);
+			if (before(idx[hi], idx[lo], score))
+				swap(idx, lo, hi);
+			if (before(idx[hi], idx[mid], score))
+				swap(idx, mid, hi);
+
+			int pivot = idx[mid];
+			int i = lo, j = hi;
+			while (i <= j) {
+				while (before(idx[i], pivot, score))
+					i++;
+				while (before(pivot, idx[j], score))
+					j--;
+				if (i <= j)
+					swap(idx, i++, j--);
+			}
+
+			// recurse into the smaller part
+			if (j - lo < hi - i) {
+				sort(idx, score, lo, j);
+				lo = i;
+			} else {
+				sort(idx, score, i, hi);
+				hi = j;
+			}
+		}
+
+		// insertion sort for the small ranges
+		for (int i = lo + 1; i <= hi; ++i) {
+			int v = idx[i];
+			int j = i - 1;
+			while (j >= lo && before(v, idx[j], score)) {
+				idx[j + 1] = idx[j];
+				j--;
+			}
+			idx[j + 1] = v;
+		}
+	}
+
+	/**
+	 * Partially order the index array (range lo...hi, inclusive) so that the
+	 * k-th best element is at position k, and all better ones are before it.
+	 */
+	private static void select(int [] idx, double [] score, int lo, int hi, int k) {
+		while (hi > lo) {
+			// median of three
+			int mid = (lo + hi) >>> 1;
+			if (before(idx[mid], idx[lo], score))
+				swap(idx, lo, mid);
+			if (before(idx[hi], idx[lo], score))
+				swap(idx, lo, hi);
+			if (before(idx[hi], idx[mid], score))
+				swap(idx, mid, hi);
+
+			int pivot = idx[mid];
+			int i = lo, j = hi;
+			while (i <= j) {
+				while (before(idx[i], pivot, score))
+					i++;
+				while (before(pivot, idx[j], score))
+					j--;
+				if (i <= j)
+					swap(idx, i++, j--);
+			}
+
+			if (k <= j)
+				hi = j;
+			else if (k >= i)
+				lo = i;
+			else
+				return;
+		}
+	}
+
+	/**
+	 * Total order of the hypotheses: higher score first, lower index first
+	 */
+	private static boolean before(int a, int b, double [] score) {
+		return score[a] > score[b] || (score[a] == score[b] && a < b);
+	}
+
+	private static void swap(int [] idx, int i, int j) {
+		int h = idx[i];
+		idx[i] = idx[j];
+		idx[j] = h;
 	}
-	
+
 	/**
 	 * The ViterbiList overwrites the add method of the LinkedList to help the
 	 * Viterbi beam search. In case of an existing Hypothesis, only the better 
 	 * scoring one is kept, otherwise the Hypothesis is appended to the list.
 	 * 
+	 * @deprecated the decoder keeps its hypotheses in array based slots (see
+	 *             SlotList) and no longer uses this list; kept for existing
+	 *             callers
 	 * @author sikoried
 	 */
+	@Deprecated
 	public static final class ViterbiList extends LinkedList<Hypothesis> {
 		private static final long serialVersionUID = 1L;
 
@@ -361,7 +1441,314 @@ public class ViterbiBeamSearch {
 			return add(h);
 		}
 	}
-	
+
+	/**
+	 * The SlotList is an array based list of hypothesis slots to help the
+	 * Viterbi beam search. In case of an existing hypothesis (same node and
+	 * state), only the better scoring one is kept, otherwise the hypothesis is
+	 * appended to the list. As each LST is specific to its predecessor word,
+	 * node and state identify the history of the hypothesis. The slots are
+	 * reused after a clear().
+	 * <p>
+	 * Hypotheses added by vadd() are indexed by an open addressing hash table
+	 * on (node, state) with linear probing; the table is invalidated in
+	 * constant time by incrementing the generation counter.
+	 *
+	 * @author sikoried
+	 */
+	static final class SlotList {
+		/** number of used slots */
+		int size = 0;
+
+		/** node ids */
+		int [] node;
+
+		/** HMM states */
+		short [] state;
+
+		/** Viterbi scores */
+		double [] vs;
+
+		/** acoustic scores */
+		double [] as;
+
+		/** back pointers to the trace */
+		int [] bp;
+
+		/** hash table: slot indices */
+		private int [] table;
+
+		/** hash table: generation of the table cells; outdated cells are free */
+		private int [] stamp;
+
+		/** current generation */
+		private int generation = 1;
+
+		/** table size - 1, table size is a power of 2 */
+		private int mask;
+
+		SlotList(int capacity) {
+			node = new int [capacity];
+			state = new short [capacity];
+			vs = new double [capacity];
+			as = new double [capacity];
+			bp = new int [capacity];
+
+			allocateTable(capacity);
+		}
+
+		/**
+		 * Allocate a hash table with a load factor of at most 1/2
+		 */
+		private void allocateTable(int capacity) {
+			int ts = Integer.highestOneBit(Math.max(capacity, 8)) << 2;
+			table = new int [ts];
+			stamp = new int [ts];
+			mask = ts - 1;
+			generation = 1;
+		}
+
+		/**
+		 * Hash the (node, state) pair
+		 */
+		private int hash(int n, short s) {
+			int h = (n * 31 + s) * 0x9e3779b9;
+			return (h ^ (h >>> 16)) & mask;
+		}
+
+		int capacity() {
+			return node.length;
+		}
+
+		void clear() {
+			size = 0;
+
+			// invalidate the hash table
+			if (++generation == Integer.MAX_VALUE) {
+				Arrays.fill(stamp, 0);
+				generation = 1;
+			}
+		}
+
+		/**
+		 * Append the given hypothesis, no recombination.
+		 */
+		void add(int n, short s, double v, double a, int b) {
+			if (size == node.length)
+				grow();
+			set(size++, n, s, v, a, b);
+		}
+
+		void set(int i, int n, short s, double v, double a, int b) {
+			node[i] = n;
+			state[i] = s;
+			vs[i] = v;
+			as[i] = a;
+			bp[i] = b;
+		}
+
+		/**
+		 * Add the given hypothesis: Insert if no matching hypothesis, replace
+		 * matching worse hypothesis, discard if matching hypothesis is better.
+		 *
+		 * @return true if the hypothesis was inserted
+		 */
+		boolean vadd(int n, short s, double v, double a, int b) {
+			int h = hash(n, s);
+			while (stamp[h] == generation) {
+				int i = table[h];
+				if (node[i] == n && state[i] == s) {
+					if (vs[i] < v) {
+						// new hyp is better than old -> replace!
+						set(i, n, s, v, a, b);
+						return true;
+					} else {
+						// new hyp is worse than old -> don't bother
+						return false;
+					}
+				}
+				h = (h + 1) & mask;
+			}
+
+			// no matching hypothesis found, insert!
+			if (size == node.length) {
+				grow();
+				h = hash(n, s);
+				while (stamp[h] == generation)
+					h = (h + 1) & mask;
+			}
+
+			table[h] = size;
+			stamp[h] = generation;
+			set(size++, n, s, v, a, b);
+
+			return true;
+		}
+
+		private void grow() {
+			int c = node.length * 2;
+			node = Arrays.copyOf(node, c);
+			state = Arrays.copyOf(state, c);
+			vs = Arrays.copyOf(vs, c);
+			as = Arrays.copyOf(as, c);
+			bp = Arrays.copyOf(bp, c);
+
+			// re-index the current hypotheses
+			allocateTable(c);
+			for (int i = 0; i < size; ++i) {
+				int h = hash(node[i], state[i]);
+				while (stamp[h] == generation)
+					h = (h + 1) & mask;
+				table[h] = i;
+				stamp[h] = generation;
+			}
+		}
+	}
+
+	/**
+	 * The Trace stores the history of the surviving hypotheses and their
+	 * null-hypotheses in primitive arrays; each entry points to its
+	 * predecessor, which always has a lower index. Entries no longer reachable
+	 * from the active hypotheses are discarded by compact().
+	 *
+	 * @author sikoried
+	 */
+	static final class Trace {
+		/** number of used entries */
+		int size = 0;
+
+		int [] node;
+		short [] state;
+		int [] prev;
+		double [] vs;
+		double [] as;
+		boolean [] nullhyp;
+
+		/** last lattice word end on the path (or PENDING for unrecorded word ends) */
+		int [] lat;
+
+		/** mark and relocation buffer for compact(), counter for commonAncestor() */
+		int [] reloc;
+
+		Trace(int capacity) {
+			allocate(capacity);
+		}
+
+		private void allocate(int capacity) {
+			node = new int [capacity];
+			state = new short [capacity];
+			prev = new int [capacity];
+			vs = new double [capacity];
+			as = new double [capacity];
+			nullhyp = new boolean [capacity];
+			lat = new int [capacity];
+			reloc = new int [capacity];
+		}
+
+		int capacity() {
+			return node.length;
+		}
+
+		void clear() {
+			size = 0;
+		}
+
+		/**
+		 * Append a new entry
+		 * @return index of the new entry
+		 */
+		int add(int n, short s, int p, double v, double a, boolean isnull) {
+			if (size == node.length)
+				grow();
+
+			node[size] = n;
+			state[size] = s;
+			prev[size] = p;
+			vs[size] = v;
+			as[size] = a;
+			nullhyp[size] = isnull;
+			lat[size] = p < 0 ? -1 : lat[p];
+
+			return size++;
+		}
+
+		private void grow() {
+			int c = node.length * 2;
+			node = Arrays.copyOf(node, c);
+			state = Arrays.copyOf(state, c);
+			prev = Arrays.copyOf(prev, c);
+			vs = Arrays.copyOf(vs, c);
+			as = Arrays.copyOf(as, c);
+			nullhyp = Arrays.copyOf(nullhyp, c);
+			lat = Arrays.copyOf(lat, c);
+			reloc = new int [c];
+		}
+
+		/**
+		 * Remove all entries not reachable from the given hypotheses and update
+		 * their back pointers. The relative order of the entries is maintained.
+		 */
+		void compact(SlotList live) {
+			// mark: as predecessors have lower indices, one backward pass suffices
+			Arrays.fill(reloc, 0, size, -1);
+			for (int k = 0; k < live.size; ++k)
+				reloc[live.bp[k]] = 0;
+			for (int i = size - 1; i >= 0; --i) {
+				if (reloc[i] >= 0 && prev[i] >= 0)
+					reloc[prev[i]] = 0;
+			}
+
+			// sweep: move the marked entries to the front
+			int j = 0;
+			for (int i = 0; i < size; ++i) {
+				if (reloc[i] < 0)
+					continue;
+
+				reloc[i] = j;
+				node[j] = node[i];
+				state[j] = state[i];
+				prev[j] = prev[i] < 0 ? -1 : reloc[prev[i]];
+				vs[j] = vs[i];
+				as[j] = as[i];
+				nullhyp[j] = nullhyp[i];
+				lat[j] = lat[i];
+				j++;
+			}
+			size = j;
+
+			for (int k = 0; k < live.size; ++k)
+				live.bp[k] = reloc[live.bp[k]];
+
+			// still crowded? make room to avoid compacting every frame
+			if (size > capacity() / 2)
+				grow();
+		}
+
+		/**
+		 * Find the latest entry shared by the histories of all given
+		 * hypotheses: count the hypotheses passing through each entry in one
+		 * backward pass; the first entry reached by all of them is the deepest.
+		 * @return index of the common ancestor, -1 if there is none
+		 */
+		int commonAncestor(SlotList live) {
+			if (live.size == 0)
+				return -1;
+
+			Arrays.fill(reloc, 0, size, 0);
+			for (int k = 0; k < live.size; ++k)
+				reloc[live.bp[k]]++;
+
+			for (int i = size - 1; i >= 0; --i) {
+				if (reloc[i] == live.size)
+					return i;
+				if (prev[i] >= 0)
+					reloc[prev[i]] += reloc[i];
+			}
+
+			return -1;
+		}
+	}
+
 	/**
 	 * The Hypothesis couples all necessary information for the decoding process:
 	 * Current Viterbi and acoustic score, node and (HMM) state as well as a pointer
@@ -419,6 +1806,20 @@ public class ViterbiBeamSearch {
 			return nh;
 		}
 		
+		/**
+		 * Restore a Hypothesis from the search trace; the origin is derived
+		 * from the predecessor.
+		 */
+		private Hypothesis(Hypothesis parent, TreeNode n, short state, double vs, double as, boolean nullhyp) {
+			this.p = parent;
+			this.node = n;
+			this.origin = (!nullhyp && parent.nullhyp) ? this : parent.origin;
+			this.s = state;
+			this.vs = vs;
+			this.as = as;
+			this.nullhyp = nullhyp;
+		}
+		
 		/**
 		 * Allocate a new Hypothesis modeling a node internal state transition
 		 * to the given state with the given probability
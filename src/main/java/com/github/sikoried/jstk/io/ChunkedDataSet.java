@@ -25,8 +25,17 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.github.sikoried.jstk.stat.Sample;
 
@@ -38,11 +47,58 @@ import com.github.sikoried.jstk.stat.Sample;
  *
  */
 public class ChunkedDataSet {
-	private LinkedList<File> validFiles = new LinkedList<File> ();
-	private int cind = 0;
+	private ArrayList<File> validFiles = new ArrayList<File> ();
+	
+	/** chunks in the order they are handed out, see schedule() */
+	private volatile ArrayList<Range> chunks = new ArrayList<Range>();
+	
+	/** index of the next chunk */
+	private AtomicInteger cind = new AtomicInteger(0);
+	
+	/** scheduling, see schedule() */
+	private boolean largestFirst = false;
+	private long maxFrames = 0;
 
 	private int fs = 0;  // frame size for all chunks
 	
+	/** frame cache: maximum and current size in bytes, see setFrameCache() */
+	private long cacheLimit = 0;
+	private long cacheSize = 0;
+	
+	/** 
+	 * A scheduled chunk: a whole file or a range of its frames
+	 */
+	private static final class Range {
+		File file;
+		
+		/** first frame and number of frames, -1 for the whole file */
+		long first = -1;
+		long frames = -1;
+		
+		/** frame size (known for partial files only) */
+		int fs = 0;
+		
+		/** size in bytes */
+		long bytes;
+		
+		Range(File file) {
+			this.file = file;
+			this.bytes = file.length();
+		}
+		
+		Range(File file, long first, long frames, int fs) {
+			this.file = file;
+			this.first = first;
+			this.frames = frames;
+			this.fs = fs;
+			this.bytes = 4L * frames * fs;
+		}
+	}
+	
+	/** cached frames and frame sizes of the chunks (null if not cached) */
+	private float [][] cache = null;
+	private int [] cacheFs = null;
+	
 	/**
 	 * A chunk consists of its name and a (ready-to-read) FrameInputStream
 	 */
@@ -50,6 +106,12 @@ public class ChunkedDataSet {
 		/** file to work on */
 		private File file;
 		
+		/** index in the chunk list, -1 if unknown */
+		private int index = -1;
+		
+		/** frame range of the file, null for the whole file */
+		private Range range = null;
+		
 		/**
 		 * Create a new Chunk and prepare the FrameInputStream to read from the given
 		 * file.
@@ -61,13 +123,68 @@ public class ChunkedDataSet {
 			this.file = file;
 		}
 		
+		private Chunk(Range r, int index) {
+			this.file = r.file;
+			this.index = index;
+			if (r.first >= 0)
+				this.range = r;
+		}
+		
+		/**
+		 * Get a FrameSource for the chunk: the cached frames if the frame cache
+		 * is enabled (the first call for a chunk loads it into the cache if the
+		 * size limit permits), the FrameInputStream otherwise. Partial files 
+		 * are always loaded at once.
+		 */
+		public FrameSource getFrameSource() throws IOException {
+			if (index < 0)
+				return getFrameReader();
+			
+			float [] data = null;
+			int cfs = 0;
+			synchronized (ChunkedDataSet.this) {
+				if (cache == null && range == null)
+					return getFrameReader();
+				if (cache != null) {
+					data = cache[index];
+					cfs = cacheFs[index];
+				}
+			}
+			
+			if (data == null) {
+				long header = (fs == 0 ? 4 : 0);
+				long offset = (range == null ? header : header + 4L * range.first * range.fs);
+				long bytes = (range == null ? file.length() - header : range.bytes);
+				
+				boolean keep = reserve(bytes);
+				if (!keep && range == null)
+					return getFrameReader();
+				
+				data = load(file, offset, bytes);
+				cfs = (range != null ? range.fs : (fs == 0 ? frameSize(file) : fs));
+				
+				if (keep) {
+					synchronized (ChunkedDataSet.this) {
+						cache[index] = data;
+						cacheFs[index] = cfs;
+					}
+				}
+			}
+			
+			return new CachedFrameSource(data, cfs);
+		}
+		
 		/** FrameInputStream allocated on demand */
 		private FrameInputStream reader = null;
 		
 		/**
-		 * Get the initialized FrameInputStream
+		 * Get the initialized FrameInputStream; not available for chunks that
+		 * cover only a part of a file (see schedule()), use getFrameSource().
 		 */
 		public FrameInputStream getFrameReader() throws IOException {
+			if (range != null)
+				throw new IOException("chunk covers frames " + range.first + " to " + (range.first + range.frames - 1) + " of " + file + " only, use getFrameSource()");
+			
 			if (reader == null)
 				reader = new FrameInputStream(file, true, fs);
 			
@@ -80,19 +197,210 @@ public class ChunkedDataSet {
 	 * @return Chunk instance on success, null if there's no more chunks
 	 * @throws IOException
 	 */
-	public synchronized Chunk nextChunk() throws IOException {
-		if (validFiles.size() == 0)
+	public Chunk nextChunk() throws IOException {
+		ArrayList<Range> c = chunks;
+		if (cind.get() >= c.size())
 			return null;
-		if (cind < validFiles.size())
-			return new Chunk(validFiles.get(cind++));
+		
+		int i = cind.getAndIncrement();
+		if (i < c.size())
+			return new Chunk(c.get(i), i);
 		return null;
 	}
 	
+	/**
+	 * Set the order of the chunks: either in the order of the list or sorted
+	 * by size, largest first, so that the last chunks of a pass are the 
+	 * smallest ones and the threads finish at about the same time. Files 
+	 * with more than maxFrames frames are split into chunks of at most 
+	 * maxFrames frames (requires the frame size from the header or the 
+	 * constructor; float data only). Resets the frame cache and rewinds.
+	 * @param largestFirst sort the chunks by size, descending
+	 * @param maxFrames maximum number of frames per chunk, 0 for whole files
+	 */
+	public synchronized void schedule(boolean largestFirst, long maxFrames) throws IOException {
+		this.largestFirst = largestFirst;
+		this.maxFrames = maxFrames;
+		
+		ArrayList<Range> c = new ArrayList<Range>();
+		for (File f : validFiles) {
+			if (maxFrames > 0) {
+				int ffs = (fs == 0 ? frameSize(f) : fs);
+				long total = (f.length() - (fs == 0 ? 4 : 0)) / (4L * ffs);
+				if (total > maxFrames) {
+					for (long first = 0; first < total; first += maxFrames)
+						c.add(new Range(f, first, Math.min(maxFrames, total - first), ffs));
+					continue;
+				}
+			}
+			c.add(new Range(f));
+		}
+		
+		if (largestFirst) {
+			Collections.sort(c, new Comparator<Range>() {
+				public int compare(Range r1, Range r2) {
+					return Long.compare(r2.bytes, r1.bytes);
+				}
+			});
+		}
+		
+		chunks = c;
+		cind.set(0);
+		setFrameCache(cacheLimit);
+	}
+	
+	/**
+	 * Restrict the data set to one of several disjoint partitions of the
+	 * files, e.g. to distribute the accumulation over several processes.
+	 * The files are assigned by size, largest first, each to the partition
+	 * with the least bytes so far; the assignment only depends on the list
+	 * and the file sizes, thus all processes agree on it. The remaining files
+	 * keep their list order. Reschedules and rewinds.
+	 * @param shard partition to keep, 0...shards-1
+	 * @param shards number of partitions
+	 */
+	public synchronized void partition(int shard, int shards) throws IOException {
+		if (shard < 0 || shard >= shards)
+			throw new IllegalArgumentException("invalid partition " + shard + " of " + shards);
+		
+		Integer [] order = new Integer [validFiles.size()];
+		for (int i = 0; i < order.length; ++i)
+			order[i] = i;
+		
+		final ArrayList<File> files = validFiles;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer i1, Integer i2) {
+				int c = Long.compare(files.get(i2).length(), files.get(i1).length());
+				return c != 0 ? c : Integer.compare(i1, i2);
+			}
+		});
+		
+		long [] load = new long [shards];
+		boolean [] keep = new boolean [order.length];
+		for (int i : order) {
+			int target = 0;
+			for (int j = 1; j < shards; ++j)
+				if (load[j] < load[target])
+					target = j;
+			load[target] += files.get(i).length();
+			keep[i] = (target == shard);
+		}
+		
+		ArrayList<File> part = new ArrayList<File>();
+		for (int i = 0; i < keep.length; ++i)
+			if (keep[i])
+				part.add(files.get(i));
+		
+		validFiles = part;
+		schedule(largestFirst, maxFrames);
+	}
+	
+	/**
+	 * Enable the frame cache: the frames of each chunk are kept in memory
+	 * (as floats, the precision of the files) when first read through
+	 * Chunk.getFrameSource(), up to the given total size; the remaining 
+	 * chunks are read from disk in each pass. Only for float data.
+	 * @param maxBytes maximum size of the cached frames in bytes, 0 to disable
+	 */
+	public synchronized void setFrameCache(long maxBytes) {
+		cacheLimit = maxBytes;
+		cacheSize = 0;
+		if (maxBytes > 0) {
+			cache = new float [chunks.size()][];
+			cacheFs = new int [chunks.size()];
+		} else {
+			cache = null;
+			cacheFs = null;
+		}
+	}
+	
+	/**
+	 * Get the current size of the frame cache in bytes
+	 */
+	public synchronized long getFrameCacheSize() {
+		return cacheSize;
+	}
+	
+	/**
+	 * Reserve the given number of bytes in the frame cache
+	 * @return true if the limit permits
+	 */
+	private synchronized boolean reserve(long bytes) {
+		if (cache == null || bytes > Integer.MAX_VALUE || cacheSize + bytes > cacheLimit)
+			return false;
+		cacheSize += bytes;
+		return true;
+	}
+	
+	/**
+	 * Read the frame size from the header of a Frame format file
+	 */
+	private static int frameSize(File file) throws IOException {
+		FrameInputStream fis = new FrameInputStream(file);
+		int size = fis.getFrameSize();
+		fis.close();
+		return size;
+	}
+	
+	/**
+	 * Load the given range of the given file (float data) at once
+	 */
+	private static float [] load(File file, long offset, long bytes) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel fc = raf.getChannel();
+			ByteBuffer bb = fc.map(FileChannel.MapMode.READ_ONLY, offset, bytes);
+			bb.order(ByteOrder.LITTLE_ENDIAN);
+			float [] data = new float [bb.remaining() / 4];
+			bb.asFloatBuffer().get(data);
+			return data;
+		} finally {
+			raf.close();
+		}
+	}
+	
+	/**
+	 * FrameSource reading from the frame cache
+	 */
+	private static class CachedFrameSource implements FrameSource {
+		private float [] data;
+		private int fs;
+		private int pos = 0;
+		
+		CachedFrameSource(float [] data, int fs) {
+			this.data = data;
+			this.fs = fs;
+		}
+		
+		public boolean read(double [] buf) {
+			// as FrameInputStream: fill the whole buffer, drop incomplete frames
+			int n = buf.length;
+			if (pos + n > data.length)
+				return false;
+			for (int i = 0; i < n; ++i)
+				buf[i] = data[pos + i];
+			pos += n;
+			return true;
+		}
+		
+		public int getFrameSize() {
+			return fs;
+		}
+		
+		public FrameSource getSource() {
+			return null;
+		}
+		
+		public String toString() {
+			return "ChunkedDataSet.CachedFrameSource: frame_size=" + fs + " frames=" + (data.length / fs);
+		}
+	}
+	
 	/**
 	 * Rewind the chunk list and start again from the first.
 	 */
-	public synchronized void rewind() {
-		cind = 0;
+	public void rewind() {
+		cind.set(0);
 	}
 	
 	/** 
@@ -143,6 +451,8 @@ public class ChunkedDataSet {
 			else
 				throw new IOException("Could not read file " + file);
 		}
+		
+		schedule(largestFirst, maxFrames);
 	}
 	
 	/**
@@ -150,7 +460,7 @@ public class ChunkedDataSet {
 	 * @return
 	 */
 	public int numberOfChunks() {
-		return validFiles.size();
+		return chunks.size();
 	}
 	
 	/**
@@ -172,6 +482,10 @@ public class ChunkedDataSet {
 			else
 				throw new IOException("Could not read file " + name);
 		}
+		br.close();
+		
+		// start over with the new list
+		schedule(largestFirst, maxFrames);
 	}
 	
 	/**
@@ -181,19 +495,19 @@ public class ChunkedDataSet {
 	 */
 	public synchronized List<Sample> cachedData() throws IOException {
 		// remember old index
-		int oldInd = cind;
-		cind = 0;
+		int oldInd = cind.getAndSet(0);
 		
 		LinkedList<Sample> data = new LinkedList<Sample>();
 		Chunk chunk;
 		while ((chunk = nextChunk()) != null) {
-			double [] buf = new double [chunk.getFrameReader().getFrameSize()];
-			while (chunk.reader.read(buf))
+			FrameSource source = chunk.getFrameSource();
+			double [] buf = new double [source.getFrameSize()];
+			while (source.read(buf))
 				data.add(new Sample((short) 0, buf));
 		}
 		
 		// restore old index
-		cind = oldInd;
+		cind.set(oldInd);
 		
 		return data;
 	}
@@ -0,0 +1,316 @@
+/*
+	Copyright (c) 2009-2011
+		Speech Group at Informatik 5, Univ. Erlangen-Nuremberg, GERMANY
+		Korbinian Riedhammer
+		Tobias Bocklet
+
+	This file is part of the Java Speech Toolkit (JSTK).
+
+	The JSTK is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	The JSTK is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with the JSTK. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.github.sikoried.jstk.stat;
+
+import com.github.sikoried.jstk.util.Arithmetics;
+import com.github.sikoried.jstk.util.FastMath;
+
+/**
+ * An immutable, compiled copy of a Mixture for scoring. Unlike Mixture and
+ * Density, the scoring methods do not modify any fields; all intermediate
+ * results go to caller supplied buffers, thus a single instance can be
+ * shared by any number of threads.
+ * 
+ * The components are stored in the layout of Mixture.evaluateBatch: 
+ * log(apr N(x)) = c + w^T [x, x*x].
+ * 
+ * @author sikoried
+ */
+public final class CompiledMixture {
+	/** number of densities */
+	public final int nd;
+	
+	/** feature dimension */
+	public final int fd;
+	
+	/** diagonal covariances? */
+	public final boolean diagonal;
+	
+	/** length of the expanded feature vector [x, x*x] */
+	private final int dim;
+	
+	/** per component weights for [x, x*x] */
+	private final double [] w;
+	
+	/** per component constant */
+	private final double [] c;
+	
+	/**
+	 * Compile the current parameters of the given mixture; later changes to 
+	 * the mixture are not reflected.
+	 */
+	public CompiledMixture(Mixture m) {
+		nd = m.nd;
+		fd = m.fd;
+		diagonal = m.diagonal;
+		dim = dimension(fd, diagonal);
+		w = new double [nd * dim];
+		c = new double [nd];
+		compile(m, w, c);
+	}
+	
+	/**
+	 * Wrap an existing layout, see MixtureArchive; the arrays are not copied.
+	 */
+	CompiledMixture(int nd, int fd, boolean diagonal, double [] w, double [] c) {
+		this.nd = nd;
+		this.fd = fd;
+		this.diagonal = diagonal;
+		this.dim = dimension(fd, diagonal);
+		this.w = w;
+		this.c = c;
+	}
+	
+	/**
+	 * Allocate a scratch buffer suitable for all scoring methods; each 
+	 * thread needs its own.
+	 */
+	public double [] newScratch() {
+		return new double [Mixture.BATCH_BLOCK * dim];
+	}
+	
+	/**
+	 * Evaluate the component log-likelihoods (including the log priors) for
+	 * a block of frames, see Mixture.evaluateBatch
+	 * @param x frames
+	 * @param from index of the first frame
+	 * @param n number of frames
+	 * @param lh n x nd output matrix (allocated if null or too small)
+	 * @param scratch buffer from newScratch()
+	 * @return lh
+	 */
+	public double [][] evaluateBatch(double [][] x, int from, int n, double [][] lh, double [] scratch) {
+		if (lh == null || lh.length < n || (n > 0 && lh[0].length < nd))
+			lh = new double [n][nd];
+		
+		evaluate(w, c, nd, fd, diagonal, x, from, n, lh, scratch);
+		
+		return lh;
+	}
+	
+	/**
+	 * Evaluate the mixture for a single frame.
+	 * @param x feature vector
+	 * @param lh output: component log-likelihoods including the log priors
+	 * @param scratch buffer from newScratch()
+	 * @return log-likelihood of the mixture
+	 */
+	public double logEvaluate(double [] x, double [] lh, double [] scratch) {
+		if (x.length != fd)
+			throw new IllegalArgumentException("x.length = " + x.length + " != codebook dim = " + fd);
+		
+		expand(x, fd, diagonal, scratch, 0);
+		for (int k = 0; k < nd; ++k)
+			lh[k] = c[k] + dot(w, k * dim, scratch, 0, dim);
+		
+		return Arithmetics.logsumexp(lh, nd);
+	}
+	
+	/**
+	 * Evaluate a single component.
+	 * @param k component index
+	 * @param x feature vector
+	 * @param scratch buffer from newScratch()
+	 * @return log(prior) + log(N(x)), same as Density.logEvaluate
+	 */
+	public double logEvaluate(int k, double [] x, double [] scratch) {
+		expand(x, fd, diagonal, scratch, 0);
+		return c[k] + dot(w, k * dim, scratch, 0, dim);
+	}
+	
+	/**
+	 * Evaluate a subset of the components; the frame is expanded only once.
+	 * @param ks component indices
+	 * @param n number of components to evaluate, ks[0...n-1]
+	 * @param x feature vector
+	 * @param lh output: lh[j] is the log-likelihood (including the log prior)
+	 *        of component ks[j]
+	 * @param scratch buffer from newScratch()
+	 */
+	public void logEvaluate(int [] ks, int n, double [] x, double [] lh, double [] scratch) {
+		expand(x, fd, diagonal, scratch, 0);
+		for (int j = 0; j < n; ++j)
+			lh[j] = c[ks[j]] + dot(w, ks[j] * dim, scratch, 0, dim);
+	}
+	
+	/**
+	 * Normalize a row of component log-likelihoods to posteriors.
+	 * @param lh component log-likelihoods including the log priors
+	 * @param p container to save the posteriors to
+	 * @return log-likelihood of the mixture
+	 */
+	public double posteriors(double [] lh, double [] p) {
+		double ll = Arithmetics.logsumexp(lh, nd);
+		for (int i = 0; i < nd; ++i)
+			p[i] = FastMath.exp(lh[i] - ll);
+		return ll;
+	}
+	
+	/**
+	 * Get the size of the compiled parameters in bytes
+	 */
+	public long getParameterBytes() {
+		return 8L * (w.length + c.length);
+	}
+	
+	/**
+	 * Get the length of the expanded feature vector [x, x*x]
+	 */
+	static int dimension(int fd, boolean diagonal) {
+		return fd + (diagonal ? fd : fd * (fd + 1) / 2);
+	}
+	
+	/**
+	 * Compute the layout from the current parameters of the mixture.
+	 */
+	static void compile(Mixture m, double [] w, double [] c) {
+		int nd = m.nd;
+		int fd = m.fd;
+		int dim = dimension(fd, m.diagonal);
+		
+		double [] p = m.diagonal ? new double [fd] : new double [fd * fd];
+		
+		for (int k = 0; k < nd; ++k) {
+			Density d = m.components[k];
+			int o = k * dim;
+			
+			if (m.diagonal) {
+				for (int i = 0; i < fd; ++i)
+					p[i] = 1. / d.cov[i];
+				
+				double q = 0.;
+				for (int i = 0; i < fd; ++i) {
+					w[o + i] = p[i] * d.mue[i];
+					w[o + fd + i] = -.5 * p[i];
+					q += d.mue[i] * d.mue[i] * p[i];
+				}
+				c[k] = d.lapr - .5 * (d.logdet + d.logpiconst + q);
+			} else {
+				// P = L^-T L^-1 from the packed inverse Cholesky factor
+				double [] Li = ((DensityFull) d).Li;
+				for (int i = 0; i < fd; ++i) {
+					for (int j = 0; j <= i; ++j) {
+						double s = 0.;
+						for (int l = i; l < fd; ++l)
+							s += Li[l * (l + 1) / 2 + i] * Li[l * (l + 1) / 2 + j];
+						p[i * fd + j] = p[j * fd + i] = s;
+					}
+				}
+				
+				double q = 0.;
+				for (int i = 0; i < fd; ++i) {
+					double pm = 0.;
+					for (int j = 0; j < fd; ++j)
+						pm += p[i * fd + j] * d.mue[j];
+					w[o + i] = pm;
+					q += d.mue[i] * pm;
+				}
+				
+				// packed products x_i x_j, j < i appear once: double the weight
+				int q0 = o + fd;
+				for (int i = 0; i < fd; ++i)
+					for (int j = 0; j <= i; ++j)
+						w[q0++] = (i == j ? -.5 : -1.) * p[i * fd + j];
+				
+				c[k] = d.lapr - .5 * (d.logdet + d.logpiconst + q);
+			}
+		}
+	}
+	
+	/**
+	 * Expand the feature vector x to [x, x*x] and store it at xb[o].
+	 */
+	static void expand(double [] x, int fd, boolean diagonal, double [] xb, int o) {
+		System.arraycopy(x, 0, xb, o, fd);
+		o += fd;
+		if (diagonal) {
+			for (int i = 0; i < fd; ++i)
+				xb[o++] = x[i] * x[i];
+		} else {
+			for (int i = 0; i < fd; ++i)
+				for (int j = 0; j <= i; ++j)
+					xb[o++] = x[i] * x[j];
+		}
+	}
+	
+	/**
+	 * Batch kernel: evaluate the frames x[from...from+n-1] using the layout
+	 * (w, c); xb needs to hold Mixture.BATCH_BLOCK expanded frames.
+	 */
+	static void evaluate(double [] w, double [] c, int nd, int fd, boolean diagonal, double [][] x, int from, int n, double [][] lh, double [] xb) {
+		int dim = dimension(fd, diagonal);
+		
+		for (int b = 0; b < n; b += Mixture.BATCH_BLOCK) {
+			int m = Math.min(Mixture.BATCH_BLOCK, n - b);
+			
+			// expand the frames of the block
+			for (int t = 0; t < m; ++t) {
+				double [] xt = x[from + b + t];
+				if (xt.length != fd)
+					throw new IllegalArgumentException("x.length = " + xt.length + " != codebook dim = " + fd);
+				
+				expand(xt, fd, diagonal, xb, t * dim);
+			}
+			
+			// dot products, two frames by four components at a time so that
+			// each loaded weight and frame value is used several times
+			int t = 0;
+			for (; t + 1 < m; t += 2) {
+				double [] r0 = lh[b + t], r1 = lh[b + t + 1];
+				int o0 = t * dim, o1 = o0 + dim;
+				int k = 0;
+				for (; k + 3 < nd; k += 4) {
+					int w0 = k * dim, w1 = w0 + dim, w2 = w1 + dim, w3 = w2 + dim;
+					double s00 = 0., s01 = 0., s02 = 0., s03 = 0.;
+					double s10 = 0., s11 = 0., s12 = 0., s13 = 0.;
+					for (int i = 0; i < dim; ++i) {
+						double x0 = xb[o0 + i], x1 = xb[o1 + i];
+						double a0 = w[w0 + i], a1 = w[w1 + i], a2 = w[w2 + i], a3 = w[w3 + i];
+						s00 += a0 * x0; s01 += a1 * x0; s02 += a2 * x0; s03 += a3 * x0;
+						s10 += a0 * x1; s11 += a1 * x1; s12 += a2 * x1; s13 += a3 * x1;
+					}
+					r0[k] = c[k] + s00; r0[k + 1] = c[k + 1] + s01;
+					r0[k + 2] = c[k + 2] + s02; r0[k + 3] = c[k + 3] + s03;
+					r1[k] = c[k] + s10; r1[k + 1] = c[k + 1] + s11;
+					r1[k + 2] = c[k + 2] + s12; r1[k + 3] = c[k + 3] + s13;
+				}
+				for (; k < nd; ++k) {
+					r0[k] = c[k] + dot(w, k * dim, xb, o0, dim);
+					r1[k] = c[k] + dot(w, k * dim, xb, o1, dim);
+				}
+			}
+			
+			// odd frame
+			for (; t < m; ++t)
+				for (int k = 0; k < nd; ++k)
+					lh[b + t][k] = c[k] + dot(w, k * dim, xb, t * dim, dim);
+		}
+		
+	}
+	
+	private static double dot(double [] a, int oa, double [] b, int ob, int n) {
+		double s = 0.;
+		for (int i = 0; i < n; ++i)
+			s += a[oa + i] * b[ob + i];
+		return s;
+	}
+}
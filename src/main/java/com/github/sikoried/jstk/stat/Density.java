@@ -92,6 +92,9 @@ public abstract class Density {
 	/** log likelihood: log(apr*score) */
 	public double lh = 0.;
 	
+	/** log likelihood from the last logEvaluate call, no prior! */
+	public double logscore = 0.;
+	
 	/** cached version of log(Det) */
 	protected double logdet;
 	
@@ -127,6 +130,23 @@ public abstract class Density {
 	 * @return prior times score
 	 */
 	public abstract double evaluate(double [] x);
+
+	/**
+	 * Evaluate the density for the given sample vector x in the log domain,
+	 * without exponentiation (and thus without clamping to MIN_PROB); score
+	 * and ascore are not updated.
+	 * @param x feature vector
+	 * @return log(prior) + log(N(x)), also stored in lh; log(N(x)) is kept
+	 *         in logscore
+	 */
+	public abstract double logEvaluate(double [] x);
+
+	/**
+	 * Get the logarithm of the prior probability
+	 */
+	public double getLogPrior() {
+		return lapr;
+	}
 	
 	/**
 	 * Set the parameters of the density.
@@ -213,6 +233,7 @@ public abstract class Density {
 			cov[i] = 0.;
 		lapr = 0.;
 		lh = 0.;
+		logscore = 0.;
 	}
 	
 	/**
@@ -27,6 +27,8 @@ import org.apache.logging.log4j.Logger;
 import java.io.IOException;
 import java.util.Scanner;
 
+import com.github.sikoried.jstk.util.FastMath;
+
 
 
 /**
@@ -181,9 +183,10 @@ public final class DensityDiagonal extends Density {
 		
 		score *= -.5;
 		
+		logscore = score;
 		lh = lapr + score;
 		
-		score = Math.exp(score);
+		score = FastMath.exp(score);
 		
 		if (Double.isNaN(score) || score < MIN_PROB)
 			score = MIN_PROB;
@@ -192,6 +195,19 @@ public final class DensityDiagonal extends Density {
 		
 		return ascore;
 	}
+
+	public double logEvaluate(double [] x) {
+		// log of determinant + log(2*pi) + mahalanobis dist
+		double s = logdet + logpiconst;
+		double h;
+		for (int i = 0; i < fd; ++i) {
+			h = x[i] - mue[i];
+			s += h * h * icov[i];
+		}
+
+		logscore = -.5 * s;
+		return lh = lapr + logscore;
+	}
 	
 	/**
 	 * Create a deep copy of this instance.
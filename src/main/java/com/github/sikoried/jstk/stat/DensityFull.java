@@ -24,10 +24,8 @@ package com.github.sikoried.jstk.stat;
 import java.io.IOException;
 import java.util.Scanner;
 
+import com.github.sikoried.jstk.util.FastMath;
 
-
-import Jama.CholeskyDecomposition;
-import Jama.Matrix;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -43,6 +41,9 @@ import org.apache.logging.log4j.Logger;
  * 
  * y = L^-1 x => x = L y; solve using forward substitution
  * 
+ * For scoring, the inverse factor L^-1 is precomputed, thus
+ * y = L^-1 x - L^-1 mue is a plain triangular matrix-vector product.
+ * 
  * @author sikoried
  *
  */
@@ -52,8 +53,11 @@ public final class DensityFull extends Density {
 	/** cov = L L^T where L is a lower triangular, packed matrix; Cholesky decomposition!, diagonal element is stored inverted */
 	transient public double [] L;
 	
-	/** cache for forward substitution */
-	transient private double [] y;
+	/** L^-1, lower triangular, packed (regular diagonal) */
+	transient public double [] Li;
+	
+	/** L^-1 mue */
+	transient private double [] b;
 	
 	/**
 	 * Allocate a new full covariance density
@@ -63,7 +67,8 @@ public final class DensityFull extends Density {
 		super(dim);
 		cov = new double [fd * (fd + 1) / 2];
 		L = new double [fd * (fd + 1) / 2];
-		y = new double [fd];
+		Li = new double [fd * (fd + 1) / 2];
+		b = new double [fd];
 	}
 	
 	/**
@@ -163,32 +168,37 @@ public final class DensityFull extends Density {
 		if (minc > 0)
 			logger.info("Density#" + id + ".update(): enforced " + minc + " minimum variances");
 		
-		// construct the matrix
-		double [][] help = new double [fd][fd];
-		k = 0;
-		for (int i = 0; i < fd; ++i) {
-			for (int j = 0; j <= i; ++j)
-				help[i][j] = help[j][i] = cov[k++];
+		// compute the packed Cholesky decomposition cov = L L^T (same order
+		// of operations as Jama.CholeskyDecomposition)
+		boolean spd = true;
+		for (int j = 0; j < fd; ++j) {
+			int rj = j * (j + 1) / 2;
+			double d = 0.;
+			for (k = 0; k < j; ++k) {
+				int rk = k * (k + 1) / 2;
+				double s = 0.;
+				for (int i = 0; i < k; ++i)
+					s += L[rk + i] * L[rj + i];
+				L[rj + k] = s = (cov[rj + k] - s) / L[rk + k];
+				d = d + s * s;
+			}
+			d = cov[rj + j] - d;
+			spd = spd & (d > 0.);
+			L[rj + j] = Math.sqrt(Math.max(d, 0.));
 		}
 		
-		// compute cholesky decomposition
-		Matrix cm = new Jama.Matrix(help);
-		CholeskyDecomposition chol = cm.chol();
-		Matrix mat = chol.getL();
-		
 		// if the covariance matrix was not symmetric positive definite due to
 		// data sparsity, enforce a diagonal covariance and compute the Cholesky
 		// by hand
-		if (!chol.isSPD()) {
+		if (!spd) {
 			logger.info("Density#" + id + ".update(): enforced diagonal covariance");
 			k = 0;
 			for (int i = 0; i < fd; ++i) {
 				for (int j = 0; j <= i; ++j, ++k) {
 					if (i == j)
-						mat.set(i, i, Math.sqrt(cm.get(i, i)));
+						L[k] = Math.sqrt(cov[k]);
 					else {
-						mat.set(i, j, 0.);
-						mat.set(i, j, 0.);
+						L[k] = 0.;
 						cov[k] = 0.; 
 					}
 				}
@@ -198,18 +208,31 @@ public final class DensityFull extends Density {
 		// log |K| = log | L L^T | = log (det |L|)^2 = 2 * sum_i log L(i,i) 
 		logdet = 0.;
 		for (int i = 0; i < fd; ++i)
-			logdet += Math.log(mat.get(i,i));
+			logdet += Math.log(L[i * (i+1) / 2 + i]);
 		logdet *= 2.;
 		
-		// save the lower triangular matrix in a packed form
+		for (int i = 0; i < fd; ++i) 
+			L[i * (i+1) / 2 + i] = 1.0 / L[i * (i+1) / 2 + i];
+		
+		// invert L column by column using forward substitution
+		for (int col = 0; col < fd; ++col) {
+			for (int i = col; i < fd; ++i) {
+				int r = i * (i + 1) / 2;
+				double tmp = (i == col ? 1. : 0.);
+				for (int j = col; j < i; ++j)
+					tmp -= L[r + j] * Li[j * (j + 1) / 2 + col];
+				Li[r + col] = tmp * L[r + i];
+			}
+		}
+		
+		// b = L^-1 mue
 		k = 0;
 		for (int i = 0; i < fd; ++i) {
+			double tmp = 0.;
 			for (int j = 0; j <= i; ++j)
-				L[k++] = mat.get(i, j);
+				tmp += Li[k++] * mue[j];
+			b[i] = tmp;
 		}
-		
-		for (int i = 0; i < fd; ++i) 
-			L[i * (i+1) / 2 + i] = 1.0 / L[i * (i+1) / 2 + i];
 	}
 	
 	/**
@@ -228,29 +251,14 @@ public final class DensityFull extends Density {
 	public double evaluate(double [] x) {
 		// score = exp(-.5 * ( log(det) + fd*log(2*pi) + (x-mue)^T cov^-1 (x-mue)
 		
-		score = logdet + logpiconst;
-		
-		// forward substition Ly = (x-mue)
-		// y1 = x1 / L[1,1]
-		// y2 = (x2 - y1 L[2,1])/L[2,2]
-		// ...
-		int k = 0;
-		for (int i = 0; i < fd; ++i) {
-			double tmp = x[i] - mue[i];
-			for (int j = 0; j < i; ++j)
-				tmp -= y[j] * L[k++];
-			y[i] = tmp * L[k++]; // L[diag] is stored as inverse!
-		}
-		
-		// scalar product
-		for (int i = 0; i < fd; ++i)
-			score += y[i]*y[i];
+		score = logdet + logpiconst + mahalanobis(x);
 		
 		score *= -.5;
 		
+		logscore = score;
 		lh = lapr + score;
 		
-		score = Math.exp(score);
+		score = FastMath.exp(score);
 		
 		if (Double.isNaN(score) || score < MIN_PROB)
 			score = MIN_PROB;
@@ -259,6 +267,63 @@ public final class DensityFull extends Density {
 		
 		return ascore;
 	}
+
+	public double logEvaluate(double [] x) {
+		logscore = -.5 * (logdet + logpiconst + mahalanobis(x));
+		return lh = lapr + logscore;
+	}
+	
+	/**
+	 * Compute (x-mue)^T cov^-1 (x-mue) = || L^-1 x - L^-1 mue ||^2
+	 */
+	private double mahalanobis(double [] x) {
+		double s = 0.;
+		int k = 0;
+		for (int i = 0; i < fd; ++i) {
+			double y = -b[i];
+			for (int j = 0; j <= i; ++j)
+				y += Li[k++] * x[j];
+			s += y * y;
+		}
+		return s;
+	}
+	
+	/**
+	 * Evaluate the density for a block of frames in the log domain; four 
+	 * frames are processed at a time so that each element of the inverse
+	 * Cholesky factor is loaded only once for all of them. The lh field is
+	 * not updated.
+	 * @param x frames
+	 * @param from index of the first frame
+	 * @param n number of frames
+	 * @param out output: out[t] = log(prior) + log(N(x[from + t]))
+	 */
+	public void logEvaluate(double [][] x, int from, int n, double [] out) {
+		double c = lapr - .5 * (logdet + logpiconst);
+		
+		int t = 0;
+		for (; t + 3 < n; t += 4) {
+			double [] x0 = x[from + t], x1 = x[from + t + 1], x2 = x[from + t + 2], x3 = x[from + t + 3];
+			double s0 = 0., s1 = 0., s2 = 0., s3 = 0.;
+			int k = 0;
+			for (int i = 0; i < fd; ++i) {
+				double bi = b[i];
+				double y0 = -bi, y1 = -bi, y2 = -bi, y3 = -bi;
+				for (int j = 0; j <= i; ++j) {
+					double l = Li[k++];
+					y0 += l * x0[j]; y1 += l * x1[j]; y2 += l * x2[j]; y3 += l * x3[j];
+				}
+				s0 += y0 * y0; s1 += y1 * y1; s2 += y2 * y2; s3 += y3 * y3;
+			}
+			out[t] = c - .5 * s0;
+			out[t + 1] = c - .5 * s1;
+			out[t + 2] = c - .5 * s2;
+			out[t + 3] = c - .5 * s3;
+		}
+		
+		for (; t < n; ++t)
+			out[t] = c - .5 * mahalanobis(x[from + t]);
+	}
 	
 	/**
 	 * Obtain a string representation of the density.
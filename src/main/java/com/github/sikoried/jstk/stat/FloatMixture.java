@@ -0,0 +1,236 @@
+/*
+	Copyright (c) 2009-2011
+		Speech Group at Informatik 5, Univ. Erlangen-Nuremberg, GERMANY
+		Korbinian Riedhammer
+		Tobias Bocklet
+
+	This file is part of the Java Speech Toolkit (JSTK).
+
+	The JSTK is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	The JSTK is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with the JSTK. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.github.sikoried.jstk.stat;
+
+import java.util.Arrays;
+
+import com.github.sikoried.jstk.util.Arithmetics;
+import com.github.sikoried.jstk.util.FastMath;
+
+/**
+ * An immutable, single precision copy of a diagonal covariance Mixture for
+ * scoring; the counterpart of CompiledMixture at half the memory bandwidth.
+ *
+ * The means and scaled inverse variances are stored dimension by dimension
+ * with the components interleaved, i.e. mue[i * np + k] is dimension i of
+ * component k, and the number of components is padded to a multiple of
+ * LANES. The inner loop thus runs over the components as independent
+ * accumulators without any reduction, which allows the JIT to process
+ * several components with a single SIMD instruction. The constant terms are
+ * kept in double precision; the accumulation is either in single (fastest)
+ * or in double precision (more accurate).
+ *
+ * As with CompiledMixture, the scoring methods write to caller supplied
+ * buffers only, thus a single instance can be shared by any number of
+ * threads.
+ *
+ * @author sikoried
+ */
+public final class FloatMixture {
+	/** component padding, suits 512 bit registers */
+	public static final int LANES = 16;
+
+	/** number of densities */
+	public final int nd;
+
+	/** feature dimension */
+	public final int fd;
+
+	/** accumulate in double precision? */
+	public final boolean doubleAccumulation;
+
+	/** padded number of densities */
+	private final int np;
+
+	/** interleaved means */
+	private final float [] mue;
+
+	/** interleaved -.5 / cov */
+	private final float [] prec;
+
+	/** per component constant log(apr) - .5 (log(det) + fd log(2 pi)) */
+	private final double [] c;
+
+	/**
+	 * Per thread scoring buffers
+	 */
+	public static final class Scratch {
+		private final float [] x;
+		private final float [] fa;
+		private final double [] da;
+
+		private Scratch(FloatMixture fm) {
+			x = new float [fm.fd];
+			fa = new float [fm.np];
+			da = new double [fm.np];
+		}
+	}
+
+	/**
+	 * Convert the current parameters of the given diagonal mixture to single
+	 * precision; later changes to the mixture are not reflected.
+	 * @param m diagonal covariance mixture
+	 * @param doubleAccumulation accumulate the Mahalanobis distances in double
+	 */
+	public FloatMixture(Mixture m, boolean doubleAccumulation) {
+		if (!m.diagonal)
+			throw new IllegalArgumentException("FloatMixture requires diagonal covariances");
+
+		nd = m.nd;
+		fd = m.fd;
+		this.doubleAccumulation = doubleAccumulation;
+		np = (nd + LANES - 1) / LANES * LANES;
+
+		// the padding remains zero and does not contribute
+		mue = new float [fd * np];
+		prec = new float [fd * np];
+		c = new double [nd];
+
+		for (int k = 0; k < nd; ++k) {
+			Density d = m.components[k];
+			for (int i = 0; i < fd; ++i) {
+				mue[i * np + k] = (float) d.mue[i];
+				prec[i * np + k] = (float) (-.5 / d.cov[i]);
+			}
+			c[k] = d.lapr - .5 * (d.logdet + d.logpiconst);
+		}
+	}
+
+	/**
+	 * Allocate the buffers for the scoring methods; each thread needs its own.
+	 */
+	public Scratch newScratch() {
+		return new Scratch(this);
+	}
+
+	/**
+	 * Evaluate the mixture for a single frame.
+	 * @param x feature vector
+	 * @param lh output: component log-likelihoods including the log priors
+	 * @param s buffers from newScratch()
+	 * @return log-likelihood of the mixture
+	 */
+	public double logEvaluate(double [] x, double [] lh, Scratch s) {
+		if (x.length != fd)
+			throw new IllegalArgumentException("x.length = " + x.length + " != codebook dim = " + fd);
+
+		for (int i = 0; i < fd; ++i)
+			s.x[i] = (float) x[i];
+
+		evaluate(s.x, lh, s);
+
+		return Arithmetics.logsumexp(lh, nd);
+	}
+
+	/**
+	 * Evaluate the mixture for a single frame as read by
+	 * FrameInputStream.read(float []), saving the conversion.
+	 * @param x feature vector
+	 * @param lh output: component log-likelihoods including the log priors
+	 * @param s buffers from newScratch()
+	 * @return log-likelihood of the mixture
+	 */
+	public double logEvaluate(float [] x, double [] lh, Scratch s) {
+		if (x.length != fd)
+			throw new IllegalArgumentException("x.length = " + x.length + " != codebook dim = " + fd);
+
+		evaluate(x, lh, s);
+
+		return Arithmetics.logsumexp(lh, nd);
+	}
+
+	/**
+	 * Evaluate the component log-likelihoods (including the log priors) for
+	 * a block of frames, see CompiledMixture.evaluateBatch
+	 * @param x frames
+	 * @param from index of the first frame
+	 * @param n number of frames
+	 * @param lh n x nd output matrix (allocated if null or too small)
+	 * @param s buffers from newScratch()
+	 * @return lh
+	 */
+	public double [][] evaluateBatch(double [][] x, int from, int n, double [][] lh, Scratch s) {
+		if (lh == null || lh.length < n || (n > 0 && lh[0].length < nd))
+			lh = new double [n][nd];
+
+		for (int t = 0; t < n; ++t) {
+			double [] xt = x[from + t];
+			if (xt.length != fd)
+				throw new IllegalArgumentException("x.length = " + xt.length + " != codebook dim = " + fd);
+			for (int i = 0; i < fd; ++i)
+				s.x[i] = (float) xt[i];
+			evaluate(s.x, lh[t], s);
+		}
+
+		return lh;
+	}
+
+	/**
+	 * Normalize a row of component log-likelihoods to posteriors.
+	 * @param lh component log-likelihoods including the log priors
+	 * @param p container to save the posteriors to
+	 * @return log-likelihood of the mixture
+	 */
+	public double posteriors(double [] lh, double [] p) {
+		double ll = Arithmetics.logsumexp(lh, nd);
+		for (int i = 0; i < nd; ++i)
+			p[i] = FastMath.exp(lh[i] - ll);
+		return ll;
+	}
+
+	/**
+	 * Get the size of the parameters in bytes (means and variances only)
+	 */
+	public long getParameterBytes() {
+		return 2L * 4L * fd * np;
+	}
+
+	private void evaluate(float [] x, double [] lh, Scratch s) {
+		if (doubleAccumulation) {
+			double [] a = s.da;
+			Arrays.fill(a, 0.);
+			for (int i = 0; i < fd; ++i) {
+				float xi = x[i];
+				int o = i * np;
+				for (int k = 0; k < np; ++k) {
+					float h = xi - mue[o + k];
+					a[k] += h * h * prec[o + k];
+				}
+			}
+			for (int k = 0; k < nd; ++k)
+				lh[k] = c[k] + a[k];
+		} else {
+			float [] a = s.fa;
+			Arrays.fill(a, 0.f);
+			for (int i = 0; i < fd; ++i) {
+				float xi = x[i];
+				int o = i * np;
+				for (int k = 0; k < np; ++k) {
+					float h = xi - mue[o + k];
+					a[k] += h * h * prec[o + k];
+				}
+			}
+			for (int k = 0; k < nd; ++k)
+				lh[k] = c[k] + a[k];
+		}
+	}
+}
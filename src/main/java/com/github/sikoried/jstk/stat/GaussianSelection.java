@@ -0,0 +1,559 @@
+/*
+	Copyright (c) 2009-2011
+		Speech Group at Informatik 5, Univ. Erlangen-Nuremberg, GERMANY
+		Korbinian Riedhammer
+		Tobias Bocklet
+
+	This file is part of the Java Speech Toolkit (JSTK).
+
+	The JSTK is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	The JSTK is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with the JSTK. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.github.sikoried.jstk.stat;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import com.github.sikoried.jstk.exceptions.TrainingException;
+import com.github.sikoried.jstk.io.FrameInputStream;
+import com.github.sikoried.jstk.io.IOUtil;
+import com.github.sikoried.jstk.util.Arithmetics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Gaussian selection for large mixtures: a small codebook of cluster Gaussians
+ * partitions the feature space, each codeword holds a shortlist of the
+ * components that matter in its region. For each frame, only the codebook and
+ * the shortlists of the best codewords are evaluated, which makes the cost
+ * sublinear in the number of components.
+ * 
+ * The selection only holds the codebook and the shortlists (component 
+ * indices), the components are evaluated using a CompiledMixture; thus it 
+ * remains usable while the mixture parameters are re-estimated. Instances are
+ * immutable and may be shared by several threads, each using its own Scratch.
+ * 
+ * @author sikoried
+ */
+public final class GaussianSelection {
+	private static Logger logger = LogManager.getLogger(GaussianSelection.class);
+	
+	/** file magic: "JGSS" */
+	public static final int MAGIC = 0x4a475353;
+	
+	/** codebook, i.e. the cluster Gaussians */
+	private final Mixture codebook;
+	
+	/** compiled codebook for scoring */
+	private final CompiledMixture compiled;
+	
+	/** component indices of each codeword */
+	private final int [][] shortlists;
+	
+	/** number of components of the mixture the shortlists refer to */
+	public final int nd;
+	
+	/**
+	 * Create a Gaussian selection from a codebook and the shortlists.
+	 * @param codebook cluster Gaussians
+	 * @param shortlists component indices for each codeword
+	 * @param nd number of components of the referenced mixture
+	 */
+	public GaussianSelection(Mixture codebook, int [][] shortlists, int nd) {
+		if (shortlists.length != codebook.nd)
+			throw new IllegalArgumentException("number of shortlists (" + shortlists.length + ") != number of codewords (" + codebook.nd + ")");
+		
+		this.codebook = codebook;
+		this.compiled = new CompiledMixture(codebook);
+		this.shortlists = shortlists;
+		this.nd = nd;
+	}
+	
+	/**
+	 * Read a Gaussian selection from the given InputStream
+	 */
+	public GaussianSelection(InputStream is) throws IOException {
+		this(read(is));
+	}
+	
+	private GaussianSelection(Object [] parts) {
+		this((Mixture) parts[0], (int [][]) parts[1], (Integer) parts[2]);
+	}
+	
+	private static Object [] read(InputStream is) throws IOException {
+		if (IOUtil.readInt(is, ByteOrder.LITTLE_ENDIAN) != MAGIC)
+			throw new IOException("not a Gaussian selection file");
+		
+		int nd = IOUtil.readInt(is, ByteOrder.LITTLE_ENDIAN);
+		Mixture codebook = new Mixture(is);
+		
+		int [][] shortlists = new int [codebook.nd][];
+		for (int j = 0; j < shortlists.length; ++j) {
+			shortlists[j] = new int [IOUtil.readInt(is, ByteOrder.LITTLE_ENDIAN)];
+			if (!IOUtil.readInt(is, shortlists[j], ByteOrder.LITTLE_ENDIAN))
+				throw new IOException("could not read shortlist " + j);
+		}
+		
+		return new Object [] { codebook, shortlists, nd };
+	}
+	
+	/**
+	 * Write the Gaussian selection to the given OutputStream
+	 */
+	public void write(OutputStream os) throws IOException {
+		IOUtil.writeInt(os, MAGIC, ByteOrder.LITTLE_ENDIAN);
+		IOUtil.writeInt(os, nd, ByteOrder.LITTLE_ENDIAN);
+		codebook.write(os);
+		for (int [] sl : shortlists) {
+			IOUtil.writeInt(os, sl.length, ByteOrder.LITTLE_ENDIAN);
+			IOUtil.writeInt(os, sl, ByteOrder.LITTLE_ENDIAN);
+		}
+		os.flush();
+	}
+	
+	/**
+	 * Build a Gaussian selection for the given mixture: draw samples from the
+	 * mixture, cluster them using the hierarchical Gaussian clustering to
+	 * obtain the codebook, and collect for each codeword the best topC 
+	 * components of the samples assigned to it. Every component is added to
+	 * the shortlist of the codeword that best matches its mean.
+	 * 
+	 * @param m mixture to select from
+	 * @param numClusters (maximum) number of codewords
+	 * @param numSamples number of samples to draw, should be well above 
+	 *        100 * numClusters
+	 * @param topC number of best components per sample to add to the shortlist
+	 * @param seed random seed
+	 */
+	public static GaussianSelection build(Mixture m, int numClusters, int numSamples, int topC, long seed) 
+		throws TrainingException {
+		if (topC < 1)
+			throw new IllegalArgumentException("topC = " + topC + " < 1");
+		
+		Random rnd = new Random(seed);
+		List<Sample> samples = new ArrayList<Sample>(numSamples);
+		for (int i = 0; i < numSamples; ++i)
+			samples.add(new Sample((short) 0, drawSample(m, rnd)));
+		
+		logger.info("GaussianSelection.build(): clustering " + numSamples + " samples to " + numClusters + " codewords");
+		Mixture codebook = Initialization.hierarchicalGaussianClustering(samples, numClusters, true, 
+				Initialization.DensityRankingMethod.COVARIANCE);
+		CompiledMixture cb = new CompiledMixture(codebook);
+		CompiledMixture cm = new CompiledMixture(m);
+		
+		BitSet [] sets = new BitSet [codebook.nd];
+		for (int j = 0; j < sets.length; ++j)
+			sets[j] = new BitSet(m.nd);
+		
+		double [] cbs = cb.newScratch();
+		double [] cbl = new double [codebook.nd];
+		double [] cms = cm.newScratch();
+		double [] lh = new double [m.nd];
+		int [] ndx = new int [topC];
+		double [] scr = new double [topC];
+		
+		for (Sample s : samples) {
+			cb.logEvaluate(s.x, cbl, cbs);
+			BitSet set = sets[best(cbl, codebook.nd)];
+			
+			cm.logEvaluate(s.x, lh, cms);
+			int n = top(lh, m.nd, topC, ndx, scr);
+			for (int i = 0; i < n; ++i)
+				set.set(ndx[i]);
+		}
+		
+		// make sure each component is reachable
+		for (int k = 0; k < m.nd; ++k) {
+			cb.logEvaluate(m.components[k].mue, cbl, cbs);
+			sets[best(cbl, codebook.nd)].set(k);
+		}
+		
+		int [][] shortlists = new int [codebook.nd][];
+		for (int j = 0; j < sets.length; ++j) {
+			shortlists[j] = new int [sets[j].cardinality()];
+			for (int k = sets[j].nextSetBit(0), i = 0; k >= 0; k = sets[j].nextSetBit(k + 1))
+				shortlists[j][i++] = k;
+		}
+		
+		GaussianSelection gs = new GaussianSelection(codebook, shortlists, m.nd);
+		logger.info("GaussianSelection.build(): " + codebook.nd + " codewords, average shortlist length " + gs.getAverageShortlistLength());
+		
+		return gs;
+	}
+	
+	/**
+	 * Draw a sample from the mixture (full covariances are approximated by
+	 * their diagonal, this is only used to partition the feature space).
+	 */
+	static double [] drawSample(Mixture m, Random rnd) {
+		double r = rnd.nextDouble();
+		int k = 0;
+		while (k < m.nd - 1 && (r -= m.components[k].apr) > 0.)
+			k++;
+		
+		Density d = m.components[k];
+		double [] x = new double [m.fd];
+		for (int i = 0; i < m.fd; ++i) {
+			double var = m.diagonal ? d.cov[i] : d.cov[i * (i + 1) / 2 + i];
+			x[i] = d.mue[i] + rnd.nextGaussian() * Math.sqrt(var);
+		}
+		
+		return x;
+	}
+	
+	/**
+	 * Get the number of codewords
+	 */
+	public int getNumberOfCodewords() {
+		return shortlists.length;
+	}
+	
+	/**
+	 * Get the average number of components per shortlist
+	 */
+	public double getAverageShortlistLength() {
+		long sum = 0;
+		for (int [] sl : shortlists)
+			sum += sl.length;
+		return (double) sum / shortlists.length;
+	}
+	
+	/**
+	 * Per thread buffers for the selection
+	 */
+	public static final class Scratch {
+		/** candidate components of the last selection */
+		public final int [] candidates;
+		
+		/** log-likelihoods (including log priors) of the candidates */
+		public final double [] lh;
+		
+		private final double [] codebookLh;
+		private final double [] codebookScratch;
+		private final double [] mixtureScratch;
+		private final int [] stamp;
+		private int frame = 0;
+		private int [] words = new int [0];
+		private double [] wordScores = new double [0];
+		
+		private Scratch(GaussianSelection gs, CompiledMixture cm) {
+			candidates = new int [cm.nd];
+			lh = new double [cm.nd];
+			codebookLh = new double [gs.compiled.nd];
+			codebookScratch = gs.compiled.newScratch();
+			mixtureScratch = cm.newScratch();
+			stamp = new int [cm.nd];
+		}
+	}
+	
+	/**
+	 * Allocate the buffers to use the selection with the given mixture; each
+	 * thread needs its own.
+	 */
+	public Scratch newScratch(CompiledMixture cm) {
+		if (cm.nd != nd)
+			throw new IllegalArgumentException("mixture has " + cm.nd + " components, selection expects " + nd);
+		return new Scratch(this, cm);
+	}
+	
+	/**
+	 * Select the candidate components for the given frame and evaluate them
+	 * exactly. The candidates and their scores are stored in s.candidates 
+	 * and s.lh.
+	 * @param x feature vector
+	 * @param shortlist number of best codewords whose shortlists are merged
+	 * @param cm compiled mixture to evaluate the candidates
+	 * @param s scratch buffers
+	 * @return number of candidates
+	 * @throws IllegalArgumentException if shortlist < 1
+	 */
+	public int select(double [] x, int shortlist, CompiledMixture cm, Scratch s) {
+		if (shortlist < 1)
+			throw new IllegalArgumentException("shortlist = " + shortlist + " < 1");
+		
+		shortlist = Math.min(shortlist, shortlists.length);
+		if (s.words.length < shortlist) {
+			s.words = new int [shortlist];
+			s.wordScores = new double [shortlist];
+		}
+		
+		// best codewords
+		compiled.logEvaluate(x, s.codebookLh, s.codebookScratch);
+		int nw = top(s.codebookLh, shortlists.length, shortlist, s.words, s.wordScores);
+		
+		// merge their shortlists
+		if (++s.frame == Integer.MAX_VALUE) {
+			Arrays.fill(s.stamp, 0);
+			s.frame = 1;
+		}
+		
+		int n = 0;
+		for (int i = 0; i < nw; ++i) {
+			for (int k : shortlists[s.words[i]]) {
+				if (s.stamp[k] != s.frame) {
+					s.stamp[k] = s.frame;
+					s.candidates[n++] = k;
+				}
+			}
+		}
+		
+		cm.logEvaluate(s.candidates, n, x, s.lh, s.mixtureScratch);
+		
+		return n;
+	}
+	
+	/**
+	 * Approximate the mixture log-likelihood by the selected components.
+	 * @see select
+	 */
+	public double logEvaluate(double [] x, int shortlist, CompiledMixture cm, Scratch s) {
+		return Arithmetics.logsumexp(s.lh, select(x, shortlist, cm, s));
+	}
+	
+	/**
+	 * Determine the best c components among the selected ones, e.g. for fast
+	 * scoring.
+	 * @param x feature vector
+	 * @param shortlist number of best codewords whose shortlists are merged
+	 * @param c number of best components
+	 * @param cm compiled mixture to evaluate the candidates
+	 * @param s scratch buffers
+	 * @param ndx output: component indices, descending by score
+	 * @param scr output: component log-likelihoods
+	 * @return number of components found (less than c if there are fewer candidates)
+	 * @throws IllegalArgumentException if shortlist < 1 or c < 1
+	 */
+	public int top(double [] x, int shortlist, int c, CompiledMixture cm, Scratch s, int [] ndx, double [] scr) {
+		if (c < 1)
+			throw new IllegalArgumentException("c = " + c + " < 1");
+		
+		int n = select(x, shortlist, cm, s);
+		int m = top(s.lh, n, c, ndx, scr);
+		for (int i = 0; i < m; ++i)
+			ndx[i] = s.candidates[ndx[i]];
+		return m;
+	}
+	
+	/**
+	 * Find the best c of the values v[0...n-1] by insertion; the indices and
+	 * values are stored in descending order.
+	 * @return number of values found, i.e. min(c, n)
+	 */
+	private static int top(double [] v, int n, int c, int [] ndx, double [] scr) {
+		int m = 0;
+		for (int i = 0; i < n; ++i) {
+			double s = v[i];
+			if (m == c && s <= scr[c - 1])
+				continue;
+			
+			int p = (m < c ? m++ : c - 1);
+			while (p > 0 && s > scr[p - 1]) {
+				ndx[p] = ndx[p - 1];
+				scr[p] = scr[p - 1];
+				p--;
+			}
+			ndx[p] = i;
+			scr[p] = s;
+		}
+		return m;
+	}
+	
+	private static int best(double [] v, int n) {
+		int b = 0;
+		for (int i = 1; i < n; ++i)
+			if (v[i] > v[b])
+				b = i;
+		return b;
+	}
+	
+	/**
+	 * Compare the selection to the full evaluation of the mixture for the
+	 * given frames: reports the number of candidates, how often the best and
+	 * the best c components are among them, the error of the mixture 
+	 * log-likelihood and the speed.
+	 */
+	public static void report(Mixture m, GaussianSelection gs, List<double []> frames, int [] sizes, int c) {
+		if (c < 1)
+			throw new IllegalArgumentException("c = " + c + " < 1");
+		
+		CompiledMixture cm = new CompiledMixture(m);
+		Scratch s = gs.newScratch(cm);
+		double [] cms = cm.newScratch();
+		double [] lh = new double [m.nd];
+		
+		// reference: full evaluation
+		int n = frames.size();
+		double [] ref = new double [n];
+		int [][] refTop = new int [n][c];
+		double [] scr = new double [c];
+		
+		long t0 = System.nanoTime();
+		for (int t = 0; t < n; ++t)
+			ref[t] = cm.logEvaluate(frames.get(t), lh, cms);
+		double full = (System.nanoTime() - t0) / 1e6 / n;
+		
+		for (int t = 0; t < n; ++t) {
+			cm.logEvaluate(frames.get(t), lh, cms);
+			top(lh, m.nd, c, refTop[t], scr);
+		}
+		
+		System.out.println("codewords=" + gs.getNumberOfCodewords() + " avg_shortlist_length=" + gs.getAverageShortlistLength() + " full_ms/frame=" + full);
+		System.out.println("shortlist avg_candidates top1_recall top" + c + "_recall mean_abs_llh_error ms/frame speedup");
+		
+		for (int sl : sizes) {
+			long cand = 0, top1 = 0, topc = 0;
+			double err = 0.;
+			
+			t0 = System.nanoTime();
+			for (int t = 0; t < n; ++t)
+				gs.logEvaluate(frames.get(t), sl, cm, s);
+			double ms = (System.nanoTime() - t0) / 1e6 / n;
+			
+			for (int t = 0; t < n; ++t) {
+				int nc = gs.select(frames.get(t), sl, cm, s);
+				cand += nc;
+				err += Math.abs(ref[t] - Arithmetics.logsumexp(s.lh, nc));
+				
+				int hits = 0;
+				for (int i = 0; i < nc; ++i) {
+					int k = s.candidates[i];
+					if (k == refTop[t][0])
+						top1++;
+					for (int j = 0; j < c; ++j)
+						if (k == refTop[t][j])
+							hits++;
+				}
+				topc += hits;
+			}
+			
+			System.out.println(sl + " " + ((double) cand / n) + " " + ((double) top1 / n) + " " + ((double) topc / n / c) + " " + (err / n) + " " + ms + " " + (full / ms));
+		}
+	}
+	
+	public static final String SYNOPSIS = 
+		"Build and evaluate a Gaussian selection (codebook with component shortlists)\n" +
+		"for a large mixture.\n\n" +
+		"usage: stat.GaussianSelection build mixture num-codewords out-file [options]\n" +
+		"  Build the selection from samples drawn from the mixture.\n" +
+		"  --samples num\n" +
+		"    Number of samples to draw (default: 200 * num-codewords)\n" +
+		"  -c num\n" +
+		"    Number of best components per sample to add to the shortlists (default: 8)\n" +
+		"  --seed num\n" +
+		"    Random seed (default: 42)\n\n" +
+		"usage: stat.GaussianSelection report mixture selection-file [options]\n" +
+		"  Compare the selection to the full evaluation in terms of accuracy and speed.\n" +
+		"  -l list\n" +
+		"    Use the frames of the files in list; default: samples drawn from the mixture\n" +
+		"  -s size1,size2,...\n" +
+		"    Number of codewords to merge (default: 1,2,4,8)\n" +
+		"  -c num\n" +
+		"    Number of best components to check (default: 5)\n" +
+		"  --samples num\n" +
+		"    Number of samples to draw if no list is given (default: 10000)\n";
+	
+	public static void main(String [] args) throws IOException, ClassNotFoundException {
+		if (args.length < 3) {
+			System.err.println(SYNOPSIS);
+			System.exit(1);
+		}
+		
+		String mode = args[0];
+		Mixture m = Mixture.readFromFile(new File(args[1]));
+		
+		if (mode.equals("build")) {
+			if (args.length < 4) {
+				System.err.println(SYNOPSIS);
+				System.exit(1);
+			}
+			
+			int numClusters = Integer.parseInt(args[2]);
+			int numSamples = 200 * numClusters;
+			int c = 8;
+			long seed = 42;
+			for (int i = 4; i < args.length; ++i) {
+				if (args[i].equals("--samples"))
+					numSamples = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-c"))
+					c = Integer.parseInt(args[++i]);
+				else if (args[i].equals("--seed"))
+					seed = Long.parseLong(args[++i]);
+				else
+					throw new IOException("Invalid argument \"" + args[i] + "\"");
+			}
+			
+			GaussianSelection gs = build(m, numClusters, numSamples, c, seed);
+			FileOutputStream os = new FileOutputStream(args[3]);
+			gs.write(os);
+			os.close();
+		} else if (mode.equals("report")) {
+			InputStream is = new FileInputStream(args[2]);
+			GaussianSelection gs = new GaussianSelection(is);
+			is.close();
+			
+			String list = null;
+			int [] sizes = { 1, 2, 4, 8 };
+			int c = 5;
+			int numSamples = 10000;
+			for (int i = 3; i < args.length; ++i) {
+				if (args[i].equals("-l"))
+					list = args[++i];
+				else if (args[i].equals("-s")) {
+					String [] sp = args[++i].split(",");
+					sizes = new int [sp.length];
+					for (int j = 0; j < sp.length; ++j)
+						sizes[j] = Integer.parseInt(sp[j]);
+				} else if (args[i].equals("-c"))
+					c = Integer.parseInt(args[++i]);
+				else if (args[i].equals("--samples"))
+					numSamples = Integer.parseInt(args[++i]);
+				else
+					throw new IOException("Invalid argument \"" + args[i] + "\"");
+			}
+			
+			List<double []> frames = new LinkedList<double []>();
+			if (list == null) {
+				Random rnd = new Random(4711);
+				for (int i = 0; i < numSamples; ++i)
+					frames.add(drawSample(m, rnd));
+			} else {
+				BufferedReader br = new BufferedReader(new FileReader(list));
+				String line;
+				while ((line = br.readLine()) != null) {
+					FrameInputStream fr = new FrameInputStream(new File(line));
+					double [] buf = new double [fr.getFrameSize()];
+					while (fr.read(buf))
+						frames.add(buf.clone());
+					fr.close();
+				}
+				br.close();
+			}
+			
+			report(m, gs, new ArrayList<double []>(frames), sizes, c);
+		} else
+			throw new IOException("Invalid mode \"" + mode + "\"");
+	}
+}
@@ -41,6 +41,7 @@ import com.github.sikoried.jstk.io.FrameOutputStream;
 import com.github.sikoried.jstk.io.IOUtil;
 import com.github.sikoried.jstk.trans.NAP;
 import com.github.sikoried.jstk.util.Arithmetics;
+import com.github.sikoried.jstk.util.FastMath;
 import org.apache.commons.lang3.tuple.Pair;
 
 /**
@@ -86,6 +87,21 @@ public final class Mixture {
 	/** last seen feature vector */
 	private transient double [] last = null;
 	
+	/** last feature vector seen by logEvaluate2 */
+	private transient double [] lastLog = null;
+	
+	/** number of frames evaluated per block in evaluateBatch */
+	public static final int BATCH_BLOCK = 64;
+	
+	/** batch layout: per component weights for [x, x*x] (see evaluateBatch) */
+	private transient double [] batchW = null;
+	
+	/** batch layout: per component constant */
+	private transient double [] batchC = null;
+	
+	/** batch buffer: expanded frames [x, x*x] */
+	private transient double [] batchX = null;
+	
 	/**
 	 * Create a new MixtureDensity.
 	 * @param featureDimension feature dimension
@@ -210,6 +226,10 @@ public final class Mixture {
 			logscoreHelp = new double[components.length];		
 		int i = 0;
 		
+		// the component log scores are about to change
+		if (lastLog != null)
+			lastLog[0] = Double.NaN;
+		
 		for (Density d : components) {
 			score += d.evaluate(x);
 			logscoreHelp[i++] = d.lh;
@@ -226,9 +246,9 @@ public final class Mixture {
 		/* - subtract max, sum up exponents */			
 		double tmp = 0.;
 		for (i = 0; i < logscoreHelp.length; i++)
-			tmp += Math.exp(logscoreHelp[i] - logoffset);
+			tmp += FastMath.exp(logscoreHelp[i] - logoffset);
 		
-		llh += (logscore = logoffset + Math.log(tmp));
+		llh += (logscore = logoffset + FastMath.log(tmp));
 				
 		return score;
 	}
@@ -256,6 +276,112 @@ public final class Mixture {
 		}
 	}
 	
+	/**
+	 * Evaluate the GMM in the log domain, i.e. log(sum_i apr_i N_i(x)) using
+	 * the log-sum-exp over the component log-likelihoods, which are stored in
+	 * the lh fields of the components. The component score and ascore fields
+	 * as well as score are NOT updated.
+	 * @param x feature vector
+	 * @return log-likelihood of that mixture, also stored in logscore
+	 */
+	public double logEvaluate(double [] x) {
+		if (x.length != fd)
+			throw new IllegalArgumentException("x.length = " + x.length + " != codebook dim = " + fd);
+		
+		if (logscoreHelp == null)
+			logscoreHelp = new double[components.length];
+		
+		// invalidate the caches of evaluate2 and logEvaluate2
+		last[0] = Double.NaN;
+		if (lastLog != null)
+			lastLog[0] = Double.NaN;
+		
+		for (int i = 0; i < nd; ++i)
+			logscoreHelp[i] = components[i].logEvaluate(x);
+		
+		return logscore = Arithmetics.logsumexp(logscoreHelp, nd);
+	}
+	
+	/**
+	 * Evaluate the GMM in the log domain but do not evaluate if this is a 
+	 * subsequent call on the last feature vector (used by the HMM states).
+	 * @see logEvaluate
+	 * @param x
+	 * @return
+	 */
+	public double logEvaluate2(double [] x) {
+		if (lastLog == null) {
+			lastLog = new double [fd];
+			lastLog[0] = Double.NaN;
+		}
+		
+		boolean eq = true;
+		for (int i = 0; eq && i < fd; ++i)
+			eq = (x[i] == lastLog[i]);
+		
+		if (eq)
+			return logscore;
+		
+		logEvaluate(x);
+		System.arraycopy(x, 0, lastLog, 0, fd);
+		
+		return logscore;
+	}
+	
+	/**
+	 * Evaluate the component log-likelihoods (including the log priors, same
+	 * as Density.lh) for a block of frames. Each Gaussian is rewritten as
+	 * 
+	 *   log(apr N(x)) = c + w^T [x, x*x]
+	 *   
+	 * where x*x are the squares (diagonal) or the packed products x_i x_j 
+	 * (full covariance), w = [P mue, -.5 P] and c holds the prior, the
+	 * normalization and -.5 mue^T P mue (P being the inverse covariance). 
+	 * This turns the evaluation into dense dot products over contiguous 
+	 * arrays. The layout is compiled at each call from the current 
+	 * parameters, thus prefer blocks of several frames.
+	 * 
+	 * The results match logEvaluate up to rounding; the component lh, score 
+	 * and the mixture score fields are NOT updated.
+	 * 
+	 * @param x frames
+	 * @param from index of the first frame
+	 * @param n number of frames
+	 * @param lh n x nd output matrix (allocated if null or too small)
+	 * @return lh
+	 */
+	public double [][] evaluateBatch(double [][] x, int from, int n, double [][] lh) {
+		if (lh == null || lh.length < n || (n > 0 && lh[0].length < nd))
+			lh = new double [n][nd];
+		
+		int dim = CompiledMixture.dimension(fd, diagonal);
+		if (batchW == null || batchW.length != nd * dim) {
+			batchW = new double [nd * dim];
+			batchC = new double [nd];
+		}
+		if (batchX == null || batchX.length < BATCH_BLOCK * dim)
+			batchX = new double [BATCH_BLOCK * dim];
+		
+		CompiledMixture.compile(this, batchW, batchC);
+		CompiledMixture.evaluate(batchW, batchC, nd, fd, diagonal, x, from, n, lh, batchX);
+		
+		return lh;
+	}
+	
+	/**
+	 * Normalize a row of component log-likelihoods (see evaluateBatch) to
+	 * posteriors.
+	 * @param lh component log-likelihoods including the log priors
+	 * @param p container to save the posteriors to
+	 * @return log-likelihood of the mixture
+	 */
+	public double posteriorsFromLog(double [] lh, double [] p) {
+		double ll = Arithmetics.logsumexp(lh, nd);
+		for (int i = 0; i < nd; ++i)
+			p[i] = FastMath.exp(lh[i] - ll);
+		return ll;
+	}
+	
 	/**
 	 * Return the index of the highest scoring density (without the prior or exponentiation!)
 	 * @param x
@@ -758,19 +884,27 @@ public final class Mixture {
 
 
 				// buffers
-				double [] x = new double [cbs[0].fd];
+				double [][] x = new double [BATCH_BLOCK][cbs[0].fd];
+				double [][] lh = null;
 				// process files
 				while (inlist.size() > 0) {
 					String ftf = inlist.remove();
 					FrameInputStream reader = new FrameInputStream(new File(ftf));
 					double [] logp = new double [n];
 
-					// read, evaluate
-					while (reader.read(x)) {
+					// read and evaluate blocks of frames
+					int m;
+					do {
+						m = 0;
+						while (m < x.length && reader.read(x[m]))
+							m++;
+						
 						for (int i = 0; i < n; i++) {
-							logp[i] += Math.log(cbs[i].evaluate(x));
+							lh = cbs[i].evaluateBatch(x, 0, m, lh);
+							for (int j = 0; j < m; ++j)
+								logp[i] += Arithmetics.logsumexp(lh[j], cbs[i].nd);
 						}
-					}
+					} while (m == x.length);
 
 					reader.close();
 
@@ -0,0 +1,518 @@
+/*
+	Copyright (c) 2009-2011
+		Speech Group at Informatik 5, Univ. Erlangen-Nuremberg, GERMANY
+		Korbinian Riedhammer
+		Tobias Bocklet
+
+	This file is part of the Java Speech Toolkit (JSTK).
+
+	The JSTK is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	The JSTK is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with the JSTK. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.github.sikoried.jstk.stat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import com.github.sikoried.jstk.io.IOUtil;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A container of many mixtures (e.g. speaker models) in a single, versioned
+ * binary file that is read by memory-mapping. Next to the parameters, each
+ * model is stored in the scoring layout of CompiledMixture, thus a model can
+ * be used for scoring after a bulk copy, without any parsing, allocation of
+ * Density objects or compilation.
+ *
+ * Layout (little endian):
+ *   header: MAGIC, VERSION, number of models, 0
+ *   directory, per model: id, fd, nd, diagonal (1/0), offset of the
+ *     parameters, offset of the compiled layout, offset and length of the
+ *     UTF-8 name (ints and longs, 48 bytes)
+ *   names
+ *   per model, each array starting at a multiple of ALIGN:
+ *     parameters: density ids, priors, means, covariances (as in Density)
+ *     compiled layout: constants, weights (see CompiledMixture)
+ *
+ * Each model is mapped on access, so the archive may exceed 2G.
+ *
+ * @author sikoried
+ */
+public final class MixtureArchive implements Closeable {
+	private static Logger logger = LogManager.getLogger(MixtureArchive.class);
+
+	/** file format identifier ("JMAR") */
+	public static final int MAGIC = 0x4a4d4152;
+
+	/** file format version */
+	public static final int VERSION = 1;
+
+	/** alignment of the arrays in bytes */
+	public static final int ALIGN = 64;
+
+	private static final int HEADER = 16;
+	private static final int ENTRY = 48;
+
+	private final RandomAccessFile raf;
+	private final FileChannel fc;
+
+	private final String [] names;
+	private final int [] ids, fds, nds;
+	private final boolean [] diagonal;
+	private final long [] paramOffset, compiledOffset;
+
+	private final HashMap<String, Integer> index = new HashMap<String, Integer>();
+
+	/**
+	 * Open the given archive; the directory is read, the models are mapped
+	 * on access. The archive may be used by several threads.
+	 */
+	public MixtureArchive(File file) throws IOException {
+		raf = new RandomAccessFile(file, "r");
+		fc = raf.getChannel();
+
+		try {
+			if (fc.size() < HEADER)
+				throw new IOException("MixtureArchive: " + file + " is not a mixture archive");
+			ByteBuffer bb = map(0, HEADER);
+			if (bb.getInt() != MAGIC)
+				throw new IOException("MixtureArchive: " + file + " is not a mixture archive");
+			int v = bb.getInt();
+			if (v != VERSION)
+				throw new IOException("MixtureArchive: unsupported version " + v);
+			int n = bb.getInt();
+
+			names = new String [n];
+			ids = new int [n];
+			fds = new int [n];
+			nds = new int [n];
+			diagonal = new boolean [n];
+			paramOffset = new long [n];
+			compiledOffset = new long [n];
+
+			bb = map(HEADER, (long) n * ENTRY);
+			long [] nameOffset = new long [n];
+			int [] nameLength = new int [n];
+			for (int i = 0; i < n; ++i) {
+				ids[i] = bb.getInt();
+				fds[i] = bb.getInt();
+				nds[i] = bb.getInt();
+				diagonal[i] = bb.getInt() != 0;
+				paramOffset[i] = bb.getLong();
+				compiledOffset[i] = bb.getLong();
+				nameOffset[i] = bb.getLong();
+				nameLength[i] = bb.getInt();
+				bb.getInt();
+			}
+
+			if (n > 0) {
+				long nameEnd = nameOffset[n - 1] + nameLength[n - 1];
+				bb = map(nameOffset[0], nameEnd - nameOffset[0]);
+				for (int i = 0; i < n; ++i) {
+					byte [] b = new byte [nameLength[i]];
+					bb.position((int) (nameOffset[i] - nameOffset[0]));
+					bb.get(b);
+					names[i] = new String(b, "UTF-8");
+					index.put(names[i], i);
+				}
+			}
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+
+		logger.info("MixtureArchive: " + file + " holds " + names.length + " models");
+	}
+
+	/**
+	 * Close the underlying file; buffers mapped before remain valid.
+	 */
+	public void close() throws IOException {
+		raf.close();
+	}
+
+	/**
+	 * Get the number of models in the archive
+	 */
+	public int size() {
+		return names.length;
+	}
+
+	/**
+	 * Get the name of the i-th model
+	 */
+	public String getName(int i) {
+		return names[i];
+	}
+
+	/**
+	 * Get the index of the model with the given name, -1 if not present
+	 */
+	public int indexOf(String name) {
+		Integer i = index.get(name);
+		return i == null ? -1 : i;
+	}
+
+	/**
+	 * Load the compiled scoring layout of the i-th model
+	 */
+	public CompiledMixture getCompiled(int i) throws IOException {
+		int nd = nds[i];
+		int dim = CompiledMixture.dimension(fds[i], diagonal[i]);
+
+		long wo = align(compiledOffset[i] + 8L * nd);
+		ByteBuffer bb = map(compiledOffset[i], wo - compiledOffset[i] + 8L * nd * dim);
+
+		double [] c = new double [nd];
+		double [] w = new double [nd * dim];
+		bb.asDoubleBuffer().get(c);
+		bb.position((int) (wo - compiledOffset[i]));
+		bb.asDoubleBuffer().get(w);
+
+		return new CompiledMixture(nd, fds[i], diagonal[i], w, c);
+	}
+
+	/**
+	 * Load the compiled scoring layout of the named model
+	 */
+	public CompiledMixture getCompiled(String name) throws IOException {
+		return getCompiled(lookup(name));
+	}
+
+	/**
+	 * Load the i-th model as a regular Mixture, e.g. for adaptation
+	 */
+	public Mixture getMixture(int i) throws IOException {
+		int fd = fds[i], nd = nds[i];
+		int cl = diagonal[i] ? fd : fd * (fd + 1) / 2;
+
+		long ao = align(paramOffset[i] + 4L * nd);
+		long mo = align(ao + 8L * nd);
+		long co = align(mo + 8L * nd * fd);
+		ByteBuffer bb = map(paramOffset[i], co - paramOffset[i] + 8L * nd * cl);
+
+		int [] did = new int [nd];
+		double [] apr = new double [nd];
+		double [] mue = new double [nd * fd];
+		double [] cov = new double [nd * cl];
+		bb.asIntBuffer().get(did);
+		bb.position((int) (ao - paramOffset[i]));
+		bb.asDoubleBuffer().get(apr);
+		bb.position((int) (mo - paramOffset[i]));
+		bb.asDoubleBuffer().get(mue);
+		bb.position((int) (co - paramOffset[i]));
+		bb.asDoubleBuffer().get(cov);
+
+		Mixture m = new Mixture(fd, nd, diagonal[i]);
+		m.id = ids[i];
+		double [] mk = new double [fd];
+		double [] ck = new double [cl];
+		for (int k = 0; k < nd; ++k) {
+			System.arraycopy(mue, k * fd, mk, 0, fd);
+			System.arraycopy(cov, k * cl, ck, 0, cl);
+			m.components[k].fill(apr[k], mk, ck);
+			m.components[k].id = did[k];
+		}
+
+		return m;
+	}
+
+	/**
+	 * Load the named model as a regular Mixture
+	 */
+	public Mixture getMixture(String name) throws IOException {
+		return getMixture(lookup(name));
+	}
+
+	private int lookup(String name) throws IOException {
+		int i = indexOf(name);
+		if (i < 0)
+			throw new IOException("MixtureArchive: no model " + name);
+		return i;
+	}
+
+	private ByteBuffer map(long offset, long size) throws IOException {
+		if (size > Integer.MAX_VALUE)
+			throw new IOException("MixtureArchive: model too large to map (" + size + " bytes)");
+		MappedByteBuffer mb = fc.map(FileChannel.MapMode.READ_ONLY, offset, size);
+		mb.order(ByteOrder.LITTLE_ENDIAN);
+		return mb;
+	}
+
+	private static long align(long pos) {
+		return (pos + ALIGN - 1) / ALIGN * ALIGN;
+	}
+
+	/**
+	 * Check if the given file starts with the archive identifier
+	 */
+	public static boolean isArchive(File file) throws IOException {
+		if (file.length() < HEADER)
+			return false;
+
+		InputStream is = new FileInputStream(file);
+		try {
+			return IOUtil.readInt(is, ByteOrder.LITTLE_ENDIAN) == MAGIC;
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Write the given models to an archive.
+	 * @param file output file
+	 * @param names model names (unique)
+	 * @param models mixtures
+	 */
+	public static void write(File file, List<String> names, List<Mixture> models) throws IOException {
+		if (names.size() != models.size())
+			throw new IllegalArgumentException("MixtureArchive.write(): " + names.size() + " names for " + models.size() + " models");
+
+		ByteOrder bo = ByteOrder.LITTLE_ENDIAN;
+		int n = models.size();
+
+		// compute the layout
+		byte [][] nb = new byte [n][];
+		long pos = HEADER + (long) n * ENTRY;
+		long [] no = new long [n];
+		for (int i = 0; i < n; ++i) {
+			nb[i] = names.get(i).getBytes("UTF-8");
+			no[i] = pos;
+			pos += nb[i].length;
+		}
+
+		long [] po = new long [n], co = new long [n];
+		for (int i = 0; i < n; ++i) {
+			Mixture m = models.get(i);
+			int cl = m.diagonal ? m.fd : m.fd * (m.fd + 1) / 2;
+			int dim = CompiledMixture.dimension(m.fd, m.diagonal);
+			po[i] = align(pos);
+			pos = align(po[i] + 4L * m.nd);
+			pos = align(pos + 8L * m.nd);
+			pos = align(pos + 8L * m.nd * m.fd);
+			pos += 8L * m.nd * cl;
+			co[i] = align(pos);
+			pos = align(co[i] + 8L * m.nd);
+			pos += 8L * m.nd * dim;
+		}
+
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(file), 1048576);
+		try {
+			IOUtil.writeInt(os, MAGIC, bo);
+			IOUtil.writeInt(os, VERSION, bo);
+			IOUtil.writeInt(os, n, bo);
+			IOUtil.writeInt(os, 0, bo);
+
+			for (int i = 0; i < n; ++i) {
+				Mixture m = models.get(i);
+				IOUtil.writeInt(os, m.id, bo);
+				IOUtil.writeInt(os, m.fd, bo);
+				IOUtil.writeInt(os, m.nd, bo);
+				IOUtil.writeInt(os, m.diagonal ? 1 : 0, bo);
+				IOUtil.writeLong(os, po[i], bo);
+				IOUtil.writeLong(os, co[i], bo);
+				IOUtil.writeLong(os, no[i], bo);
+				IOUtil.writeInt(os, nb[i].length, bo);
+				IOUtil.writeInt(os, 0, bo);
+			}
+
+			pos = HEADER + (long) n * ENTRY;
+			for (int i = 0; i < n; ++i) {
+				IOUtil.writeByte(os, nb[i]);
+				pos += nb[i].length;
+			}
+
+			for (int i = 0; i < n; ++i) {
+				Mixture m = models.get(i);
+				int nd = m.nd;
+				int dim = CompiledMixture.dimension(m.fd, m.diagonal);
+
+				int [] did = new int [nd];
+				double [] apr = new double [nd];
+				for (int k = 0; k < nd; ++k) {
+					did[k] = m.components[k].id;
+					apr[k] = m.components[k].apr;
+				}
+
+				pos = pad(os, pos);
+				IOUtil.writeInt(os, did, bo);
+				pos = pad(os, pos + 4L * nd);
+				IOUtil.writeDouble(os, apr, bo);
+				pos = pad(os, pos + 8L * nd);
+				for (Density d : m.components)
+					IOUtil.writeDouble(os, d.mue, bo);
+				pos = pad(os, pos + 8L * nd * m.fd);
+				for (Density d : m.components) {
+					IOUtil.writeDouble(os, d.cov, bo);
+					pos += 8L * d.cov.length;
+				}
+
+				double [] w = new double [nd * dim];
+				double [] c = new double [nd];
+				CompiledMixture.compile(m, w, c);
+
+				pos = pad(os, pos);
+				IOUtil.writeDouble(os, c, bo);
+				pos = pad(os, pos + 8L * nd);
+				IOUtil.writeDouble(os, w, bo);
+				pos += 8L * w.length;
+			}
+		} finally {
+			os.close();
+		}
+	}
+
+	/**
+	 * Write zeros up to the next aligned position
+	 */
+	private static long pad(OutputStream os, long pos) throws IOException {
+		long a = align(pos);
+		for (; pos < a; ++pos)
+			os.write(0);
+		return a;
+	}
+
+	/**
+	 * Read a list of model names, load the models (relative to dir, if not
+	 * null) and write them to an archive.
+	 */
+	public static void pack(File archive, String list, String dir) throws IOException {
+		List<String> names = new ArrayList<String>();
+		BufferedReader br = new BufferedReader(new FileReader(list));
+		String line;
+		while ((line = br.readLine()) != null) {
+			line = line.trim();
+			if (line.length() > 0)
+				names.add(line);
+		}
+		br.close();
+
+		List<Mixture> models = new ArrayList<Mixture>(names.size());
+		for (String name : names)
+			models.add(readModel(dir, name));
+
+		write(archive, names, models);
+		logger.info("MixtureArchive.pack(): wrote " + models.size() + " models to " + archive);
+	}
+
+	/**
+	 * Read a single model in the regular format
+	 */
+	static Mixture readModel(String dir, String name) throws IOException {
+		File f = new File(dir == null ? name : dir + System.getProperty("file.separator") + name);
+		InputStream is = new BufferedInputStream(new FileInputStream(f), 65536);
+		try {
+			return new Mixture(is);
+		} finally {
+			is.close();
+		}
+	}
+
+	public static final String SYNOPSIS =
+		"Pack mixtures into a memory-mapped archive and inspect archives.\n\n" +
+		"usage: stat.MixtureArchive mode archive [options]\n" +
+		"mode:\n" +
+		"  pack archive list [-d dir]\n" +
+		"    Read the models named in the list (relative to dir) and write the\n" +
+		"    archive; the names are kept as given in the list.\n" +
+		"  info archive\n" +
+		"    List the models of the archive (name id fd nd diagonal).\n" +
+		"  extract archive name out-file\n" +
+		"    Write the named model in the regular mixture format.\n" +
+		"  bench archive list [-d dir]\n" +
+		"    Compare the time to load and compile the models in the list from the\n" +
+		"    regular files to the time to load them from the archive.\n";
+
+	public static void main(String [] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println(SYNOPSIS);
+			System.exit(1);
+		}
+
+		String mode = args[0];
+		File archive = new File(args[1]);
+
+		if (mode.equals("pack") || mode.equals("bench")) {
+			if (args.length < 3)
+				throw new IOException("Missing list argument");
+
+			String list = args[2];
+			String dir = null;
+			for (int i = 3; i < args.length; ++i) {
+				if (args[i].equals("-d"))
+					dir = args[++i];
+				else
+					throw new IOException("Invalid argument \"" + args[i] + "\"");
+			}
+
+			if (mode.equals("pack")) {
+				pack(archive, list, dir);
+				return;
+			}
+
+			List<String> names = new ArrayList<String>();
+			BufferedReader br = new BufferedReader(new FileReader(list));
+			String line;
+			while ((line = br.readLine()) != null)
+				if (line.trim().length() > 0)
+					names.add(line.trim());
+			br.close();
+
+			long t0 = System.nanoTime();
+			double sink = 0.;
+			for (String name : names)
+				sink += new CompiledMixture(readModel(dir, name)).nd;
+			long t1 = System.nanoTime();
+
+			MixtureArchive ma = new MixtureArchive(archive);
+			long t2 = System.nanoTime();
+			for (String name : names)
+				sink += ma.getCompiled(name).nd;
+			long t3 = System.nanoTime();
+			ma.close();
+
+			System.out.println("models=" + names.size() + " files_ms=" + ((t1 - t0) / 1e6) + " archive_ms=" + ((t3 - t2) / 1e6) + " speedup=" + ((double) (t1 - t0) / (t3 - t2)) + (sink < 0 ? " " : ""));
+		} else if (mode.equals("info")) {
+			MixtureArchive ma = new MixtureArchive(archive);
+			for (int i = 0; i < ma.size(); ++i)
+				System.out.println(ma.names[i] + " " + ma.ids[i] + " " + ma.fds[i] + " " + ma.nds[i] + " " + ma.diagonal[i]);
+			ma.close();
+		} else if (mode.equals("extract")) {
+			if (args.length != 4)
+				throw new IOException("usage: extract archive name out-file");
+			MixtureArchive ma = new MixtureArchive(archive);
+			Mixture m = ma.getMixture(args[2]);
+			ma.close();
+			m.writeToFile(new File(args[3]));
+		} else
+			throw new IOException("Invalid mode \"" + mode + "\"");
+	}
+}
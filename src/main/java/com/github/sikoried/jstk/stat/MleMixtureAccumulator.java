@@ -21,6 +21,7 @@
 */
 package com.github.sikoried.jstk.stat;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
@@ -52,6 +53,13 @@ public final class MleMixtureAccumulator {
 	
 	public MleDensityAccumulator [] accs;
 	
+	/** component buffer for the sparse accumulation */
+	private int [] active = null;
+	
+	/** sparse accumulation: accumulated posterior mass and number of components */
+	public double sparseMass = 0.;
+	public long sparseComponents = 0;
+	
 	public MleMixtureAccumulator(int fd, int nd, Class<? extends Density> host) 
 			throws ClassNotFoundException {
 		this.fd = fd;
@@ -123,12 +131,134 @@ public final class MleMixtureAccumulator {
 			accs[i].accumulate(gamma[i], x);
 	}
 	
+	/**
+	 * Accumulate the posteriors of the listed components only.
+	 * @param gamma posteriors, gamma[j] belongs to component ndx[j]
+	 * @param ndx component indices
+	 * @param n number of components
+	 * @param x observation
+	 */
+	public void accumulate(double [] gamma, int [] ndx, int n, double [] x) {
+		for (int j = 0; j < n; ++j)
+			accs[ndx[j]].accumulate(gamma[j], x);
+	}
+	
+	/**
+	 * Accumulate only the components with a posterior of at least threshold,
+	 * and of those only the topK largest; the other posteriors are discarded
+	 * (not renormalized), thus the statistics of the accumulated components
+	 * are the same as with the dense accumulation. Note that the observation
+	 * counts (n) of the skipped components are not incremented.
+	 * @param gamma posteriors of all components
+	 * @param x observation
+	 * @param threshold minimum posterior
+	 * @param topK maximum number of components, 0 for no limit
+	 * @return accumulated posterior mass
+	 */
+	public double accumulate(double [] gamma, double [] x, double threshold, int topK) {
+		if (active == null)
+			active = new int [nd];
+		
+		int m = 0;
+		for (int i = 0; i < nd; ++i)
+			if (gamma[i] > 0. && gamma[i] >= threshold)
+				active[m++] = i;
+		
+		m = top(gamma, m, topK);
+		
+		double mass = 0.;
+		for (int j = 0; j < m; ++j) {
+			int i = active[j];
+			accs[i].accumulate(gamma[i], x);
+			mass += gamma[i];
+		}
+		
+		sparseMass += mass;
+		sparseComponents += m;
+		
+		return mass;
+	}
+	
+	/**
+	 * Sparse accumulation of the listed components only, e.g. the candidates
+	 * of a Gaussian selection; same as the dense variant with gamma[ndx[j]]
+	 * set for the listed components and 0 for all others, but the cost only
+	 * depends on n.
+	 * @param gamma posteriors, gamma[j] belongs to component ndx[j]
+	 * @param ndx component indices
+	 * @param n number of components
+	 * @param x observation
+	 * @param threshold minimum posterior
+	 * @param topK maximum number of components, 0 for no limit
+	 * @return accumulated posterior mass
+	 */
+	public double accumulate(double [] gamma, int [] ndx, int n, double [] x, double threshold, int topK) {
+		if (active == null)
+			active = new int [nd];
+		
+		// active holds positions within gamma and ndx
+		int m = 0;
+		for (int j = 0; j < n; ++j)
+			if (gamma[j] > 0. && gamma[j] >= threshold)
+				active[m++] = j;
+		
+		m = top(gamma, m, topK);
+		
+		double mass = 0.;
+		for (int j = 0; j < m; ++j) {
+			int k = active[j];
+			accs[ndx[k]].accumulate(gamma[k], x);
+			mass += gamma[k];
+		}
+		
+		sparseMass += mass;
+		sparseComponents += m;
+		
+		return mass;
+	}
+	
+	/**
+	 * Keep the topK largest of gamma[active[0...m-1]] in active[0...topK-1],
+	 * descending.
+	 * @return number of remaining entries
+	 */
+	private int top(double [] gamma, int m, int topK) {
+		if (topK <= 0 || m <= topK)
+			return m;
+		
+		for (int j = 1; j < topK; ++j) {
+			int c = active[j];
+			int p = j;
+			while (p > 0 && gamma[active[p - 1]] < gamma[c]) {
+				active[p] = active[p - 1];
+				p--;
+			}
+			active[p] = c;
+		}
+		for (int j = topK; j < m; ++j) {
+			int c = active[j];
+			if (gamma[c] <= gamma[active[topK - 1]])
+				continue;
+			int p = topK - 1;
+			while (p > 0 && gamma[active[p - 1]] < gamma[c]) {
+				active[p] = active[p - 1];
+				p--;
+			}
+			active[p] = c;
+		}
+		
+		return topK;
+	}
+	
 	public void propagate(MleMixtureAccumulator source) {
 		if (fd != source.fd || nd != source.nd)
 			throw new RuntimeException("Feature dim and/or number of densities mismatch!");
 		
 		for (int i = 0; i < nd; ++i)
 			accs[i].propagate(source.accs[i]);
+		
+		sparseMass += source.sparseMass;
+		sparseComponents += source.sparseComponents;
 	}
 	
 	public void interpolate(MleMixtureAccumulator source, double weight) {
@@ -142,6 +272,9 @@ public final class MleMixtureAccumulator {
 	public void flush() {
 		for (MleDensityAccumulator a : accs)
 			a.flush();
+		
+		sparseMass = 0.;
+		sparseComponents = 0;
 	}
 	
 	public String toString() {
@@ -177,7 +310,7 @@ public final class MleMixtureAccumulator {
 	public static final String SYNOPSIS =
 		"usage: stat.MleMixtureAccumulator [command] [arguments]\n" +
 		"  acc   mixture-list prot-file data-in-out-list\n" +
-		"  mle   mixture-old mixture-new acc-list\n" +
+		"  mle   mixture-old mixture-new acc-list [wmv]\n" +
 		"  mmie  mixture-in-out-list prot-file-with-labels [wmv]\n" +
 		"  disp  accumulator1 [accumulator2 ...]\n";
 	
@@ -295,7 +428,69 @@ public final class MleMixtureAccumulator {
 	}
 	
 	private static void domle(String [] args) throws Exception {
+		if (args.length < (3+1)) {
+			System.err.println(SYNOPSIS);
+			System.err.println("cmd-line was:" + Arrays.toString(args));
+			System.exit(1);
+		}
+		
+		Mixture m = Mixture.readFromFile(new File(args[1]));
+		
+		// read the accumulator list
+		List<File> files = new LinkedList<File>();
+		BufferedReader br = new BufferedReader(new FileReader(args[3]));
+		String l;
+		while ((l = br.readLine()) != null) {
+			if (l.trim().length() > 0)
+				files.add(new File(l.trim()));
+		}
+		br.close();
+		
+		MleMixtureAccumulator acc = sum(files);
+		if (acc.fd != m.fd || acc.nd != m.nd)
+			throw new IOException("accumulators (fd=" + acc.fd + " nd=" + acc.nd + ") do not match " + args[1] + " (fd=" + m.fd + " nd=" + m.nd + ")");
+		
+		logger.info("read " + files.size() + " MLE accumulators");
+		
+		Density.Flags flags = Density.Flags.fAllParams;
+		if (args.length > 4) {
+			String wmv = args[4].toLowerCase();
+			flags = new Density.Flags(wmv.contains("w"), wmv.contains("m"), wmv.contains("v"));
+		}
+		
+		Mixture mout = m.clone();
+		MleUpdate(m, MleDensityAccumulator.MleOptions.pDefaultOptions, flags, acc, mout);
+		
+		mout.writeToFile(new File(args[2]));
+	}
+	
+	/**
+	 * Read the (first) accumulator of each file and add them up, e.g. to 
+	 * combine the statistics of several processes (see app.GaussEM --shard).
+	 * @param files accumulator files
+	 * @return sum of the accumulators
+	 */
+	public static MleMixtureAccumulator sum(List<File> files) throws IOException {
+		MleMixtureAccumulator acc = null;
+		for (File f : files) {
+			InputStream is = new BufferedInputStream(new FileInputStream(f));
+			try {
+				MleMixtureAccumulator a = new MleMixtureAccumulator(is);
+				if (acc == null)
+					acc = a;
+				else if (a.fd != acc.fd || a.nd != acc.nd || !a.host.equals(acc.host))
+					throw new IOException(f + ": accumulator (fd=" + a.fd + " nd=" + a.nd + ") does not match the previous ones (fd=" + acc.fd + " nd=" + acc.nd + ")");
+				else
+					acc.propagate(a);
+			} finally {
+				is.close();
+			}
+		}
+		
+		if (acc == null)
+			throw new IOException("no accumulators to combine");
 		
+		return acc;
 	}
 	
 	private static void dommie(String [] args) throws Exception {
@@ -25,9 +25,13 @@ import java.io.IOException;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import com.github.sikoried.jstk.io.ChunkedDataSet;
-import com.github.sikoried.jstk.io.FrameInputStream;
+import com.github.sikoried.jstk.io.FrameSource;
+import com.github.sikoried.jstk.util.Arithmetics;
+import com.github.sikoried.jstk.util.FastMath;
+import com.github.sikoried.jstk.util.TreeReduction;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -67,6 +71,27 @@ public final class ParallelEM {
 	
 	private Density.Flags flags;
 	
+	/** optional Gaussian selection to compute the posteriors */
+	private GaussianSelection gs = null;
+	
+	/** number of codewords to merge for the Gaussian selection */
+	private int shortlist;
+	
+	/** sparse accumulation: minimum posterior and maximum number of components */
+	private double minPosterior = 0.;
+	private int topK = 0;
+	
+	/** posterior mass accumulated in the last iteration (sparse accumulation) */
+	public double accumulatedMass = 0.;
+	
+	/** number of frames processed in the last iteration */
+	public long frames = 0;
+	
+	/** thread pool, workers and partial accumulators, kept across iterations */
+	private ExecutorService pool = null;
+	Worker [] workers = null;
+	private MleMixtureAccumulator [] accus = null;
+	
 	/**
 	 * Generate a new Estimator for parallel EM iterations.
 	 * 
@@ -104,13 +129,56 @@ public final class ParallelEM {
 		this.data = data;
 	}
 	
+	/**
+	 * Compute the posteriors using only the components selected by the given
+	 * Gaussian selection, the remaining ones are assumed to be zero.
+	 * @param gs Gaussian selection, null to evaluate all components
+	 * @param shortlist number of codewords to merge
+	 */
+	public void setGaussianSelection(GaussianSelection gs, int shortlist) {
+		if (gs != null && gs.nd != nd)
+			throw new IllegalArgumentException("Gaussian selection expects " + gs.nd + " components, mixture has " + nd);
+		this.gs = gs;
+		this.shortlist = shortlist;
+		
+		// the workers need new buffers
+		workers = null;
+	}
+	
+	/**
+	 * Accumulate the statistics only for the components with a posterior of
+	 * at least minPosterior, and of those only the topK largest; the 
+	 * discarded posterior mass is reported after each iteration.
+	 * @param minPosterior minimum posterior, 0 for no threshold
+	 * @param topK maximum number of components per frame, 0 for no limit
+	 */
+	public void setSparseAccumulation(double minPosterior, int topK) {
+		this.minPosterior = minPosterior;
+		this.topK = topK;
+	}
+	
 	/**
 	 * Set the number of threads for the next iteration
 	 */
 	public void setNumberOfThreads(int num) {
+		if (num != numThreads)
+			shutdown();
 		numThreads = num;
 	}
 	
+	/**
+	 * Stop the worker threads and release the partial accumulators; the next
+	 * iteration starts new ones.
+	 */
+	public void shutdown() {
+		if (pool != null)
+			pool.shutdownNow();
+		
+		pool = null;
+		workers = null;
+		accus = null;
+	}
+	
 	/**
 	 * Perform a number of EM iterations
 	 * @param iterations
@@ -123,86 +191,206 @@ public final class ParallelEM {
 	}
 	
 	/**
-	 * Perform one EM iteration
+	 * Perform one EM iteration; the worker threads and their accumulators
+	 * are kept for the following iterations (see shutdown()).
 	 * @throws IOException
 	 * @throws InterruptedException
 	 */
 	public void iterate() throws ClassNotFoundException, IOException, InterruptedException {
 		logger.info("ParallelEM.iterate(): BEGIN iteration " + (++ni));
 		
-		// each thread an individual working copy of the current estiamte
-		Mixture [] workingCopies = new Mixture[numThreads];
-		MleMixtureAccumulator accus [] = new MleMixtureAccumulator [numThreads];
+		update(accumulate());
+
+		logger.info("ParallelEM.iterate(): END");
+	}
+	
+	/**
+	 * First part of the EM: accumulate the statistics of the current 
+	 * estimate over the data set without updating it. The returned 
+	 * accumulator belongs to this instance and is valid until the next call
+	 * to accumulate() or iterate(); use MleMixtureAccumulator.write() to 
+	 * combine the statistics of several processes.
+	 * @return accumulator holding the statistics of all threads
+	 * @throws IOException if a thread failed; the statistics are discarded
+	 * @throws InterruptedException
+	 */
+	public MleMixtureAccumulator accumulate() throws ClassNotFoundException, IOException, InterruptedException {
+		// all threads share a read-only compiled copy of the current estimate
+		CompiledMixture cm = new CompiledMixture(current);
 		
+		if (pool == null) {
+			pool = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "ParallelEM-worker");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
 		
-		// save the old mixture, put zeros in the current
-		previous = current.clone();
+		if (accus == null) {
+			accus = new MleMixtureAccumulator [numThreads];
+			for (int i = 0; i < numThreads; ++i)
+				accus[i] = new MleMixtureAccumulator(fd, nd, current.diagonal() ? DensityDiagonal.class : DensityFull.class);
+		}
 		
-		ExecutorService e = Executors.newFixedThreadPool(numThreads);
+		if (workers == null) {
+			workers = new Worker [numThreads];
+			for (int i = 0; i < numThreads; ++i)
+				workers[i] = new Worker(cm, accus[i]);
+		}
 		
 		// BEGIN EM PART1: accumulate the statistics
 		CountDownLatch latch = new CountDownLatch(numThreads);
-	
-		MleMixtureAccumulator mlea = new MleMixtureAccumulator(
-				current.fd, 
-				current.nd, 
-				current.diagonal() ? DensityDiagonal.class : DensityFull.class);
 		
-		for (int i = 0; i < numThreads; ++i)
-			e.execute(new Worker(
-				workingCopies[i] = current.clone(), 
-				accus[i] = new MleMixtureAccumulator(mlea), latch)
-			);
+		long t0 = System.nanoTime();
+		for (Worker w : workers) {
+			w.reset(cm, latch);
+			pool.execute(w);
+		}
 		
 		// wait for all jobs to be done
 		latch.await();
+		long wall = System.nanoTime() - t0;
+		
+		// partial statistics are useless: discard the accumulators
+		for (Worker w : workers) {
+			if (w.error != null) {
+				data.rewind();
+				shutdown();
+				throw new IOException("ParallelEM.accumulate(): worker failed, statistics incomplete", w.error);
+			}
+		}
 		
-		// make sure the thread pool is done
-		e.shutdownNow();
+		// load balance: time the workers waited for the slowest one
+		long minBusy = Long.MAX_VALUE, maxBusy = 0, idle = 0;
+		for (Worker w : workers) {
+			minBusy = Math.min(minBusy, w.busy);
+			maxBusy = Math.max(maxBusy, w.busy);
+			idle += wall - w.busy;
+		}
+		logger.info("ParallelEM.accumulate(): load balance: " + (wall / 1000000) + " ms, workers busy " + (minBusy / 1000000) + " to " + (maxBusy / 1000000) + " ms, idle " + (100. * idle / ((double) wall * numThreads)) + "%");
 		
 		// rewind the list 
 		data.rewind();
 		
 		// BEGIN EM PART2: combine the partial estimates by combining the accus
-		for (int i = 0; i < numThreads; ++i)
-			mlea.propagate(accus[i]);
+		MleMixtureAccumulator mlea = reduce();
+		
+		frames = 0;
+		for (Worker w : workers)
+			frames += w.cnt_frame;
+		
+		accumulatedMass = mlea.sparseMass;
+		if (sparse() && frames > 0)
+			logger.info("ParallelEM.accumulate(): sparse accumulation discarded " + (frames - accumulatedMass) + " of " + frames + " posterior mass (" + (100. * (frames - accumulatedMass) / frames) + "%), " + ((double) mlea.sparseComponents / frames) + " components per frame");
+		
+		return mlea;
+	}
+	
+	/**
+	 * Second part of the EM: save the current estimate to previous and 
+	 * compute the new one from the given statistics.
+	 * @param mlea accumulated statistics, e.g. from accumulate() or the sum
+	 *        of several such accumulators
+	 */
+	public void update(MleMixtureAccumulator mlea) {
+		// save the old mixture
+		previous = current.clone();
 		
 		MleMixtureAccumulator.MleUpdate(previous, opts, flags, mlea, current);
-
-		logger.info("ParallelEM.iterate(): END");
+	}
+	
+	/**
+	 * Combine the partial accumulators as a tree, see TreeReduction; the 
+	 * order of the additions only depends on the number of threads. If a 
+	 * merge fails, the (partially merged) accumulators are discarded, see
+	 * shutdown().
+	 * @return accumulator holding the sum of all
+	 */
+	private MleMixtureAccumulator reduce() throws InterruptedException {
+		try {
+			return TreeReduction.reduce(accus, new TreeReduction.Merge<MleMixtureAccumulator>() {
+				public void merge(MleMixtureAccumulator target, MleMixtureAccumulator source) {
+					target.propagate(source);
+				}
+			}, pool);
+		} catch (RuntimeException e) {
+			shutdown();
+			throw e;
+		}
+	}
+	
+	private boolean sparse() {
+		return minPosterior > 0. || topK > 0;
 	}
 	
 	/**
 	 * First part of the EM: Accumulate posteriors, prepare priors and mean
 	 */
 	private class Worker implements Runnable {
-		Mixture m;
+		CompiledMixture m;
 		MleMixtureAccumulator a;
 		CountDownLatch latch;
 		
-		/** feature buffer */
-		double [] f;
+		/** feature buffer: a block of frames for Mixture.evaluateBatch */
+		double [][] f;
+		
+		/** component log-likelihoods of the block */
+		double [][] lh;
 		
 		/** posterior buffer */
 		double [] p;
 		
+		/** posteriors of the selected components (Gaussian selection) */
+		double [] gp = null;
+		
+		/** scratch buffer for the compiled mixture */
+		double [] scratch;
+		
+		/** Gaussian selection buffers, if any */
+		GaussianSelection.Scratch gss = null;
+		
 		/** number of chunks processed by this thread */
 		int cnt_chunk = 0;
 		
 		/** number of frames processed by this thread */
 		int cnt_frame = 0;
 		
-		Worker(Mixture m, MleMixtureAccumulator a, CountDownLatch latch) {
-			this.latch = latch;
+		/** time spent in run() in ns */
+		long busy = 0;
+		
+		/** exception or error that stopped the thread, if any */
+		Throwable error = null;
+		
+		
+		Worker(CompiledMixture m, MleMixtureAccumulator a) {
 			this.m = m;
 			this.a = a;
 			
 			// init the buffers
-			f = new double [fd];
+			f = new double [Mixture.BATCH_BLOCK][fd];
+			lh = new double [Mixture.BATCH_BLOCK][nd];
 			p = new double [nd];
-			
-			// just to be sure...
+			scratch = m.newScratch();
+			if (gs != null) {
+				gss = gs.newScratch(m);
+				gp = new double [nd];
+			}
+		}
+		
+		/**
+		 * Prepare the next iteration: use the given estimate, zero the
+		 * accumulator (in place) and the counters.
+		 */
+		void reset(CompiledMixture m, CountDownLatch latch) {
+			this.m = m;
+			this.latch = latch;
 			a.flush();
+			cnt_chunk = 0;
+			cnt_frame = 0;
+			busy = 0;
+			error = null;
 		}
 		
 		/**
@@ -210,29 +398,59 @@ public final class ParallelEM {
 		 * update the accus
 		 */
 		public void run() {
+			long t0 = System.nanoTime();
 			try {
 				ChunkedDataSet.Chunk chunk;
 				
 				// as long as we have chunks to do... NB: data is (synchronized) from ParallelEM!
 				while ((chunk = data.nextChunk()) != null) {
-					FrameInputStream source = chunk.getFrameReader();
+					FrameSource source = chunk.getFrameSource();
 						
-					while (source.read(f)) {
-						m.evaluate(f);
-						m.posteriors(p);
-						a.accumulate(p, f);
+					int n;
+					do {
+						// read a block, evaluate all its frames at once
+						n = 0;
+						while (n < f.length && source.read(f[n]))
+							n++;
+						
+						if (gs == null) {
+							m.evaluateBatch(f, 0, n, lh, scratch);
+							for (int i = 0; i < n; ++i) {
+								m.posteriors(lh[i], p);
+								if (sparse())
+									a.accumulate(p, f[i], minPosterior, topK);
+								else
+									a.accumulate(p, f[i]);
+							}
+						} else {
+							for (int i = 0; i < n; ++i) {
+								// posteriors of the selected components only
+								int nc = gs.select(f[i], shortlist, m, gss);
+								double ll = Arithmetics.logsumexp(gss.lh, nc);
+								for (int j = 0; j < nc; ++j)
+									gp[j] = FastMath.exp(gss.lh[j] - ll);
+								
+								if (sparse())
+									a.accumulate(gp, gss.candidates, nc, f[i], minPosterior, topK);
+								else
+									a.accumulate(gp, gss.candidates, nc, f[i]);
+							}
+						}
 
-						cnt_frame++;
-					}
+						cnt_frame += n;
+					} while (n == f.length);
 					
 					cnt_chunk++;
 				}
 				
 				logger.info("ParallelEM.Worker#" + Thread.currentThread().getId() + ".run(): processed " + cnt_frame + " in " + cnt_chunk + " chunks");
 			
-			} catch (IOException e) {
-				logger.info("ParallelEM.Worker#" + Thread.currentThread().getId() + ".run(): IOException: " + e.toString());
+			} catch (Throwable e) {
+				logger.error("ParallelEM.Worker#" + Thread.currentThread().getId() + ".run(): " + e.toString());
+				error = e;
 			} finally {
+				busy = System.nanoTime() - t0;
+				
 				// notify the main thread
 				latch.countDown();
 			}
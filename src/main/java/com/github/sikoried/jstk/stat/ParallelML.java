@@ -28,7 +28,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import com.github.sikoried.jstk.io.ChunkedDataSet;
-import com.github.sikoried.jstk.io.FrameInputStream;
+import com.github.sikoried.jstk.io.FrameSource;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -206,7 +206,7 @@ public class ParallelML {
 				ChunkedDataSet.Chunk chunk;
 				
 				while ((chunk = data.nextChunk()) != null) {
-					FrameInputStream source = chunk.getFrameReader();
+					FrameSource source = chunk.getFrameSource();
 						
 					// reset the estimate for this chunk
 					for (int i = 0; i < est.length; ++i)
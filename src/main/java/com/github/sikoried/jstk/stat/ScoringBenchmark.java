@@ -0,0 +1,209 @@
+/*
+	Copyright (c) 2009-2011
+		Speech Group at Informatik 5, Univ. Erlangen-Nuremberg, GERMANY
+		Korbinian Riedhammer
+		Tobias Bocklet
+
+	This file is part of the Java Speech Toolkit (JSTK).
+
+	The JSTK is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	The JSTK is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with the JSTK. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.github.sikoried.jstk.stat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import com.github.sikoried.jstk.util.Arithmetics;
+
+/**
+ * Compare the speed and accuracy of the mixture scoring paths: the regular
+ * Density.logEvaluate, the batched CompiledMixture and the single precision
+ * FloatMixture (with single and double precision accumulation).
+ *
+ * @author sikoried
+ */
+public final class ScoringBenchmark {
+	private ScoringBenchmark() {
+
+	}
+
+	private static final String [] VARIANTS = { "density", "compiled", "float", "float-dacc" };
+
+	/**
+	 * Generate a random diagonal mixture
+	 */
+	public static Mixture randomMixture(int fd, int nd, Random rnd) {
+		Mixture m = new Mixture(fd, nd, true);
+		for (Density d : m.components) {
+			double [] mue = new double [fd];
+			double [] cov = new double [fd];
+			for (int i = 0; i < fd; ++i) {
+				mue[i] = rnd.nextGaussian() * 3.;
+				cov[i] = .2 + rnd.nextDouble() * 2.;
+			}
+			d.fill(1. / nd, mue, cov);
+		}
+		return m;
+	}
+
+	/**
+	 * Score the frames with all variants and print the timing of the component
+	 * scores (best of the given number of rounds, without the log-sum-exp
+	 * which is the same for all variants) and the deviation from the density
+	 * scores.
+	 */
+	public static void run(Mixture m, double [][] x, int rounds) {
+		int n = x.length;
+		int nd = m.nd;
+
+		CompiledMixture cm = new CompiledMixture(m);
+		double [] cms = cm.newScratch();
+		FloatMixture fm = new FloatMixture(m, false);
+		FloatMixture.Scratch fms = fm.newScratch();
+		FloatMixture dm = new FloatMixture(m, true);
+		FloatMixture.Scratch dms = dm.newScratch();
+
+		// reference: component scores of the densities
+		double [][] ref = new double [n][nd];
+		double [] refLlh = new double [n];
+		int [] refTop = new int [n];
+		for (int t = 0; t < n; ++t) {
+			for (int k = 0; k < nd; ++k)
+				ref[t][k] = m.components[k].logEvaluate(x[t]);
+			refLlh[t] = Arithmetics.logsumexp(ref[t], nd);
+			refTop[t] = argmax(ref[t], nd);
+		}
+
+		long [] bytes = {
+			8L * nd * (2 * m.fd + 1),
+			8L * nd * (2 * m.fd + 1),
+			fm.getParameterBytes(),
+			dm.getParameterBytes()
+		};
+
+		double [][] lh = new double [n][nd];
+		double base = 0.;
+
+		System.out.println("nd=" + nd + " fd=" + m.fd + " frames=" + n);
+		System.out.println("variant ms/frame speedup param_kb max_abs_component_error mean_abs_llh_error top1_agreement");
+
+		for (int v = 0; v < VARIANTS.length; ++v) {
+			long best = Long.MAX_VALUE;
+			for (int r = 0; r < rounds; ++r) {
+				long t0 = System.nanoTime();
+				switch (v) {
+				case 0:
+					for (int t = 0; t < n; ++t)
+						for (int k = 0; k < nd; ++k)
+							lh[t][k] = m.components[k].logEvaluate(x[t]);
+					break;
+				case 1:
+					cm.evaluateBatch(x, 0, n, lh, cms);
+					break;
+				case 2:
+					fm.evaluateBatch(x, 0, n, lh, fms);
+					break;
+				case 3:
+					dm.evaluateBatch(x, 0, n, lh, dms);
+					break;
+				}
+				best = Math.min(best, System.nanoTime() - t0);
+			}
+
+			double ms = best / 1e6 / n;
+			if (v == 0)
+				base = ms;
+
+			double maxErr = 0., llhErr = 0.;
+			int agree = 0;
+			for (int t = 0; t < n; ++t) {
+				for (int k = 0; k < nd; ++k)
+					maxErr = Math.max(maxErr, Math.abs(lh[t][k] - ref[t][k]));
+				llhErr += Math.abs(Arithmetics.logsumexp(lh[t], nd) - refLlh[t]);
+				if (argmax(lh[t], nd) == refTop[t])
+					agree++;
+			}
+
+			System.out.println(VARIANTS[v] + " " + ms + " " + (base / ms) + " " + (bytes[v] / 1024) + " " + maxErr + " " + (llhErr / n) + " " + ((double) agree / n));
+		}
+	}
+
+	private static int argmax(double [] v, int n) {
+		int b = 0;
+		for (int i = 1; i < n; ++i)
+			if (v[i] > v[b])
+				b = i;
+		return b;
+	}
+
+	public static final String SYNOPSIS =
+		"Compare speed and accuracy of the double, batched and single precision\n" +
+		"mixture scoring.\n\n" +
+		"usage: stat.ScoringBenchmark [options]\n" +
+		"  -m mixture\n" +
+		"    Diagonal mixture to score (default: random mixture, see -d and -g)\n" +
+		"  -d num\n" +
+		"    Feature dimension of the random mixture (default: 39)\n" +
+		"  -g num\n" +
+		"    Number of Gaussians of the random mixture (default: 1024)\n" +
+		"  -n num\n" +
+		"    Number of frames, drawn from the mixture (default: 2000)\n" +
+		"  -r num\n" +
+		"    Number of timing rounds, the best is reported (default: 5)\n" +
+		"  --seed num\n" +
+		"    Random seed (default: 42)\n";
+
+	public static void main(String [] args) throws IOException, ClassNotFoundException {
+		if (args.length > 0 && (args[0].equals("-h") || args[0].equals("--help"))) {
+			System.err.println(SYNOPSIS);
+			System.exit(1);
+		}
+
+		String mixture = null;
+		int fd = 39;
+		int nd = 1024;
+		int n = 2000;
+		int rounds = 5;
+		long seed = 42;
+
+		for (int i = 0; i < args.length; ++i) {
+			if (args[i].equals("-m"))
+				mixture = args[++i];
+			else if (args[i].equals("-d"))
+				fd = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-g"))
+				nd = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-n"))
+				n = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-r"))
+				rounds = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--seed"))
+				seed = Long.parseLong(args[++i]);
+			else
+				throw new IOException("Invalid argument \"" + args[i] + "\"");
+		}
+
+		Random rnd = new Random(seed);
+		Mixture m = (mixture == null ? randomMixture(fd, nd, rnd) : Mixture.readFromFile(new File(mixture)));
+		if (!m.diagonal)
+			throw new IOException("ScoringBenchmark requires a diagonal mixture");
+
+		double [][] x = new double [n][];
+		for (int t = 0; t < n; ++t)
+			x[t] = GaussianSelection.drawSample(m, rnd);
+
+		run(m, x, rounds);
+	}
+}
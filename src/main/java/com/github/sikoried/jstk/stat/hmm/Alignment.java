@@ -189,7 +189,7 @@ public class Alignment {
 		for (int j = 0; j < N; ++j) {
 			scores[0][j] = (model.pi[j] == 0. ? 
 								-Double.MAX_VALUE :
-								Math.log(model.pi[j]) + Math.log(model.s[j].emits(x))
+								Math.log(model.pi[j]) + model.s[j].logEmits(x)
 							);
 		}
 				
@@ -202,7 +202,7 @@ public class Alignment {
 					double s = scores[t-1][i] + Math.log(a[i][j]);
 					if (mv < s) { mv = s; mp = i; }
 				}
-				scores[t][j] = mv + Math.log(model.s[j].emits(x));
+				scores[t][j] = mv + model.s[j].logEmits(x);
 				trace[t][j] = mp;
 				
 				// reset max values
@@ -88,6 +88,13 @@ public class CState extends State {
 	public double emits(double[] x) {
 		return cb.evaluate2(x);
 	}
+	
+	/**
+	 * Log emission probability of feature vector x
+	 */
+	public double logEmits(double[] x) {
+		return cb.logEvaluate2(x);
+	}
 
 	/**
 	 * Initialize a new accumulator.
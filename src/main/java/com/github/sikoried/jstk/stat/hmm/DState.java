@@ -192,6 +192,13 @@ public final class DState extends State {
 		return b[resolve(x[0])];
 	}
 	
+	/**
+	 * Return the log emission probability for the given observation
+	 */
+	public double logEmits(double [] x) {
+		return Math.log(b[resolve(x[0])]);
+	}
+	
 	/**
 	 * Generate a String representation of this state.
 	 */
@@ -29,9 +29,11 @@ import java.nio.ByteOrder;
 import java.util.HashMap;
 
 import com.github.sikoried.jstk.io.IOUtil;
+import com.github.sikoried.jstk.stat.Density;
 import com.github.sikoried.jstk.stat.Mixture;
 import com.github.sikoried.jstk.stat.MleMixtureAccumulator;
 import com.github.sikoried.jstk.util.Arithmetics;
+import com.github.sikoried.jstk.util.FastMath;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -111,6 +113,16 @@ public final class SCState extends State {
 		this.sharedAcc = acc;
 	}
 	
+	/**
+	 * Set the individual mixture weights of this state
+	 * @param c weights, one per codebook density
+	 */
+	public void setWeights(double [] c) {
+		if (c.length != cb.nd)
+			throw new IllegalArgumentException("SCState.setWeights(): c.length = " + c.length + " != " + cb.nd);
+		System.arraycopy(c, 0, this.c, 0, c.length);
+	}
+	
 	/**
 	 * Write out the SCState. Note that instead of the MixtureDensity, only its 
 	 * ID is written!
@@ -135,6 +147,33 @@ public final class SCState extends State {
 		
 		return b;
 	}
+	
+	/**
+	 * Log probability of this state to emit the feature vector x; the 
+	 * codebook component log-likelihoods (without the codebook priors) are
+	 * combined using log-sum-exp.
+	 */
+	public double logEmits(double[] x) {
+		cb.logEvaluate2(x);
+		
+		Density [] d = cb.components;
+		double max = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < c.length; ++i) {
+			if (c[i] > 0. && d[i].logscore > max)
+				max = d[i].logscore;
+		}
+		
+		if (max == Double.NEGATIVE_INFINITY)
+			return max;
+		
+		double sum = 0.;
+		for (int i = 0; i < c.length; ++i) {
+			if (c[i] > 0.)
+				sum += c[i] * FastMath.exp(d[i].logscore - max);
+		}
+		
+		return max + FastMath.log(sum);
+	}
 
 	public double gamma() {
 		if (a == null)
@@ -50,6 +50,17 @@ public abstract class State {
 	 */
 	public abstract double emits(double [] x);
 	
+	/**
+	 * Compute the logarithm of the state emission probability for the given
+	 * observation. Implementing states should override this to avoid the
+	 * exp/log round trip.
+	 * @param x observation
+	 * @return log of the state emission probability
+	 */
+	public double logEmits(double [] x) {
+		return Math.log(emits(x));
+	}
+	
 	/** 
 	 * Initialize the accumulator.
 	 */
@@ -644,6 +644,29 @@ public final class Arithmetics {
 		return m;
 	}
 	
+	/**
+	 * Compute log(sum_i exp(a[i])) for the first n values of a without leaving
+	 * the log domain, i.e. by factoring out the maximum.
+	 * @param a log values
+	 * @param n number of values to consider
+	 * @return log of the sum, -Infinity if all values are -Infinity
+	 */
+	public static double logsumexp(double [] a, int n) {
+		double max = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < n; ++i)
+			if (a[i] > max)
+				max = a[i];
+
+		if (max == Double.NEGATIVE_INFINITY || max == Double.POSITIVE_INFINITY)
+			return max;
+
+		double sum = 0.;
+		for (int i = 0; i < n; ++i)
+			sum += FastMath.exp(a[i] - max);
+
+		return max + FastMath.log(sum);
+	}
+
 	/**
 	 * Add a list of double values in a numerically stable way by adding always
 	 * two consecutive values (which are expected to be of similar size), to
@@ -0,0 +1,261 @@
+/*
+	Copyright (c) 2009-2011
+		Speech Group at Informatik 5, Univ. Erlangen-Nuremberg, GERMANY
+		Korbinian Riedhammer
+		Tobias Bocklet
+
+	This file is part of the Java Speech Toolkit (JSTK).
+
+	The JSTK is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	The JSTK is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with the JSTK. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.github.sikoried.jstk.util;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Table driven approximations of exp and log for the log-sum-exp and the
+ * posterior computations of the mixture evaluation. The exp and log methods
+ * use the approximations only if the fast-math mode is enabled (default:
+ * off, i.e. Math.exp and Math.log).
+ *
+ * exp(x) = 2^(k/256) * exp(r) with |r| <= log(2)/512 and a cubic polynomial
+ * for exp(r); the relative error is below EXP_ERROR_BOUND.
+ *
+ * log(x) = e log(2) + log(c_j) + log(1 + r) where c_j is the center of the
+ * j-th of 256 mantissa intervals, |r| <= 1/512 and a polynomial of degree 4
+ * for log(1 + r); the absolute error is below LOG_ERROR_BOUND (times |log(x)|
+ * for |log(x)| > 1).
+ *
+ * Arguments outside the normal range (NaN, infinities, subnormal results
+ * or arguments) are passed on to Math.exp and Math.log.
+ *
+ * @author sikoried
+ */
+public final class FastMath {
+	private FastMath() {
+
+	}
+
+	/** maximum relative error of approxExp */
+	public static final double EXP_ERROR_BOUND = 2e-13;
+
+	/** maximum absolute error of approxLog, relative to max(1, |log(x)|) */
+	public static final double LOG_ERROR_BOUND = 1e-14;
+
+	/** use the approximations? volatile so worker threads see the switch */
+	private static volatile boolean enabled = false;
+
+	private static final int TABLE_BITS = 8;
+	private static final int TABLE_SIZE = 1 << TABLE_BITS;
+
+	private static final double LN2 = Math.log(2.);
+
+	/** TABLE_SIZE / log(2) */
+	private static final double EXP_SCALE = TABLE_SIZE / LN2;
+
+	/** log(2) / TABLE_SIZE, split in a high part with trailing zeros and a low part */
+	private static final double EXP_STEP_HI = Double.longBitsToDouble(Double.doubleToRawLongBits(LN2 / TABLE_SIZE) & 0xFFFFFFFFF0000000L);
+	private static final double EXP_STEP_LO = LN2 / TABLE_SIZE - EXP_STEP_HI;
+
+	/** 2^(j / TABLE_SIZE) */
+	private static final double [] EXP_TABLE = new double [TABLE_SIZE];
+
+	/** 1 / c_j with c_j = 1 + (j + .5) / TABLE_SIZE */
+	private static final double [] LOG_INV = new double [TABLE_SIZE];
+
+	/** log(c_j) */
+	private static final double [] LOG_TABLE = new double [TABLE_SIZE];
+
+	static {
+		for (int j = 0; j < TABLE_SIZE; ++j) {
+			EXP_TABLE[j] = StrictMath.pow(2., (double) j / TABLE_SIZE);
+			double c = 1. + (j + .5) / TABLE_SIZE;
+			LOG_INV[j] = 1. / c;
+			LOG_TABLE[j] = StrictMath.log(c);
+		}
+	}
+
+	/**
+	 * Enable or disable the fast-math mode for all subsequent calls of exp
+	 * and log. This is a process wide switch that affects every mixture
+	 * (Mixture, CompiledMixture, FloatMixture) and the EM accumulators alike;
+	 * set it before starting any computation, switching it while threads
+	 * are scoring mixes exact and approximated values.
+	 */
+	public static void setEnabled(boolean enable) {
+		enabled = enable;
+	}
+
+	/**
+	 * Is the fast-math mode enabled?
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * exp(x), approximated if the fast-math mode is enabled.
+	 */
+	public static double exp(double x) {
+		return enabled ? approxExp(x) : Math.exp(x);
+	}
+
+	/**
+	 * log(x), approximated if the fast-math mode is enabled.
+	 */
+	public static double log(double x) {
+		return enabled ? approxLog(x) : Math.log(x);
+	}
+
+	/**
+	 * Table driven approximation of exp(x), relative error below
+	 * EXP_ERROR_BOUND.
+	 */
+	public static double approxExp(double x) {
+		// also catches NaN
+		if (!(x > -708. && x < 709.))
+			return Math.exp(x);
+
+		double k = Math.floor(x * EXP_SCALE + .5);
+		double r = (x - k * EXP_STEP_HI) - k * EXP_STEP_LO;
+
+		long ki = (long) k;
+		int j = (int) (ki & (TABLE_SIZE - 1));
+		long e = ki >> TABLE_BITS;
+
+		double p = 1. + r * (1. + r * (.5 + r * (1. / 6.)));
+
+		return EXP_TABLE[j] * p * Double.longBitsToDouble((e + 1023L) << 52);
+	}
+
+	/**
+	 * Table driven approximation of log(x), absolute error below
+	 * LOG_ERROR_BOUND * max(1, |log(x)|).
+	 */
+	public static double approxLog(double x) {
+		// also catches NaN
+		if (!(x >= Double.MIN_NORMAL && x < Double.POSITIVE_INFINITY))
+			return Math.log(x);
+
+		long bits = Double.doubleToRawLongBits(x);
+		int e = (int) (bits >>> 52) - 1023;
+		int j = (int) (bits >>> (52 - TABLE_BITS)) & (TABLE_SIZE - 1);
+
+		// mantissa in [1, 2)
+		double m = Double.longBitsToDouble((bits & 0x000FFFFFFFFFFFFFL) | 0x3FF0000000000000L);
+		double r = m * LOG_INV[j] - 1.;
+
+		double p = r * (1. + r * (-.5 + r * (1. / 3. + r * -.25)));
+
+		return e * LN2 + LOG_TABLE[j] + p;
+	}
+
+	/**
+	 * Measure the maximum errors of the approximations on random arguments
+	 * @return { max. relative error of exp, max. absolute error of log 
+	 *         relative to max(1, |log(x)|) }
+	 */
+	public static double [] measureErrors(int n, long seed) {
+		Random rnd = new Random(seed);
+		double ee = 0., le = 0.;
+		for (int i = 0; i < n; ++i) {
+			double x = (rnd.nextDouble() - .5) * 1400.;
+			ee = Math.max(ee, Math.abs(approxExp(x) / StrictMath.exp(x) - 1.));
+
+			// log: mostly around 1, where log-sum-exp operates
+			double y = (i % 2 == 0) ? 1. + rnd.nextDouble() * 1000. : Math.exp((rnd.nextDouble() - .5) * 1400.);
+			double ly = StrictMath.log(y);
+			le = Math.max(le, Math.abs(approxLog(y) - ly) / Math.max(1., Math.abs(ly)));
+		}
+		return new double [] { ee, le };
+	}
+
+	public static final String SYNOPSIS =
+		"Report the errors and the throughput of the fast-math approximations of\n" +
+		"exp and log (and log-sum-exp) compared to Math.exp and Math.log.\n\n" +
+		"usage: util.FastMath [options]\n" +
+		"  -n num\n" +
+		"    Number of random arguments (default: 1000000)\n" +
+		"  -g num\n" +
+		"    Vector length for the log-sum-exp (default: 1024)\n" +
+		"  -r num\n" +
+		"    Number of timing rounds, the best is reported (default: 5)\n";
+
+	public static void main(String [] args) throws IOException {
+		if (args.length > 0 && (args[0].equals("-h") || args[0].equals("--help"))) {
+			System.err.println(SYNOPSIS);
+			System.exit(1);
+		}
+
+		int n = 1000000;
+		int nd = 1024;
+		int rounds = 5;
+		for (int i = 0; i < args.length; ++i) {
+			if (args[i].equals("-n"))
+				n = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-g"))
+				nd = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-r"))
+				rounds = Integer.parseInt(args[++i]);
+			else
+				throw new IOException("Invalid argument \"" + args[i] + "\"");
+		}
+
+		double [] err = measureErrors(n, 42);
+		System.out.println("exp max_rel_error=" + err[0] + " (bound " + EXP_ERROR_BOUND + ")");
+		System.out.println("log max_abs_error/max(1,|log(x)|)=" + err[1] + " (bound " + LOG_ERROR_BOUND + ")");
+
+		// typical log-sum-exp arguments: differences to the maximum
+		Random rnd = new Random(4711);
+		double [] x = new double [n];
+		for (int i = 0; i < n; ++i)
+			x[i] = -50. * rnd.nextDouble();
+		double [] y = new double [n];
+		for (int i = 0; i < n; ++i)
+			y[i] = 1. + 100. * rnd.nextDouble();
+
+		double [] buf = new double [nd];
+
+		System.out.println("function Math_Mops/s FastMath_Mops/s speedup");
+		for (int f = 0; f < 3; ++f) {
+			double [] best = { Double.MAX_VALUE, Double.MAX_VALUE };
+			double sink = 0.;
+			for (int r = 0; r < rounds; ++r) {
+				for (int mode = 0; mode < 2; ++mode) {
+					setEnabled(mode == 1);
+					long t0 = System.nanoTime();
+					if (f == 0) {
+						for (int i = 0; i < n; ++i)
+							sink += exp(x[i]);
+					} else if (f == 1) {
+						for (int i = 0; i < n; ++i)
+							sink += log(y[i]);
+					} else {
+						for (int i = 0; i + nd <= n; i += nd) {
+							System.arraycopy(x, i, buf, 0, nd);
+							sink += Arithmetics.logsumexp(buf, nd);
+						}
+					}
+					best[mode] = Math.min(best[mode], (System.nanoTime() - t0) / 1e3);
+				}
+			}
+			setEnabled(false);
+
+			String [] names = { "exp", "log", "logsumexp(" + nd + ")" };
+			double ops = (f == 2 ? n / nd : n);
+			System.out.println(names[f] + " " + (ops / best[0]) + " " + (ops / best[1]) + " " + (best[0] / best[1]) + (sink == 0. ? " " : ""));
+		}
+	}
+}
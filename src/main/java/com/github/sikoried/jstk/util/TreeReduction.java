@@ -0,0 +1,99 @@
+/*
+	Copyright (c) 2009-2011
+		Speech Group at Informatik 5, Univ. Erlangen-Nuremberg, GERMANY
+		Korbinian Riedhammer
+		Tobias Bocklet
+
+	This file is part of the Java Speech Toolkit (JSTK).
+
+	The JSTK is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	The JSTK is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with the JSTK. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.github.sikoried.jstk.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+/**
+ * Combine partial results, e.g. the accumulators of several threads, as a
+ * tree: in each round, part i absorbs part i + stride, all pairs in parallel,
+ * for log2(n) rounds. The order of the additions only depends on the number
+ * of parts.
+ * 
+ * @author sikoried
+ */
+public final class TreeReduction {
+	/**
+	 * Merge operation; it may only access the two given parts, so that 
+	 * disjoint pairs can be merged in parallel.
+	 */
+	public interface Merge<T> {
+		/**
+		 * Add source to target
+		 */
+		void merge(T target, T source);
+	}
+	
+	private TreeReduction() {
+		
+	}
+	
+	/**
+	 * Combine the given parts on the given executor; the parts are modified.
+	 * If a merge fails, its exception is rethrown after the round and the 
+	 * parts are left partially merged.
+	 * @param parts partial results, parts[0] receives the sum of all
+	 * @param merge merge operation
+	 * @param executor executor to run the merges of a round on
+	 * @return parts[0]
+	 * @throws InterruptedException
+	 */
+	public static <T> T reduce(T [] parts, final Merge<T> merge, Executor executor) 
+		throws InterruptedException {
+		for (int stride = 1; stride < parts.length; stride *= 2) {
+			int pairs = 0;
+			for (int i = 0; i + stride < parts.length; i += 2 * stride)
+				pairs++;
+			
+			final CountDownLatch latch = new CountDownLatch(pairs);
+			final Throwable [] failure = new Throwable [1];
+			for (int i = 0; i + stride < parts.length; i += 2 * stride) {
+				final T target = parts[i];
+				final T source = parts[i + stride];
+				executor.execute(new Runnable() {
+					public void run() {
+						try {
+							merge.merge(target, source);
+						} catch (Throwable e) {
+							synchronized (failure) {
+								failure[0] = e;
+							}
+						} finally {
+							latch.countDown();
+						}
+					}
+				});
+			}
+			latch.await();
+			
+			synchronized (failure) {
+				if (failure[0] instanceof Error)
+					throw (Error) failure[0];
+				if (failure[0] != null)
+					throw (RuntimeException) failure[0];
+			}
+		}
+		
+		return parts[0];
+	}
+}
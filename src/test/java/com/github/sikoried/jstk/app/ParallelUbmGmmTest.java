@@ -0,0 +1,281 @@
+/*
+	Copyright (c) 2009-2011
+		Speech Group at Informatik 5, Univ. Erlangen-Nuremberg, GERMANY
+		Korbinian Riedhammer
+		Tobias Bocklet
+
+	This file is part of the Java Speech Toolkit (JSTK).
+
+	The JSTK is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	The JSTK is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with the JSTK. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.github.sikoried.jstk.app;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.github.sikoried.jstk.io.FrameOutputStream;
+import com.github.sikoried.jstk.stat.CompiledMixture;
+import com.github.sikoried.jstk.stat.Density;
+import com.github.sikoried.jstk.stat.GaussianSelection;
+import com.github.sikoried.jstk.stat.Mixture;
+
+public class ParallelUbmGmmTest {
+	private static final int FD = 4;
+	private static final int ND = 16;
+
+	static Mixture randomMixture(long seed) {
+		Random rnd = new Random(seed);
+		Mixture m = new Mixture(FD, ND, true);
+		for (Density d : m.components) {
+			double [] mue = new double [FD];
+			double [] cov = new double [FD];
+			for (int i = 0; i < FD; ++i) {
+				mue[i] = rnd.nextGaussian();
+				cov[i] = .5 + rnd.nextDouble();
+			}
+			d.fill(1. / ND, mue, cov);
+		}
+		return m;
+	}
+
+	/**
+	 * Model cache that generates the models instead of reading them; it counts
+	 * the loads, and may delay them or fail once for a given model.
+	 */
+	private static class TestCache extends ParallelUbmGmm.ModelCache {
+		HashMap<String, Integer> loads = new HashMap<String, Integer>();
+		long delay = 0;
+		String failOnce = null;
+
+		TestCache(CompiledMixture ubm, long capacity) {
+			super(ubm, null, capacity);
+		}
+
+		CompiledMixture load(ParallelUbmGmm.Job job) throws IOException {
+			synchronized (loads) {
+				Integer n = loads.get(job.modelFile);
+				loads.put(job.modelFile, n == null ? 1 : n + 1);
+				if (job.modelFile.equals(failOnce)) {
+					failOnce = null;
+					throw new IOException("cannot load " + job.modelFile);
+				}
+			}
+
+			if (delay > 0) {
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+					throw new IOException(e.toString());
+				}
+			}
+
+			return new CompiledMixture(randomMixture(job.modelFile.hashCode()));
+		}
+
+		int loads(String model) {
+			synchronized (loads) {
+				Integer n = loads.get(model);
+				return n == null ? 0 : n;
+			}
+		}
+	}
+
+	private static ParallelUbmGmm.Job job(String model) {
+		return new ParallelUbmGmm.Job("feat", model, null, null);
+	}
+
+	@Test
+	public void modelCacheEvictionTest() throws IOException {
+		CompiledMixture ubm = new CompiledMixture(randomMixture(0));
+
+		// room for two models
+		TestCache mc = new TestCache(ubm, 2 * ubm.getParameterBytes());
+
+		CompiledMixture a = mc.get(job("a"));
+		mc.get(job("b"));
+		Assertions.assertSame(a, mc.get(job("a")));
+
+		// c evicts the least recently used model b, not a
+		mc.get(job("c"));
+		Assertions.assertEquals(1, mc.evictions);
+		Assertions.assertEquals(2, mc.cache.size());
+		Assertions.assertTrue(mc.cache.containsKey("a"));
+		Assertions.assertTrue(mc.cache.containsKey("c"));
+		Assertions.assertEquals(2 * ubm.getParameterBytes(), mc.size);
+
+		Assertions.assertSame(a, mc.get(job("a")));
+		Assertions.assertEquals(1, mc.loads("a"));
+
+		// b is loaded again and evicts c
+		mc.get(job("b"));
+		Assertions.assertEquals(2, mc.loads("b"));
+		Assertions.assertEquals(1, mc.loads("c"));
+		Assertions.assertEquals(2, mc.evictions);
+		Assertions.assertFalse(mc.cache.containsKey("c"));
+
+		Assertions.assertEquals(2, mc.hits);
+		Assertions.assertEquals(4, mc.misses);
+	}
+
+	@Test
+	public void modelCacheConcurrentTest() throws InterruptedException {
+		CompiledMixture ubm = new CompiledMixture(randomMixture(0));
+		final TestCache mc = new TestCache(ubm, 2 * ubm.getParameterBytes());
+		mc.delay = 200;
+
+		final int n = 8;
+		final CompiledMixture [] models = new CompiledMixture [n];
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(n);
+		final List<Exception> errors = new ArrayList<Exception>();
+
+		for (int i = 0; i < n; ++i) {
+			final int ind = i;
+			new Thread(new Runnable() {
+				public void run() {
+					try {
+						start.await();
+						models[ind] = mc.get(job("a"));
+					} catch (Exception e) {
+						synchronized (errors) {
+							errors.add(e);
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+
+		start.countDown();
+		done.await();
+
+		Assertions.assertTrue(errors.isEmpty(), errors.toString());
+		Assertions.assertEquals(1, mc.loads("a"));
+		for (int i = 1; i < n; ++i)
+			Assertions.assertSame(models[0], models[i]);
+	}
+
+	@Test
+	public void modelCacheFailureTest() throws IOException {
+		CompiledMixture ubm = new CompiledMixture(randomMixture(0));
+		TestCache mc = new TestCache(ubm, 2 * ubm.getParameterBytes());
+		mc.failOnce = "a";
+
+		try {
+			mc.get(job("a"));
+			Assertions.fail("the failed load must be reported");
+		} catch (IOException e) {
+			// expected
+		}
+		Assertions.assertFalse(mc.cache.containsKey("a"));
+		Assertions.assertEquals(0, mc.size);
+
+		// the retry loads the model again
+		CompiledMixture a = mc.get(job("a"));
+		Assertions.assertNotNull(a);
+		Assertions.assertEquals(2, mc.loads("a"));
+		Assertions.assertSame(a, mc.get(job("a")));
+		Assertions.assertEquals(2, mc.loads("a"));
+	}
+
+	/**
+	 * Score all jobs with a single worker, either trial by trial or file by
+	 * file, and return the scores in the order of the jobs.
+	 */
+	private static double [] score(CompiledMixture ubm, List<ParallelUbmGmm.Job> jobs, int fastScoring, GaussianSelection gs, boolean perFile) {
+		CountDownLatch latch = new CountDownLatch(1);
+		ParallelUbmGmm.Distributor d = new ParallelUbmGmm.Distributor(jobs, perFile ? ParallelUbmGmm.Job.BY_FEATURE_FILE : null);
+		ParallelUbmGmm.Worker w = new ParallelUbmGmm.Worker(ubm, d, fastScoring, latch, null, 0);
+		if (gs != null)
+			w.setGaussianSelection(gs, 2);
+		w.setPerFile(perFile);
+
+		for (ParallelUbmGmm.Job j : jobs)
+			j.score = Double.NaN;
+
+		w.run();
+
+		double [] scores = new double [jobs.size()];
+		for (int i = 0; i < scores.length; ++i)
+			scores[i] = jobs.get(i).score;
+		return scores;
+	}
+
+	@Test
+	public void perFileScoringTest() throws Exception {
+		File dir = Files.createTempDirectory("jstk").toFile();
+		try {
+			Random rnd = new Random(1);
+			Mixture ubm = randomMixture(2);
+
+			// speaker models: shifted UBM means
+			String [] models = { "s1", "s2", "s3" };
+			for (int k = 0; k < models.length; ++k) {
+				Mixture spk = new Mixture(ubm);
+				for (Density d : spk.components)
+					for (int i = 0; i < FD; ++i)
+						d.mue[i] += .3 * rnd.nextGaussian();
+				spk.writeToFile(new File(dir, models[k]));
+			}
+
+			// feature files of different lengths, incl. more than one batch block
+			String [] files = { "f1", "f2", "f3", "f4" };
+			int [] lengths = { 1, 17, Mixture.BATCH_BLOCK + 5, 3 * Mixture.BATCH_BLOCK };
+			for (int k = 0; k < files.length; ++k) {
+				FrameOutputStream fos = new FrameOutputStream(FD, new File(dir, files[k]));
+				for (int t = 0; t < lengths[k]; ++t) {
+					double [] x = new double [FD];
+					for (int i = 0; i < FD; ++i)
+						x[i] = 1.5 * rnd.nextGaussian();
+					fos.write(x);
+				}
+				fos.close();
+			}
+
+			// trials in mixed order, not every model for every file
+			List<ParallelUbmGmm.Job> jobs = new ArrayList<ParallelUbmGmm.Job>();
+			for (int i = 0; i < 10; ++i)
+				jobs.add(new ParallelUbmGmm.Job(files[(3 * i) % files.length], models[i % models.length], dir.getPath(), dir.getPath()));
+
+			CompiledMixture cubm = new CompiledMixture(ubm);
+			GaussianSelection gs = GaussianSelection.build(ubm, 4, 2000, 3, 3);
+
+			// -f 0, -f 5 and -f 5 with Gaussian selection
+			int [] fast = { 0, 5, 5 };
+			GaussianSelection [] sel = { null, null, gs };
+			for (int c = 0; c < fast.length; ++c) {
+				double [] ref = score(cubm, jobs, fast[c], sel[c], false);
+				double [] grp = score(cubm, jobs, fast[c], sel[c], true);
+				for (int i = 0; i < ref.length; ++i) {
+					Assertions.assertFalse(Double.isNaN(ref[i]));
+					Assertions.assertEquals(ref[i], grp[i], 1e-12, "configuration " + c + ", trial " + jobs.get(i));
+				}
+			}
+		} finally {
+			for (File f : dir.listFiles())
+				f.delete();
+			dir.delete();
+		}
+	}
+}
@@ -0,0 +1,172 @@
+/*
+	Copyright (c) 2009-2011
+		Speech Group at Informatik 5, Univ. Erlangen-Nuremberg, GERMANY
+		Korbinian Riedhammer
+		Tobias Bocklet
+
+	This file is part of the Java Speech Toolkit (JSTK).
+
+	The JSTK is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	The JSTK is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with the JSTK. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.github.sikoried.jstk.arch;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.github.sikoried.jstk.io.IOUtil;
+import com.github.sikoried.jstk.stat.Density;
+import com.github.sikoried.jstk.stat.Mixture;
+import com.github.sikoried.jstk.stat.hmm.Hmm;
+import com.github.sikoried.jstk.stat.hmm.SCState;
+import com.github.sikoried.jstk.util.TreeReduction;
+
+public class CodebookTest {
+	private static final int FD = 4;
+	private static final int ND = 16;
+	private static final int MODELS = 4;
+	private static final int REPLICAS = 3;
+
+	/**
+	 * Write a codebook of semi-continuous HMMs sharing a random mixture
+	 */
+	private static void writeCodebook(File file, long seed) throws IOException {
+		Random rnd = new Random(seed);
+		Mixture mix = new Mixture(FD, ND, true);
+		for (Density d : mix.components) {
+			double [] mue = new double [FD];
+			double [] cov = new double [FD];
+			for (int i = 0; i < FD; ++i) {
+				mue[i] = rnd.nextGaussian();
+				cov[i] = .5 + rnd.nextDouble();
+			}
+			d.fill(1. / ND, mue, cov);
+		}
+
+		OutputStream os = new FileOutputStream(file);
+		IOUtil.writeInt(os, 1, ByteOrder.LITTLE_ENDIAN);
+		mix.write(os);
+		IOUtil.writeInt(os, MODELS, ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < MODELS; ++i)
+			new Hmm(i, (short) 3, new SCState(mix)).write(os);
+		os.close();
+	}
+
+	private static Codebook load(File file) throws IOException {
+		Codebook cb = new Codebook(file);
+		cb.init();
+		return cb;
+	}
+
+	/**
+	 * All numbers of the codebook dump; the remaining tokens must match
+	 */
+	private static List<Double> numbers(Codebook cb, List<String> tokens) throws IOException {
+		StringWriter sw = new StringWriter();
+		BufferedWriter bw = new BufferedWriter(sw);
+		cb.dump(bw);
+		bw.flush();
+
+		List<Double> numbers = new ArrayList<Double>();
+		for (String t : sw.toString().split("[\\s,\\[\\]]+")) {
+			try {
+				numbers.add(Double.parseDouble(t));
+			} catch (NumberFormatException e) {
+				tokens.add(t);
+			}
+		}
+		return numbers;
+	}
+
+	private static void assertCodebooks(Codebook expected, Codebook actual, double tol) throws IOException {
+		List<String> te = new ArrayList<String>(), ta = new ArrayList<String>();
+		List<Double> ne = numbers(expected, te), na = numbers(actual, ta);
+		Assertions.assertEquals(te, ta);
+		Assertions.assertEquals(ne.size(), na.size());
+		for (int i = 0; i < ne.size(); ++i)
+			Assertions.assertEquals(ne.get(i), na.get(i), tol);
+	}
+
+	@Test
+	public void consumeTreeTest() throws Exception {
+		File file = File.createTempFile("jstk", ".cb");
+		ExecutorService pool = Executors.newFixedThreadPool(2);
+		try {
+			writeCodebook(file, 1);
+
+			Codebook single = load(file);
+			Codebook [] tree = new Codebook [REPLICAS];
+			Codebook [] sequential = new Codebook [REPLICAS];
+			for (int k = 0; k < REPLICAS; ++k) {
+				tree[k] = load(file);
+				sequential[k] = load(file);
+			}
+
+			// Viterbi statistics of 40 sequences, distributed over the replicas
+			Random rnd = new Random(2);
+			int [] q = new int [60];
+			for (int t = 0; t < q.length; ++t)
+				q[t] = t / 20;
+			for (int s = 0; s < 40; ++s) {
+				List<double []> obs = new ArrayList<double []>();
+				for (int t = 0; t < q.length; ++t) {
+					double [] x = new double [FD];
+					for (int i = 0; i < FD; ++i)
+						x[i] = .5 * q[t] + rnd.nextGaussian();
+					obs.add(x);
+				}
+
+				single.getModel(s % MODELS).incrementVT(obs, q);
+				tree[s % REPLICAS].getModel(s % MODELS).incrementVT(obs, q);
+				sequential[s % REPLICAS].getModel(s % MODELS).incrementVT(obs, q);
+			}
+
+			TreeReduction.reduce(tree, new TreeReduction.Merge<Codebook>() {
+				public void merge(Codebook target, Codebook source) {
+					target.consume(source);
+				}
+			}, pool);
+			for (int k = 1; k < REPLICAS; ++k)
+				sequential[0].consume(sequential[k]);
+
+			single.reestimate();
+			tree[0].reestimate();
+			sequential[0].reestimate();
+
+			assertCodebooks(single, tree[0], 3e-14);
+			assertCodebooks(single, sequential[0], 3e-14);
+			assertCodebooks(sequential[0], tree[0], 3e-14);
+
+			// the estimate has changed
+			List<String> tokens = new ArrayList<String>();
+			List<Double> initial = numbers(load(file), tokens), estimate = numbers(single, tokens);
+			Assertions.assertNotEquals(initial, estimate);
+		} finally {
+			pool.shutdownNow();
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,302 @@
+/*
+	Copyright (c) 2009-2011
+		Speech Group at Informatik 5, Univ. Erlangen-Nuremberg, GERMANY
+		Korbinian Riedhammer
+		Tobias Bocklet
+
+	This file is part of the Java Speech Toolkit (JSTK).
+
+	The JSTK is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	The JSTK is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with the JSTK. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.github.sikoried.jstk.decoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.github.sikoried.jstk.arch.Token;
+import com.github.sikoried.jstk.arch.TokenHierarchy;
+import com.github.sikoried.jstk.arch.TreeNode;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class ViterbiBeamSearchTest {
+	private static final int FD = 13;
+	private static final int FRAMES = 120;
+	private static final int BEAM = 2000;
+
+	private static TreeNode network(long seed) {
+		return DecoderBenchmark.synthesizeNetwork(20, 12, FD, new Random(seed));
+	}
+
+	private static List<double []> observations(long seed) {
+		return observations(seed, FRAMES);
+	}
+
+	private static List<double []> observations(long seed, int frames) {
+		return DecoderBenchmark.synthesizeObservations(frames, FD, new Random(seed));
+	}
+
+	/**
+	 * Decode the observations, return the score and compact string of the
+	 * best hypothesis.
+	 */
+	private static String decode(ViterbiBeamSearch dec, List<double []> obs) {
+		return decode(dec, BEAM, obs);
+	}
+
+	private static String decode(ViterbiBeamSearch dec, int bs, List<double []> obs) {
+		dec.initialize(bs, Double.MAX_VALUE, obs.get(0));
+		for (int i = 1; i < obs.size(); ++i)
+			dec.step(obs.get(i));
+		dec.conclude();
+
+		ViterbiBeamSearch.Hypothesis h = dec.getBestHypothesis();
+		return h.vs + " " + h.toCompactString();
+	}
+
+	private static List<String> words(ViterbiBeamSearch.Hypothesis h) {
+		List<String> words = new ArrayList<String>();
+		for (ViterbiBeamSearch.Hypothesis w : h.extractWords())
+			words.add(w.node.word.word);
+		return words;
+	}
+
+	/**
+	 * The slot lists and the trace are reused across utterances; a long
+	 * utterance runs through several trace compactions.
+	 */
+	@Test
+	public void reuseTest() {
+		TreeNode root = network(12);
+		List<double []> a = observations(13, 1000);
+		List<double []> b = observations(14);
+
+		ViterbiBeamSearch dec = new ViterbiBeamSearch(root, 2., .5);
+		String first = decode(dec, a);
+		String second = decode(dec, b);
+		Assertions.assertEquals(first, decode(dec, a));
+
+		Assertions.assertEquals(first, decode(new ViterbiBeamSearch(root, 2., .5), a));
+		Assertions.assertEquals(second, decode(new ViterbiBeamSearch(root, 2., .5), b));
+	}
+
+	@Test
+	public void pruningTest() {
+		TreeNode root = network(2);
+		List<double []> obs = observations(3);
+
+		// a beam narrow enough to prune
+		int bs = 300;
+		ViterbiBeamSearch dec = new ViterbiBeamSearch(root, 2., .5);
+		dec.setPruning(ViterbiBeamSearch.Pruning.SORT);
+		String sort = decode(dec, bs, obs);
+		dec.setPruning(ViterbiBeamSearch.Pruning.SELECT);
+		Assertions.assertEquals(sort, decode(dec, bs, obs));
+	}
+
+	@Test
+	public void recombinationTest() {
+		Random rnd = new Random(1);
+		ViterbiBeamSearch.SlotList list = new ViterbiBeamSearch.SlotList(16);
+		ViterbiBeamSearch.SlotList ref = new ViterbiBeamSearch.SlotList(16);
+		for (int i = 0; i < 3000; ++i) {
+			int key = rnd.nextInt(1000);
+			int n = key / 3;
+			short s = (short) (key % 3);
+			double v = rnd.nextDouble();
+			list.vadd(n, s, v, v, i);
+
+			// reference: linear search
+			int j = 0;
+			while (j < ref.size && !(ref.node[j] == n && ref.state[j] == s))
+				j++;
+			if (j == ref.size)
+				ref.add(n, s, v, v, i);
+			else if (ref.vs[j] < v)
+				ref.set(j, n, s, v, v, i);
+		}
+
+		Assertions.assertEquals(ref.size, list.size);
+		for (int i = 0; i < ref.size; ++i) {
+			Assertions.assertEquals(ref.node[i], list.node[i]);
+			Assertions.assertEquals(ref.state[i], list.state[i]);
+			Assertions.assertEquals(ref.vs[i], list.vs[i]);
+		}
+	}
+
+	@Test
+	public void emissionCacheTest() {
+		TreeNode root = network(15);
+		List<double []> obs = observations(16);
+
+		// 20 tokens with 3 states each: at most 60 evaluations per frame
+		ViterbiBeamSearch dec = new ViterbiBeamSearch(root, 2., .5);
+		String first = decode(dec, obs);
+		long evaluations = dec.getEmissionEvaluations();
+		Assertions.assertTrue(evaluations <= 60L * obs.size());
+		Assertions.assertTrue(dec.getEmissionCacheHitRate() > .5);
+
+		// the cache is reset by initialize()
+		Assertions.assertEquals(first, decode(dec, obs));
+		Assertions.assertEquals(evaluations, dec.getEmissionEvaluations());
+	}
+
+	@Test
+	public void parallelScoringTest() {
+		TreeNode root = network(4);
+		List<double []> obs = observations(5);
+
+		ViterbiBeamSearch dec = new ViterbiBeamSearch(root, 2., .5);
+		String serial = decode(dec, obs);
+		try {
+			for (int nt : new int [] { 2, 3 }) {
+				dec.setNumThreads(nt);
+				Assertions.assertEquals(serial, decode(dec, obs));
+			}
+		} finally {
+			dec.shutdown();
+		}
+	}
+
+	@Test
+	public void onlineTest() {
+		TreeNode root = network(6);
+		List<double []> obs = observations(7, 600);
+
+		// a narrow beam, so that the hypotheses agree on a stable prefix
+		int bs = 300;
+		ViterbiBeamSearch dec = new ViterbiBeamSearch(root, 2., .5);
+		decode(dec, bs, obs);
+		List<String> offline = words(dec.getBestHypothesis());
+
+		dec = new ViterbiBeamSearch(root, 2., .5);
+		List<String> online = new ArrayList<String>();
+		dec.initialize(bs, Double.MAX_VALUE, obs.get(0));
+		for (int i = 1; i < obs.size(); ++i) {
+			dec.step(obs.get(i));
+			if ((i + 1) % 20 == 0) {
+				ViterbiBeamSearch.Hypothesis h = dec.commit();
+				if (h != null)
+					online.addAll(words(h));
+			}
+		}
+		int committed = online.size();
+		dec.conclude();
+		online.addAll(words(dec.getBestHypothesis()));
+
+		Assertions.assertTrue(committed > 0);
+		Assertions.assertEquals(offline, online);
+	}
+
+	@Test
+	public void networkTest() throws IOException {
+		TreeNode root = network(10);
+		List<double []> obs = observations(11);
+
+		Network net = Network.compile(root);
+		File file = File.createTempFile("jstk", ".net");
+		try {
+			net.write(file);
+
+			TokenHierarchy th = new TokenHierarchy();
+			for (Token t : net.tokens)
+				th.addToken(t);
+			Network loaded = Network.read(file, th);
+
+			Assertions.assertEquals(net.getNumberOfNodes(), loaded.getNumberOfNodes());
+			Assertions.assertEquals(net.getNumberOfStates(), loaded.getNumberOfStates());
+
+			String reference = decode(new ViterbiBeamSearch(root, 2., .5), obs);
+			Assertions.assertEquals(reference, decode(new ViterbiBeamSearch(net, 2., .5), obs));
+			Assertions.assertEquals(reference, decode(new ViterbiBeamSearch(loaded, 2., .5), obs));
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void networkRetrainedTest() throws IOException {
+		TreeNode root = network(12);
+		List<double []> obs = observations(13);
+
+		Network net = Network.compile(root);
+		File file = File.createTempFile("jstk", ".net");
+		try {
+			net.write(file);
+
+			// re-estimate the transitions after the network was written
+			Random rnd = new Random(14);
+			for (Token t : net.tokens) {
+				float [][] a = t.hmm.a;
+				for (int j = 0; j < a.length; ++j) {
+					float sum = 0.f;
+					for (int k = 0; k < a[j].length; ++k)
+						sum += (a[j][k] *= .5f + rnd.nextFloat());
+					for (int k = 0; k < a[j].length; ++k)
+						a[j][k] /= sum;
+				}
+			}
+
+			TokenHierarchy th = new TokenHierarchy();
+			for (Token t : net.tokens)
+				th.addToken(t);
+			Network loaded = Network.read(file, th);
+			Network recompiled = Network.compile(root);
+
+			Assertions.assertFalse(Arrays.equals(net.logA, recompiled.logA));
+			Assertions.assertArrayEquals(recompiled.logA, loaded.logA);
+
+			String reference = decode(new ViterbiBeamSearch(root, 2., .5), obs);
+			Assertions.assertEquals(reference, decode(new ViterbiBeamSearch(loaded, 2., .5), obs));
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void latticeTest() {
+		TreeNode root = network(8);
+		List<double []> obs = observations(9);
+
+		ViterbiBeamSearch dec = new ViterbiBeamSearch(root, 2., .5);
+		String plain = decode(dec, obs);
+
+		dec.setLatticeGeneration(true);
+		Assertions.assertEquals(plain, decode(dec, obs));
+
+		// the lattice holds word ends only: compare to the best hypothesis
+		// that ends in a word, conclude() may keep better partial words
+		ViterbiBeamSearch.Hypothesis best = null;
+		for (ViterbiBeamSearch.Hypothesis h : dec.getBestHypotheses(0)) {
+			if (h.node.isWordNode()) {
+				best = h;
+				break;
+			}
+		}
+		Assertions.assertNotNull(best);
+
+		StringBuffer sb = new StringBuffer();
+		for (String w : words(best))
+			sb.append((sb.length() > 0 ? " " : "") + w);
+
+		List<Lattice.Path> paths = dec.getLattice().getBestPaths(10, true);
+		Assertions.assertFalse(paths.isEmpty());
+		Assertions.assertEquals(sb.toString(), paths.get(0).getWordSequence());
+		Assertions.assertEquals(best.vs, paths.get(0).score, 1e-9);
+	}
+}
@@ -0,0 +1,285 @@
+/*
+	Copyright (c) 2009-2011
+		Speech Group at Informatik 5, Univ. Erlangen-Nuremberg, GERMANY
+		Korbinian Riedhammer
+		Tobias Bocklet
+
+	This file is part of the Java Speech Toolkit (JSTK).
+
+	The JSTK is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	The JSTK is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with the JSTK. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.github.sikoried.jstk.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class ChunkedDataSetTest {
+	private static final int FD = 3;
+	private static final int [] LENGTHS = { 40, 1, 113, 7, 64 };
+
+	/**
+	 * Write feature files of LENGTHS frames, with or without header
+	 */
+	private static List<File> writeData(File dir, boolean header, long seed) throws IOException {
+		Random rnd = new Random(seed);
+		List<File> files = new ArrayList<File>();
+		for (int k = 0; k < LENGTHS.length; ++k) {
+			File file = new File(dir, "f" + k);
+			FrameOutputStream fos = new FrameOutputStream(FD, file, true, header);
+			for (int t = 0; t < LENGTHS[k]; ++t) {
+				double [] x = new double [FD];
+				for (int i = 0; i < FD; ++i)
+					x[i] = rnd.nextGaussian();
+				fos.write(x);
+			}
+			fos.close();
+			files.add(file);
+		}
+		return files;
+	}
+
+	private static void delete(File dir) {
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+
+	/**
+	 * Read all frames of a chunk
+	 */
+	private static List<double []> read(FrameSource source) throws IOException {
+		List<double []> frames = new ArrayList<double []>();
+		double [] x = new double [source.getFrameSize()];
+		while (source.read(x)) {
+			frames.add(x);
+			x = new double [x.length];
+		}
+		return frames;
+	}
+
+	/**
+	 * Read one pass over the data set through getFrameSource(), then rewind
+	 */
+	private static List<double []> pass(ChunkedDataSet data) throws IOException {
+		List<double []> frames = new ArrayList<double []>();
+		ChunkedDataSet.Chunk chunk;
+		while ((chunk = data.nextChunk()) != null)
+			frames.addAll(read(chunk.getFrameSource()));
+		data.rewind();
+		return frames;
+	}
+
+	/**
+	 * Locate a frame in the reference data (the frames are unique)
+	 * @return file index and frame index
+	 */
+	private static int [] locate(List<List<double []>> ref, double [] x) {
+		for (int j = 0; j < ref.size(); ++j)
+			for (int t = 0; t < ref.get(j).size(); ++t)
+				if (Arrays.equals(ref.get(j).get(t), x))
+					return new int [] { j, t };
+		Assertions.fail("unknown frame " + Arrays.toString(x));
+		return null;
+	}
+
+	private static void assertFrames(List<double []> expected, List<double []> actual) {
+		Assertions.assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); ++i)
+			Assertions.assertArrayEquals(expected.get(i), actual.get(i));
+	}
+
+	@Test
+	public void frameCacheTest() throws IOException {
+		File dir = Files.createTempDirectory("jstk").toFile();
+		try {
+			for (boolean header : new boolean [] { true, false }) {
+				List<File> files = writeData(dir, header, 1);
+				int fs = (header ? 0 : FD);
+
+				long total = 0;
+				for (int len : LENGTHS)
+					total += 4L * FD * len;
+
+				ChunkedDataSet data = new ChunkedDataSet(files, fs);
+				List<double []> ref = pass(data);
+				Assertions.assertEquals(total / (4 * FD), ref.size());
+				assertFrames(ref, pass(data));
+				Assertions.assertEquals(0, data.getFrameCacheSize());
+
+				// fully cached: the second pass is served from memory
+				data.setFrameCache(2 * total);
+				assertFrames(ref, pass(data));
+				Assertions.assertEquals(total, data.getFrameCacheSize());
+				assertFrames(ref, pass(data));
+				Assertions.assertEquals(total, data.getFrameCacheSize());
+
+				// partly filled: the limit is respected, the rest is read from disk
+				for (long limit : new long [] { 4L * FD * 50, total / 2, total - 1 }) {
+					data.setFrameCache(limit);
+					assertFrames(ref, pass(data));
+					long size = data.getFrameCacheSize();
+					Assertions.assertTrue(size > 0 && size <= limit, "cache size " + size + " limit " + limit);
+					assertFrames(ref, pass(data));
+					Assertions.assertEquals(size, data.getFrameCacheSize());
+				}
+
+				// off again
+				data.setFrameCache(0);
+				assertFrames(ref, pass(data));
+				Assertions.assertEquals(0, data.getFrameCacheSize());
+
+				for (File f : files)
+					f.delete();
+			}
+		} finally {
+			delete(dir);
+		}
+	}
+
+	@Test
+	public void scheduleTest() throws IOException {
+		File dir = Files.createTempDirectory("jstk").toFile();
+		try {
+			for (boolean header : new boolean [] { true, false }) {
+				List<File> files = writeData(dir, header, 2);
+				int fs = (header ? 0 : FD);
+				ChunkedDataSet data = new ChunkedDataSet(files, fs);
+
+				// reference: the frames of each whole file, in list order
+				List<List<double []>> ref = new ArrayList<List<double []>>();
+				ChunkedDataSet.Chunk chunk;
+				while ((chunk = data.nextChunk()) != null)
+					ref.add(read(chunk.getFrameReader()));
+				Assertions.assertEquals(files.size(), ref.size());
+
+				for (long k : new long [] { 1, 5, 40, 64, 112, 113, 1000 }) {
+					for (long limit : new long [] { 0, Long.MAX_VALUE / 2 }) {
+						data.schedule(true, k);
+						data.setFrameCache(limit);
+
+						boolean [][] seen = new boolean [files.size()][];
+						for (int j = 0; j < seen.length; ++j)
+							seen[j] = new boolean [LENGTHS[j]];
+
+						int chunks = 0;
+						while ((chunk = data.nextChunk()) != null) {
+							List<double []> frames = read(chunk.getFrameSource());
+							Assertions.assertFalse(frames.isEmpty());
+							Assertions.assertTrue(frames.size() <= k);
+
+							// locate the chunk within its file
+							int [] pos = locate(ref, frames.get(0));
+							int file = pos[0], first = pos[1];
+
+							// contiguous frames, none seen before
+							for (int t = 0; t < frames.size(); ++t) {
+								Assertions.assertTrue(first + t < LENGTHS[file]);
+								Assertions.assertArrayEquals(ref.get(file).get(first + t), frames.get(t));
+								Assertions.assertFalse(seen[file][first + t], "overlap in file " + file + " at frame " + (first + t));
+								seen[file][first + t] = true;
+							}
+
+							// only whole files have a FrameInputStream
+							if (frames.size() < LENGTHS[file]) {
+								try {
+									chunk.getFrameReader();
+									Assertions.fail("getFrameReader() must fail for a range chunk");
+								} catch (IOException e) {
+									// expected
+								}
+							} else
+								Assertions.assertNotNull(chunk.getFrameReader());
+
+							chunks++;
+						}
+
+						// no gaps
+						int expected = 0;
+						for (int j = 0; j < seen.length; ++j) {
+							expected += (LENGTHS[j] + k - 1) / k;
+							for (int t = 0; t < seen[j].length; ++t)
+								Assertions.assertTrue(seen[j][t], "gap in file " + j + " at frame " + t);
+						}
+						Assertions.assertEquals(expected, chunks);
+					}
+				}
+
+				for (File f : files)
+					f.delete();
+			}
+		} finally {
+			delete(dir);
+		}
+	}
+
+	@Test
+	public void partitionTest() throws IOException {
+		File dir = Files.createTempDirectory("jstk").toFile();
+		try {
+			List<File> files = writeData(dir, true, 3);
+
+			List<List<double []>> ref = new ArrayList<List<double []>>();
+			for (File f : files)
+				ref.add(read(new FrameInputStream(f)));
+
+			for (long k : new long [] { 0, 10 }) {
+				for (int shards : new int [] { 1, 2, 3, LENGTHS.length, LENGTHS.length + 2 }) {
+					// number of frames of each file seen, and its partition
+					int [] seen = new int [files.size()];
+					int [] owner = new int [files.size()];
+					Arrays.fill(owner, -1);
+					for (int shard = 0; shard < shards; ++shard) {
+						ChunkedDataSet data = new ChunkedDataSet(files, 0);
+						data.schedule(true, k);
+						data.partition(shard, shards);
+
+						ChunkedDataSet.Chunk chunk;
+						while ((chunk = data.nextChunk()) != null) {
+							List<double []> frames = read(chunk.getFrameSource());
+							int file = locate(ref, frames.get(0))[0];
+							Assertions.assertTrue(owner[file] < 0 || owner[file] == shard, "file " + file + " in partitions " + owner[file] + " and " + shard);
+							owner[file] = shard;
+							seen[file] += frames.size();
+						}
+					}
+
+					// every file in exactly one partition, as a whole
+					for (int j = 0; j < seen.length; ++j)
+						Assertions.assertEquals(LENGTHS[j], seen[j], "file " + j + ", " + shards + " partitions");
+				}
+			}
+
+			// the partitions must be valid
+			ChunkedDataSet data = new ChunkedDataSet(files, 0);
+			for (int [] p : new int [][] { { -1, 2 }, { 2, 2 }, { 0, 0 } }) {
+				try {
+					data.partition(p[0], p[1]);
+					Assertions.fail("partition " + p[0] + " of " + p[1] + " must be rejected");
+				} catch (IllegalArgumentException e) {
+					// expected
+				}
+			}
+		} finally {
+			delete(dir);
+		}
+	}
+}
@@ -0,0 +1,130 @@
+/*
+	Copyright (c) 2009-2011
+		Speech Group at Informatik 5, Univ. Erlangen-Nuremberg, GERMANY
+		Korbinian Riedhammer
+		Tobias Bocklet
+
+	This file is part of the Java Speech Toolkit (JSTK).
+
+	The JSTK is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	The JSTK is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with the JSTK. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.github.sikoried.jstk.stat;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class GaussianSelectionTest {
+	/**
+	 * A selection over the given mixture whose codebook has the same number
+	 * of codewords as the mixture components; codeword w lists the components
+	 * w and w+1, so that all codewords together cover every component.
+	 */
+	private static GaussianSelection coveringSelection(Mixture m, long seed) {
+		Mixture codebook = MixtureTest.randomMixture(true, seed);
+		int [][] shortlists = new int [codebook.nd][];
+		for (int w = 0; w < shortlists.length; ++w)
+			shortlists[w] = new int [] { w % m.nd, (w + 1) % m.nd };
+		return new GaussianSelection(codebook, shortlists, m.nd);
+	}
+
+	@Test
+	public void fullShortlistTest() {
+		Random rnd = new Random(1);
+		for (boolean diagonal : new boolean [] { true, false }) {
+			Mixture m = MixtureTest.randomMixture(diagonal, 2);
+			CompiledMixture cm = new CompiledMixture(m);
+			GaussianSelection gs = coveringSelection(m, 3);
+			GaussianSelection.Scratch s = gs.newScratch(cm);
+
+			double [] lh = new double [m.nd];
+			double [] scratch = cm.newScratch();
+			int [] ndx = new int [m.nd];
+			double [] scr = new double [m.nd];
+
+			for (int t = 0; t < 20; ++t) {
+				double [] x = MixtureTest.randomVector(rnd, 1.5);
+				double ll = cm.logEvaluate(x, lh, scratch);
+
+				// all components are candidates, with their exact scores
+				int n = gs.select(x, gs.getNumberOfCodewords(), cm, s);
+				Assertions.assertEquals(m.nd, n);
+
+				int [] cand = Arrays.copyOf(s.candidates, n);
+				Arrays.sort(cand);
+				for (int i = 0; i < n; ++i)
+					Assertions.assertEquals(i, cand[i]);
+				for (int i = 0; i < n; ++i)
+					Assertions.assertEquals(lh[s.candidates[i]], s.lh[i]);
+
+				Assertions.assertEquals(ll, gs.logEvaluate(x, gs.getNumberOfCodewords(), cm, s), 1e-12);
+
+				// exact top-C of the full evaluation
+				Integer [] order = new Integer [m.nd];
+				for (int i = 0; i < order.length; ++i)
+					order[i] = i;
+				Arrays.sort(order, new Comparator<Integer>() {
+					public int compare(Integer a, Integer b) {
+						return Double.compare(lh[b], lh[a]);
+					}
+				});
+
+				for (int c = 1; c <= m.nd; ++c) {
+					int k = gs.top(x, gs.getNumberOfCodewords(), c, cm, s, ndx, scr);
+					Assertions.assertEquals(c, k);
+					for (int i = 0; i < c; ++i) {
+						Assertions.assertEquals((int) order[i], ndx[i]);
+						Assertions.assertEquals(lh[order[i]], scr[i]);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void invalidSizeTest() {
+		Mixture m = MixtureTest.randomMixture(true, 4);
+		CompiledMixture cm = new CompiledMixture(m);
+		GaussianSelection gs = coveringSelection(m, 5);
+		GaussianSelection.Scratch s = gs.newScratch(cm);
+
+		double [] x = MixtureTest.randomVector(new Random(6), 1.);
+		int [] ndx = new int [m.nd];
+		double [] scr = new double [m.nd];
+
+		try {
+			gs.select(x, 0, cm, s);
+			Assertions.fail("shortlist 0 must be rejected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+
+		try {
+			gs.top(x, 0, 1, cm, s, ndx, scr);
+			Assertions.fail("shortlist 0 must be rejected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+
+		try {
+			gs.top(x, 1, 0, cm, s, ndx, scr);
+			Assertions.fail("top-0 must be rejected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,487 @@
+/*
+	Copyright (c) 2009-2011
+		Speech Group at Informatik 5, Univ. Erlangen-Nuremberg, GERMANY
+		Korbinian Riedhammer
+		Tobias Bocklet
+
+	This file is part of the Java Speech Toolkit (JSTK).
+
+	The JSTK is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	The JSTK is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with the JSTK. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.github.sikoried.jstk.stat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.github.sikoried.jstk.util.Arithmetics;
+
+public class MixtureTest {
+	private static final int FD = 5;
+	private static final int ND = 8;
+
+	private static final boolean [] COVARIANCES = { true, false };
+
+	/**
+	 * Generate a random mixture; full covariances are diagonally dominant
+	 */
+	static Mixture randomMixture(boolean diagonal, long seed) {
+		Random rnd = new Random(seed);
+		Mixture m = new Mixture(FD, ND, diagonal);
+		for (Density d : m.components) {
+			double [] mue = new double [FD];
+			double [] cov = new double [diagonal ? FD : FD * (FD + 1) / 2];
+			for (int i = 0, k = 0; i < FD; ++i) {
+				mue[i] = rnd.nextGaussian();
+				if (diagonal)
+					cov[i] = .5 + rnd.nextDouble();
+				else {
+					for (int j = 0; j < i; ++j)
+						cov[k++] = .2 * (rnd.nextDouble() - .5);
+					cov[k++] = 1. + rnd.nextDouble();
+				}
+			}
+			d.fill(1. / ND, mue, cov);
+		}
+		return m;
+	}
+
+	static double [] randomVector(Random rnd, double scale) {
+		double [] x = new double [FD];
+		for (int i = 0; i < FD; ++i)
+			x[i] = scale * rnd.nextGaussian();
+		return x;
+	}
+
+	/**
+	 * A mixture scoring implementation under test
+	 */
+	private static abstract class Scorer {
+		/**
+		 * Store the component log-likelihoods (including the log priors) in lh,
+		 * return the mixture log-likelihood
+		 */
+		abstract double score(double [] x, double [] lh);
+	}
+
+	private static Scorer compiled(final CompiledMixture cm) {
+		return new Scorer() {
+			double [] s = cm.newScratch();
+			double score(double [] x, double [] lh) {
+				double ll = cm.logEvaluate(x, lh, s);
+				for (int i = 0; i < ND; ++i)
+					Assertions.assertEquals(lh[i], cm.logEvaluate(i, x, s));
+				return ll;
+			}
+		};
+	}
+
+	/**
+	 * Compare the mixture and component log-likelihoods of an implementation
+	 * for the frame x to the per-component reference Density.logEvaluate.
+	 */
+	private static void assertScores(Mixture m, double [] x, double ll, double [] lh, double tol) {
+		double [] ref = new double [ND];
+		for (int i = 0; i < ND; ++i) {
+			ref[i] = m.components[i].logEvaluate(x);
+			Assertions.assertEquals(ref[i], lh[i], tol);
+		}
+		Assertions.assertEquals(Arithmetics.logsumexp(ref, ND), ll, tol);
+	}
+
+	/**
+	 * Compare the scorer to the reference on 100 random frames.
+	 */
+	private static void assertScores(Mixture m, Scorer s, Random rnd, double tol) {
+		double [] lh = new double [ND];
+		for (int t = 0; t < 100; ++t) {
+			double [] x = randomVector(rnd, 2.);
+			assertScores(m, x, s.score(x, lh), lh, tol);
+		}
+	}
+
+	@Test
+	public void logEvaluateTest() {
+		Random rnd = new Random(1);
+		for (boolean diagonal : COVARIANCES) {
+			final Mixture m = randomMixture(diagonal, 2);
+			assertScores(m, new Scorer() {
+				double score(double [] x, double [] lh) {
+					double ll = m.logEvaluate(x);
+					for (int i = 0; i < ND; ++i)
+						lh[i] = m.components[i].lh;
+
+					// same as the linear domain as long as nothing underflows
+					Assertions.assertEquals(Math.log(m.evaluate(x)), ll, 1e-10);
+					return ll;
+				}
+			}, rnd, 1e-10);
+		}
+	}
+
+	@Test
+	public void logEvaluateUnderflowTest() {
+		Mixture m = randomMixture(true, 3);
+		double [] x = new double [FD];
+		Arrays.fill(x, 1e3);
+
+		// the linear domain is clamped to MIN_PROB, the log domain is not
+		Assertions.assertEquals(Math.log(ND * Density.MIN_PROB / ND), Math.log(m.evaluate(x)), 1e-6);
+		double l = m.logEvaluate(x);
+		Assertions.assertTrue(l < Math.log(Density.MIN_PROB));
+		Assertions.assertFalse(Double.isInfinite(l) || Double.isNaN(l));
+	}
+
+	@Test
+	public void logEvaluate2Test() {
+		Random rnd = new Random(4);
+		Mixture m = randomMixture(true, 5);
+		double [] x = randomVector(rnd, 1.);
+		double [] y = randomVector(rnd, 1.);
+
+		double lx = m.logEvaluate2(x);
+		Assertions.assertEquals(lx, m.logEvaluate2(x));
+
+		// evaluating another vector must not leave a stale cache behind
+		m.evaluate(y);
+		Assertions.assertEquals(lx, m.logEvaluate2(x), 1e-12);
+		m.logEvaluate(y);
+		Assertions.assertEquals(Math.log(m.evaluate2(y)), m.logEvaluate2(y), 1e-10);
+	}
+
+	@Test
+	public void evaluateBatchTest() {
+		Random rnd = new Random(6);
+		int b = Mixture.BATCH_BLOCK;
+		for (boolean diagonal : COVARIANCES) {
+			Mixture m = randomMixture(diagonal, 7);
+			double [][] x = new double [3 * b + 5][];
+			for (int t = 0; t < x.length; ++t)
+				x[t] = randomVector(rnd, 2.);
+
+			// partial, exact and multiple blocks at an offset; the output
+			// matrix of the largest call is reused for the smaller ones
+			double [][] lh = m.evaluateBatch(x, 2, 3 * b + 1, null);
+			double [] p = new double [ND];
+			for (int n : new int [] { 3 * b + 1, 1, b - 1, b, b + 13 }) {
+				Assertions.assertSame(lh, m.evaluateBatch(x, 2, n, lh));
+				for (int t = 0; t < n; ++t)
+					assertScores(m, x[t + 2], m.posteriorsFromLog(lh[t], p), lh[t], 1e-9);
+			}
+		}
+	}
+
+	@Test
+	public void compiledMixtureTest() throws InterruptedException {
+		Random rnd = new Random(8);
+		for (boolean diagonal : COVARIANCES) {
+			Mixture m = randomMixture(diagonal, 9);
+			final CompiledMixture cm = new CompiledMixture(m);
+			assertScores(m, compiled(cm), rnd, 1e-9);
+
+			final double [][] x = new double [100][];
+			final double [] ref = new double [x.length];
+			for (int t = 0; t < x.length; ++t) {
+				x[t] = randomVector(rnd, 1.);
+				ref[t] = m.logEvaluate(x[t]);
+			}
+
+			// a single instance shared by several threads
+			final double [][] res = new double [4][x.length];
+			Thread [] threads = new Thread [res.length];
+			for (int j = 0; j < threads.length; ++j) {
+				final double [] r = res[j];
+				threads[j] = new Thread(new Runnable() {
+					public void run() {
+						double [] s = cm.newScratch();
+						double [] l = new double [ND];
+						for (int it = 0; it < 50; ++it)
+							for (int t = 0; t < x.length; ++t)
+								r[t] = cm.logEvaluate(x[t], l, s);
+					}
+				});
+				threads[j].start();
+			}
+			for (Thread th : threads)
+				th.join();
+
+			for (double [] r : res)
+				for (int t = 0; t < x.length; ++t)
+					Assertions.assertEquals(ref[t], r[t], 1e-9);
+		}
+	}
+
+	@Test
+	public void floatMixtureTest() {
+		Random rnd = new Random(9);
+		Mixture m = randomMixture(true, 10);
+
+		for (boolean dacc : new boolean [] { false, true }) {
+			final FloatMixture fm = new FloatMixture(m, dacc);
+			final FloatMixture.Scratch s = fm.newScratch();
+
+			// double and single precision input
+			assertScores(m, new Scorer() {
+				double score(double [] x, double [] lh) {
+					return fm.logEvaluate(x, lh, s);
+				}
+			}, rnd, 1e-4);
+			assertScores(m, new Scorer() {
+				double score(double [] x, double [] lh) {
+					float [] xf = new float [FD];
+					for (int i = 0; i < FD; ++i)
+						xf[i] = (float) x[i];
+					return fm.logEvaluate(xf, lh, s);
+				}
+			}, rnd, 1e-4);
+		}
+
+		try {
+			new FloatMixture(randomMixture(false, 10), false);
+			Assertions.fail("full covariances must be rejected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void densityFullTest() {
+		Random rnd = new Random(11);
+		Mixture m = randomMixture(false, 12);
+
+		double [][] x = new double [10][];
+		for (int t = 0; t < x.length; ++t)
+			x[t] = randomVector(rnd, 2.);
+
+		double [] out = new double [x.length];
+		for (Density d : m.components) {
+			// reference: explicit inverse of the covariance matrix
+			double [][] help = new double [FD][FD];
+			for (int i = 0, k = 0; i < FD; ++i)
+				for (int j = 0; j <= i; ++j, ++k)
+					help[i][j] = help[j][i] = d.cov[k];
+			Jama.Matrix cov = new Jama.Matrix(help);
+			Jama.Matrix icov = cov.inverse();
+
+			((DensityFull) d).logEvaluate(x, 0, x.length, out);
+			for (int t = 0; t < x.length; ++t) {
+				double [] z = new double [FD];
+				for (int i = 0; i < FD; ++i)
+					z[i] = x[t][i] - d.mue[i];
+				double mah = 0.;
+				for (int i = 0; i < FD; ++i)
+					for (int j = 0; j < FD; ++j)
+						mah += z[i] * icov.get(i, j) * z[j];
+				double ref = Math.log(d.apr) - .5 * (Math.log(cov.det()) + FD * Math.log(2. * Math.PI) + mah);
+
+				Assertions.assertEquals(ref, d.logEvaluate(x[t]), 1e-9);
+				Assertions.assertEquals(ref, out[t], 1e-9);
+			}
+		}
+	}
+
+	@Test
+	public void densityFullFallbackTest() {
+		Random rnd = new Random(16);
+
+		// not positive definite: the off-diagonal entries dominate
+		double [] mue = randomVector(rnd, 1.);
+		double [] cov = new double [FD * (FD + 1) / 2];
+		for (int i = 0, k = 0; i < FD; ++i) {
+			for (int j = 0; j < i; ++j)
+				cov[k++] = 2.;
+			cov[k++] = 1.;
+		}
+		DensityFull d = new DensityFull(.5, mue, cov);
+
+		// the update enforces a diagonal covariance
+		for (int i = 0, k = 0; i < FD; ++i)
+			for (int j = 0; j <= i; ++j, ++k)
+				Assertions.assertEquals(i == j ? 1. : 0., d.cov[k]);
+
+		DensityDiagonal ref = new DensityDiagonal(d);
+		double [][] x = new double [10][];
+		for (int t = 0; t < x.length; ++t)
+			x[t] = randomVector(rnd, 2.);
+		double [] out = new double [x.length];
+		d.logEvaluate(x, 0, x.length, out);
+		for (int t = 0; t < x.length; ++t) {
+			double l = ref.logEvaluate(x[t]);
+			Assertions.assertFalse(Double.isNaN(l));
+			Assertions.assertEquals(l, d.logEvaluate(x[t]), 1e-9);
+			Assertions.assertEquals(l, out[t], 1e-9);
+		}
+	}
+
+	@Test
+	public void mixtureArchiveTest() throws IOException {
+		Mixture [] models = { randomMixture(true, 11), randomMixture(false, 12) };
+		File f = File.createTempFile("jstk", ".jmar");
+		f.deleteOnExit();
+		MixtureArchive.write(f, Arrays.asList("diag", "full"), Arrays.asList(models));
+		Assertions.assertTrue(MixtureArchive.isArchive(f));
+
+		Random rnd = new Random(13);
+		MixtureArchive a = new MixtureArchive(f);
+		try {
+			Assertions.assertEquals(2, a.size());
+			Assertions.assertEquals(1, a.indexOf("full"));
+			Assertions.assertEquals(-1, a.indexOf("none"));
+
+			for (int j = 0; j < models.length; ++j) {
+				Mixture m = a.getMixture(a.getName(j));
+				assertScores(models[j], compiled(a.getCompiled(j)), rnd, 1e-9);
+				for (int t = 0; t < 20; ++t) {
+					double [] x = randomVector(rnd, 2.);
+					Assertions.assertEquals(models[j].logEvaluate(x), m.logEvaluate(x));
+				}
+			}
+		} finally {
+			a.close();
+		}
+	}
+
+	/**
+	 * Run the sparse accumulation with the given threshold and limit on random
+	 * frames and compare it to the dense accumulation of the expected subset.
+	 */
+	private static void assertSparse(double threshold, int topK) throws ClassNotFoundException {
+		Random rnd = new Random(14);
+		CompiledMixture cm = new CompiledMixture(randomMixture(true, 15));
+		double [] scratch = cm.newScratch();
+		double [] lh = new double [ND];
+		double [] p = new double [ND];
+
+		MleMixtureAccumulator ref = new MleMixtureAccumulator(FD, ND, DensityDiagonal.class);
+		MleMixtureAccumulator sparse = new MleMixtureAccumulator(FD, ND, DensityDiagonal.class);
+
+		long components = 0;
+		double mass = 0.;
+		for (int t = 0; t < 200; ++t) {
+			double [] x = randomVector(rnd, 1.);
+			cm.logEvaluate(x, lh, scratch);
+			cm.posteriors(lh, p);
+
+			// expected: the topK largest posteriors at or above the threshold
+			double [] sorted = p.clone();
+			Arrays.sort(sorted);
+			int m = 0;
+			while (m < ND && sorted[ND - 1 - m] >= threshold && (topK == 0 || m < topK))
+				m++;
+			double frame = 0.;
+			for (int i = 0; i < ND; ++i) {
+				if (m > 0 && p[i] >= sorted[ND - m]) {
+					ref.accs[i].accumulate(p[i], x);
+					frame += p[i];
+				}
+			}
+			components += m;
+			mass += frame;
+
+			Assertions.assertEquals(frame, sparse.accumulate(p, x, threshold, topK), 1e-12);
+		}
+
+		for (int i = 0; i < ND; ++i) {
+			Assertions.assertEquals(ref.accs[i].occ, sparse.accs[i].occ);
+			Assertions.assertArrayEquals(ref.accs[i].mue, sparse.accs[i].mue);
+			Assertions.assertArrayEquals(ref.accs[i].cov, sparse.accs[i].cov);
+		}
+		Assertions.assertEquals(mass, sparse.sparseMass, 1e-9);
+		Assertions.assertEquals(components, sparse.sparseComponents);
+	}
+
+	/**
+	 * The sparse accumulation of a candidate list must match the dense one
+	 * with the posteriors of all other components set to 0.
+	 */
+	private static void assertSparseList(double threshold, int topK) throws ClassNotFoundException {
+		Random rnd = new Random(17);
+		CompiledMixture cm = new CompiledMixture(randomMixture(true, 18));
+		double [] scratch = cm.newScratch();
+		double [] lh = new double [ND];
+		double [] p = new double [ND];
+		double [] g = new double [ND];
+		int [] ndx = new int [ND];
+
+		MleMixtureAccumulator ref = new MleMixtureAccumulator(FD, ND, DensityDiagonal.class);
+		MleMixtureAccumulator list = new MleMixtureAccumulator(FD, ND, DensityDiagonal.class);
+
+		for (int t = 0; t < 200; ++t) {
+			double [] x = randomVector(rnd, 1.);
+
+			// random candidates in random order
+			for (int i = 0; i < ND; ++i)
+				ndx[i] = i;
+			for (int i = ND - 1; i > 0; --i) {
+				int j = rnd.nextInt(i + 1);
+				int h = ndx[i];
+				ndx[i] = ndx[j];
+				ndx[j] = h;
+			}
+			int n = 1 + rnd.nextInt(ND);
+
+			cm.logEvaluate(ndx, n, x, lh, scratch);
+			double ll = Arithmetics.logsumexp(lh, n);
+			Arrays.fill(p, 0.);
+			for (int j = 0; j < n; ++j)
+				p[ndx[j]] = g[j] = Math.exp(lh[j] - ll);
+
+			Assertions.assertEquals(ref.accumulate(p, x, threshold, topK), list.accumulate(g, ndx, n, x, threshold, topK), 1e-12);
+		}
+
+		for (int i = 0; i < ND; ++i) {
+			Assertions.assertEquals(ref.accs[i].occ, list.accs[i].occ);
+			Assertions.assertArrayEquals(ref.accs[i].mue, list.accs[i].mue);
+			Assertions.assertArrayEquals(ref.accs[i].cov, list.accs[i].cov);
+		}
+		Assertions.assertEquals(ref.sparseMass, list.sparseMass, 1e-9);
+		Assertions.assertEquals(ref.sparseComponents, list.sparseComponents);
+	}
+
+	@Test
+	public void sparseAccumulationTest() throws ClassNotFoundException {
+		// no threshold and no (effective) limit: same as dense
+		assertSparse(0., 0);
+		assertSparse(0., ND);
+		assertSparse(0., ND + 3);
+
+		// limits and thresholds
+		assertSparse(0., 1);
+		assertSparse(0., 3);
+		assertSparse(.1, 0);
+		assertSparse(.1, 2);
+		assertSparse(1.1, 0);
+
+		// boundaries: the threshold is inclusive, zero posteriors are skipped
+		MleMixtureAccumulator acc = new MleMixtureAccumulator(FD, ND, DensityDiagonal.class);
+		double [] x = new double [FD];
+		double [] p = { .4, .3, .2, .1, 0., 0., 0., 0. };
+		Assertions.assertEquals(1., acc.accumulate(p, x, 0., 0), 1e-12);
+		Assertions.assertEquals(4, acc.sparseComponents);
+		Assertions.assertEquals(.9, acc.accumulate(p, x, .2, 0), 1e-12);
+		Assertions.assertEquals(.7, acc.accumulate(p, x, .2, 2), 1e-12);
+		Assertions.assertEquals(0., acc.accumulate(p, x, .5, 0));
+		Assertions.assertEquals(9, acc.sparseComponents);
+
+		// candidate lists, e.g. from a Gaussian selection
+		assertSparseList(0., 0);
+		assertSparseList(0., 3);
+		assertSparseList(.1, 0);
+		assertSparseList(.1, 2);
+	}
+}
@@ -0,0 +1,194 @@
+/*
+	Copyright (c) 2009-2011
+		Speech Group at Informatik 5, Univ. Erlangen-Nuremberg, GERMANY
+		Korbinian Riedhammer
+		Tobias Bocklet
+
+	This file is part of the Java Speech Toolkit (JSTK).
+
+	The JSTK is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	The JSTK is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with the JSTK. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.github.sikoried.jstk.stat;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.github.sikoried.jstk.io.ChunkedDataSet;
+import com.github.sikoried.jstk.io.FrameOutputStream;
+
+public class ParallelEMTest {
+	/**
+	 * Write feature files of different lengths sampled from the given mixture
+	 */
+	static List<File> writeData(Mixture m, File dir, int numFiles, long seed) throws IOException {
+		Random rnd = new Random(seed);
+		List<File> files = new ArrayList<File>();
+		for (int k = 0; k < numFiles; ++k) {
+			File file = new File(dir, "f" + k);
+			FrameOutputStream fos = new FrameOutputStream(m.fd, file);
+			int frames = 100 + rnd.nextInt(400);
+			for (int t = 0; t < frames; ++t)
+				fos.write(GaussianSelection.drawSample(m, rnd));
+			fos.close();
+			files.add(file);
+		}
+		return files;
+	}
+
+	static void delete(File dir) {
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+
+	static void assertMixtures(Mixture a, Mixture b, double tol) {
+		for (int i = 0; i < a.nd; ++i) {
+			Density da = a.components[i], db = b.components[i];
+			Assertions.assertEquals(da.apr, db.apr, tol);
+			Assertions.assertArrayEquals(da.mue, db.mue, tol);
+			Assertions.assertArrayEquals(da.cov, db.cov, tol);
+		}
+	}
+
+	@Test
+	public void threadsTest() throws Exception {
+		File dir = Files.createTempDirectory("jstk").toFile();
+		try {
+			List<File> files = writeData(MixtureTest.randomMixture(true, 1), dir, 9, 2);
+			Mixture initial = MixtureTest.randomMixture(true, 3);
+
+			for (boolean sparse : new boolean [] { false, true }) {
+				ParallelEM em1 = new ParallelEM(initial.clone(), new ChunkedDataSet(files, 0), 1);
+				ParallelEM em4 = new ParallelEM(initial.clone(), new ChunkedDataSet(files, 0), 4);
+				if (sparse) {
+					em1.setSparseAccumulation(.01, 4);
+					em4.setSparseAccumulation(.01, 4);
+				}
+
+				// several iterations on the persistent workers
+				for (int i = 0; i < 4; ++i) {
+					em1.iterate();
+					em4.iterate();
+					Assertions.assertEquals(em1.frames, em4.frames);
+					Assertions.assertEquals(em1.accumulatedMass, em4.accumulatedMass, 1e-9);
+					assertMixtures(em1.current, em4.current, 1e-9);
+				}
+
+				em1.shutdown();
+				em4.shutdown();
+			}
+		} finally {
+			delete(dir);
+		}
+	}
+
+	@Test
+	public void workerRebuildTest() throws Exception {
+		File dir = Files.createTempDirectory("jstk").toFile();
+		try {
+			Mixture m = MixtureTest.randomMixture(true, 4);
+			List<File> files = writeData(m, dir, 5, 5);
+			ParallelEM em = new ParallelEM(m.clone(), new ChunkedDataSet(files, 0), 2);
+
+			em.iterate();
+			Object [] workers = em.workers;
+			Assertions.assertEquals(2, workers.length);
+
+			// kept across iterations and for an unchanged thread count
+			em.setNumberOfThreads(2);
+			em.iterate();
+			Assertions.assertSame(workers, em.workers);
+
+			// a new thread count needs new workers
+			em.setNumberOfThreads(3);
+			Assertions.assertNull(em.workers);
+			em.iterate();
+			workers = em.workers;
+			Assertions.assertEquals(3, workers.length);
+
+			// and so does the Gaussian selection, set and removed
+			Mixture ref = em.current.clone();
+			em.setGaussianSelection(GaussianSelection.build(ref, 2, 500, ref.nd, 6), 2);
+			Assertions.assertNull(em.workers);
+			em.iterate();
+			Assertions.assertNotSame(workers, em.workers);
+			workers = em.workers;
+
+			em.setGaussianSelection(null, 0);
+			Assertions.assertNull(em.workers);
+			em.iterate();
+			Assertions.assertNotSame(workers, em.workers);
+
+			em.shutdown();
+		} finally {
+			delete(dir);
+		}
+	}
+
+	@Test
+	public void shardSumTest() throws Exception {
+		File dir = Files.createTempDirectory("jstk").toFile();
+		try {
+			List<File> files = writeData(MixtureTest.randomMixture(true, 7), dir, 7, 8);
+			Mixture initial = MixtureTest.randomMixture(true, 9);
+
+			// single process
+			ParallelEM single = new ParallelEM(initial.clone(), new ChunkedDataSet(files, 0), 2);
+			MleMixtureAccumulator ref = single.accumulate();
+			single.shutdown();
+
+			// one accumulator file per partition, as GaussEM --shard k num
+			final int shards = 3;
+			List<File> accs = new ArrayList<File>();
+			for (int k = 0; k < shards; ++k) {
+				ChunkedDataSet data = new ChunkedDataSet(files, 0);
+				data.partition(k, shards);
+				ParallelEM em = new ParallelEM(initial.clone(), data, 2);
+				File acc = new File(dir, "acc-" + k);
+				OutputStream os = new FileOutputStream(acc);
+				em.accumulate().write(os);
+				os.close();
+				em.shutdown();
+				accs.add(acc);
+			}
+
+			MleMixtureAccumulator sum = MleMixtureAccumulator.sum(accs);
+			for (int i = 0; i < initial.nd; ++i) {
+				MleDensityAccumulator a = ref.accs[i], b = sum.accs[i];
+				Assertions.assertEquals(a.occ, b.occ, 1e-9 * Math.max(1., Math.abs(a.occ)));
+				for (int j = 0; j < a.mue.length; ++j)
+					Assertions.assertEquals(a.mue[j], b.mue[j], 1e-9 * Math.max(1., Math.abs(a.mue[j])));
+				for (int j = 0; j < a.cov.length; ++j)
+					Assertions.assertEquals(a.cov[j], b.cov[j], 1e-9 * Math.max(1., Math.abs(a.cov[j])));
+			}
+
+			// and thus the same estimate
+			Mixture m1 = initial.clone(), m2 = initial.clone();
+			MleMixtureAccumulator.MleUpdate(initial, MleDensityAccumulator.MleOptions.pDefaultOptions, Density.Flags.fAllParams, ref, m1);
+			MleMixtureAccumulator.MleUpdate(initial, MleDensityAccumulator.MleOptions.pDefaultOptions, Density.Flags.fAllParams, sum, m2);
+			assertMixtures(m1, m2, 1e-9);
+		} finally {
+			delete(dir);
+		}
+	}
+}
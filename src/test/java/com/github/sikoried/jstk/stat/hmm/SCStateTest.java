@@ -0,0 +1,76 @@
+/*
+	Copyright (c) 2009-2011
+		Speech Group at Informatik 5, Univ. Erlangen-Nuremberg, GERMANY
+		Korbinian Riedhammer
+		Tobias Bocklet
+
+	This file is part of the Java Speech Toolkit (JSTK).
+
+	The JSTK is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	The JSTK is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with the JSTK. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.github.sikoried.jstk.stat.hmm;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.github.sikoried.jstk.stat.Density;
+import com.github.sikoried.jstk.stat.Mixture;
+
+public class SCStateTest {
+	private static final int FD = 4;
+	private static final int ND = 6;
+
+	@Test
+	public void logEmitsZeroPriorTest() {
+		Random rnd = new Random(1);
+		for (boolean diagonal : new boolean [] { true, false }) {
+			Mixture cb = new Mixture(FD, ND, diagonal);
+			for (int j = 0; j < ND; ++j) {
+				double [] mue = new double [FD];
+				double [] cov = new double [diagonal ? FD : FD * (FD + 1) / 2];
+				for (int i = 0; i < FD; ++i) {
+					mue[i] = rnd.nextGaussian();
+
+					// diagonal entry; the packed lower triangle ends row i at i*(i+3)/2
+					cov[diagonal ? i : i * (i + 3) / 2] = 1. + rnd.nextDouble();
+				}
+
+				// codebook priors do not matter for the state emission, even if 0
+				cb.components[j].fill(j == 2 ? 0. : 1. / (ND - 1), mue, cov);
+			}
+
+			SCState s = new SCState(cb);
+			for (int j = 0; j < ND; ++j)
+				s.c[j] = (j == 4 ? 0. : 1. / (ND - 1));
+
+			for (int t = 0; t < 20; ++t) {
+				double [] x = new double [FD];
+				for (int i = 0; i < FD; ++i)
+					x[i] = rnd.nextGaussian();
+
+				double ref = Math.log(s.emits(x));
+				double le = s.logEmits(x);
+
+				Assertions.assertFalse(Double.isNaN(le));
+				Assertions.assertEquals(ref, le, 1e-10);
+
+				// the component log-likelihood is kept without the prior
+				for (Density d : cb.components)
+					Assertions.assertEquals(Math.log(d.score), d.logscore, 1e-10);
+			}
+		}
+	}
+}
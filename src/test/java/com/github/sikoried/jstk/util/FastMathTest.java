@@ -0,0 +1,135 @@
+/*
+	Copyright (c) 2009-2011
+		Speech Group at Informatik 5, Univ. Erlangen-Nuremberg, GERMANY
+		Korbinian Riedhammer
+		Tobias Bocklet
+
+	This file is part of the Java Speech Toolkit (JSTK).
+
+	The JSTK is free software: you can redistribute it and/or modify
+	it under the terms of the GNU General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+
+	The JSTK is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU General Public License for more details.
+
+	You should have received a copy of the GNU General Public License
+	along with the JSTK. If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.github.sikoried.jstk.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.github.sikoried.jstk.stat.CompiledMixture;
+import com.github.sikoried.jstk.stat.Density;
+import com.github.sikoried.jstk.stat.FloatMixture;
+import com.github.sikoried.jstk.stat.Mixture;
+import com.github.sikoried.jstk.stat.Sample;
+import com.github.sikoried.jstk.stat.Trainer;
+
+public class FastMathTest {
+	@Test
+	public void errorBoundTest() {
+		double [] err = FastMath.measureErrors(200000, 1);
+		Assertions.assertTrue(err[0] < FastMath.EXP_ERROR_BOUND, "exp error " + err[0]);
+		Assertions.assertTrue(err[1] < FastMath.LOG_ERROR_BOUND, "log error " + err[1]);
+
+		Assertions.assertEquals(0., FastMath.approxExp(Double.NEGATIVE_INFINITY));
+		Assertions.assertEquals(Double.POSITIVE_INFINITY, FastMath.approxExp(1000.));
+		Assertions.assertTrue(Double.isNaN(FastMath.approxExp(Double.NaN)));
+		Assertions.assertEquals(1., FastMath.approxExp(0.));
+		Assertions.assertEquals(Double.NEGATIVE_INFINITY, FastMath.approxLog(0.));
+		Assertions.assertTrue(Double.isNaN(FastMath.approxLog(-1.)));
+		Assertions.assertEquals(0., FastMath.approxLog(1.), FastMath.LOG_ERROR_BOUND);
+	}
+
+	/**
+	 * The EM log-likelihood with fast-math must stay within a tight bound of
+	 * the exact computation.
+	 */
+	@Test
+	public void emLikelihoodTest() {
+		Random rnd = new Random(3);
+		int fd = 4, nd = 6;
+
+		List<Sample> data = new ArrayList<Sample>();
+		for (int t = 0; t < 3000; ++t) {
+			double [] x = new double [fd];
+			int k = rnd.nextInt(3);
+			for (int i = 0; i < fd; ++i)
+				x[i] = 3. * k + rnd.nextGaussian();
+			data.add(new Sample((short) 0, x));
+		}
+
+		Mixture initial = new Mixture(fd, nd, true);
+		for (Density d : initial.components) {
+			double [] mue = new double [fd];
+			double [] cov = new double [fd];
+			for (int i = 0; i < fd; ++i) {
+				mue[i] = 6. * rnd.nextDouble();
+				cov[i] = 1.;
+			}
+			d.fill(1. / nd, mue, cov);
+		}
+
+		Mixture exact = Trainer.em(initial.clone(), data, 5);
+
+		Mixture fast;
+		try {
+			FastMath.setEnabled(true);
+			fast = Trainer.em(initial.clone(), data, 5);
+		} finally {
+			FastMath.setEnabled(false);
+		}
+
+		double le = 0., lf = 0.;
+		for (Sample s : data) {
+			le += exact.logEvaluate(s.x);
+			lf += fast.logEvaluate(s.x);
+		}
+
+		Assertions.assertEquals(le / data.size(), lf / data.size(), 1e-9);
+	}
+
+	/**
+	 * Mixture, CompiledMixture and FloatMixture must normalize the same
+	 * component scores to the same posteriors in either mode.
+	 */
+	@Test
+	public void posteriorsTest() {
+		Random rnd = new Random(5);
+		int fd = 4, nd = 8;
+
+		Mixture m = new Mixture(fd, nd, true);
+		CompiledMixture cm = new CompiledMixture(m);
+		FloatMixture fm = new FloatMixture(m, true);
+
+		double [] lh = new double [nd];
+		double [] p1 = new double [nd], p2 = new double [nd], p3 = new double [nd];
+		for (boolean fast : new boolean [] { false, true }) {
+			try {
+				FastMath.setEnabled(fast);
+				for (int t = 0; t < 100; ++t) {
+					for (int i = 0; i < nd; ++i)
+						lh[i] = -50. * rnd.nextDouble();
+
+					double ll = m.posteriorsFromLog(lh, p1);
+					Assertions.assertEquals(ll, cm.posteriors(lh, p2));
+					Assertions.assertEquals(ll, fm.posteriors(lh, p3));
+					Assertions.assertArrayEquals(p1, p2);
+					Assertions.assertArrayEquals(p1, p3);
+				}
+			} finally {
+				FastMath.setEnabled(false);
+			}
+		}
+	}
+}